@@ -0,0 +1,36 @@
+package com.google.devrel.training.conference.benchmark;
+
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.logging.Logger;
+
+/**
+ * The local App Engine API environment of a benchmark thread, which creating Keys requires.
+ *
+ * Take it as a parameter of the benchmark method, or of the Setup method of another State, so
+ * that it is set up on the benchmark thread first.
+ */
+@State(Scope.Thread)
+public class AppEngineEnvironment {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        helper.setUp();
+        // Keep the info logs of the app, such as the query of every getQuery(), off the console.
+        Logger.getLogger("com.google.devrel.training.conference")
+                .setLevel(java.util.logging.Level.WARNING);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        helper.tearDown();
+    }
+}
@@ -0,0 +1,154 @@
+package com.google.devrel.training.conference.benchmark;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares the JSON results of JMH with a baseline.
+ *
+ * A benchmark has regressed when it takes TIME_TOLERANCE longer than in the baseline, beyond
+ * the errors of both scores, or when it allocates ALLOCATION_TOLERANCE more bytes per
+ * operation. The allocation is deterministic enough for a tight tolerance, unlike the time.
+ */
+public class BaselineComparison {
+
+    /**
+     * The fraction of the baseline time a benchmark may take longer.
+     */
+    static final double TIME_TOLERANCE = 0.2;
+
+    /**
+     * The fraction of the baseline allocation a benchmark may allocate more, in addition to
+     * ALLOCATION_SLACK_BYTES.
+     */
+    static final double ALLOCATION_TOLERANCE = 0.1;
+
+    /**
+     * The bytes per operation a benchmark may allocate more, for the noise of the small ones.
+     */
+    static final double ALLOCATION_SLACK_BYTES = 16;
+
+    private static final String ALLOCATION_METRIC = "gc.alloc.rate.norm";
+
+    /**
+     * A score of a benchmark.
+     */
+    static class Score {
+
+        final double score;
+
+        final double error;
+
+        final String unit;
+
+        Score(double score, double error, String unit) {
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+
+        static Score of(JsonObject metric) {
+            JsonElement error = metric.get("scoreError");
+            return new Score(metric.get("score").getAsDouble(),
+                    error == null || !isNumber(error) ? 0 : error.getAsDouble(),
+                    metric.get("scoreUnit").getAsString());
+        }
+
+        private static boolean isNumber(JsonElement element) {
+            return element.isJsonPrimitive() && element.getAsJsonPrimitive().isNumber();
+        }
+    }
+
+    /**
+     * Compares the results with the baseline.
+     *
+     * @param baseline The JSON results of the baseline.
+     * @param results The JSON results of the run.
+     * @return a description of each regression, or an empty list.
+     */
+    public static List<String> compare(File baseline, File results) throws IOException {
+        Map<String, JsonObject> baselineRuns = read(baseline);
+        Map<String, JsonObject> runs = read(results);
+        List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, JsonObject> run : runs.entrySet()) {
+            JsonObject baselineRun = baselineRuns.get(run.getKey());
+            if (baselineRun == null) {
+                continue;
+            }
+            Score before = Score.of(baselineRun.getAsJsonObject("primaryMetric"));
+            Score after = Score.of(run.getValue().getAsJsonObject("primaryMetric"));
+            if (after.score - after.error > (before.score + before.error) * (1 + TIME_TOLERANCE)) {
+                regressions.add(String.format("%s: %.1f %s, baseline %.1f %s", run.getKey(),
+                        after.score, after.unit, before.score, before.unit));
+            }
+            Score allocationBefore = allocationOf(baselineRun);
+            Score allocationAfter = allocationOf(run.getValue());
+            if (allocationBefore != null && allocationAfter != null
+                    && allocationAfter.score > allocationBefore.score * (1 + ALLOCATION_TOLERANCE)
+                            + ALLOCATION_SLACK_BYTES) {
+                regressions.add(String.format("%s: %.1f %s allocated, baseline %.1f %s",
+                        run.getKey(), allocationAfter.score, allocationAfter.unit,
+                        allocationBefore.score, allocationBefore.unit));
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * Returns the bytes allocated per operation, which the GC profiler has measured.
+     */
+    private static Score allocationOf(JsonObject run) {
+        JsonObject secondaryMetrics = run.getAsJsonObject("secondaryMetrics");
+        if (secondaryMetrics == null) {
+            return null;
+        }
+        // Older versions of JMH prefix the names of the profiler metrics.
+        for (Map.Entry<String, JsonElement> metric : secondaryMetrics.entrySet()) {
+            if (metric.getKey().endsWith(ALLOCATION_METRIC)) {
+                return Score.of(metric.getValue().getAsJsonObject());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the runs of the JSON results keyed by the benchmark, its mode and its parameters.
+     */
+    private static Map<String, JsonObject> read(File file) throws IOException {
+        Map<String, JsonObject> runs = new TreeMap<>();
+        try (Reader reader = new InputStreamReader(new FileInputStream(file),
+                StandardCharsets.UTF_8)) {
+            for (JsonElement element : new JsonParser().parse(reader).getAsJsonArray()) {
+                JsonObject run = element.getAsJsonObject();
+                String key = run.get("benchmark").getAsString() + " " + run.get("mode")
+                        .getAsString();
+                JsonObject params = run.getAsJsonObject("params");
+                if (params != null) {
+                    key += " " + toStrings(params);
+                }
+                runs.put(key, run);
+            }
+        }
+        return runs;
+    }
+
+    private static Map<String, String> toStrings(JsonObject params) {
+        Map<String, String> strings = new TreeMap<>();
+        for (Map.Entry<String, JsonElement> param : params.entrySet()) {
+            strings.put(param.getKey(), param.getValue().getAsString());
+        }
+        return strings;
+    }
+}
@@ -0,0 +1,62 @@
+package com.google.devrel.training.conference.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Runs the benchmarks with the allocation profiler, writes the results as JSON, and compares
+ * them with the baseline if there is one.
+ *
+ * It takes the JMH command line options, e.g. a regular expression of the benchmarks to run, as
+ * well as the system properties:
+ * <ul>
+ * <li>result: the JSON file to write the results to, target/jmh-result.json by default.</li>
+ * <li>baseline: the JSON results to compare the results with, baseline.json by default. The
+ * run fails when a benchmark has regressed.</li>
+ * </ul>
+ * <pre>
+ * {@code
+ * java -jar target/benchmarks.jar
+ * java -Dresult=baseline.json -jar target/benchmarks.jar
+ * }
+ * </pre>
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        File result = new File(System.getProperty("result", "target/jmh-result.json"));
+        File baseline = new File(System.getProperty("baseline", "baseline.json"));
+        if (result.getParentFile() != null) {
+            result.getParentFile().mkdirs();
+        }
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.getPath())
+                .build()).run();
+
+        if (result.getCanonicalFile().equals(baseline.getCanonicalFile())) {
+            System.out.println("Recorded the baseline in " + baseline);
+            return;
+        }
+        if (!baseline.exists()) {
+            System.out.println("No baseline to compare with at " + baseline);
+            return;
+        }
+        List<String> regressions = BaselineComparison.compare(baseline, result);
+        for (String regression : regressions) {
+            System.out.println("REGRESSION " + regression);
+        }
+        if (!regressions.isEmpty()) {
+            System.exit(1);
+        }
+        System.out.println("No regressions against " + baseline);
+    }
+}
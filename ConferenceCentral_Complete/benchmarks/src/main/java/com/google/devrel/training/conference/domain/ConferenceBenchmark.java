@@ -0,0 +1,65 @@
+package com.google.devrel.training.conference.domain;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.benchmark.AppEngineEnvironment;
+import com.google.devrel.training.conference.form.ConferenceForm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the Conference methods run for every Conference of a response or a form.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ConferenceBenchmark {
+
+    private ConferenceForm conferenceForm;
+
+    private Conference conference;
+
+    @Setup
+    public void setUp(AppEngineEnvironment environment) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2015, Calendar.MAY, 28);
+        Date startDate = calendar.getTime();
+        calendar.set(2015, Calendar.MAY, 29);
+        Date endDate = calendar.getTime();
+        conferenceForm = new ConferenceForm("Google I/O", "The developer conference",
+                ImmutableList.of("Android", "Cloud", "Web"), "San Francisco", startDate,
+                endDate, 5000);
+        conference = new Conference(1234L, "organizer", conferenceForm);
+    }
+
+    @Benchmark
+    public Conference updateWithConferenceForm(AppEngineEnvironment environment) {
+        conference.updateWithConferenceForm(conferenceForm);
+        return conference;
+    }
+
+    @Benchmark
+    public String conferenceToString(AppEngineEnvironment environment) {
+        return conference.toString();
+    }
+
+    @Benchmark
+    public String getWebsafeKey(AppEngineEnvironment environment) {
+        return conference.getWebsafeKey();
+    }
+}
@@ -0,0 +1,69 @@
+package com.google.devrel.training.conference.domain;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.devrel.training.conference.benchmark.AppEngineEnvironment;
+import com.googlecode.objectify.Key;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of reading the legacy conferenceKeysToAttend of a Profile.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ProfileBenchmark {
+
+    /**
+     * The number of the Conferences the Profile attends.
+     */
+    @Param({"0", "10", "1000"})
+    public int conferences;
+
+    private Profile profile;
+
+    @Setup
+    public void setUp(AppEngineEnvironment environment) {
+        List<String> conferenceKeysToAttend = new ArrayList<>(conferences);
+        for (int i = 0; i < conferences; i++) {
+            conferenceKeysToAttend.add(Key.create(Conference.class, i + 1L).getString());
+        }
+        // Only the Profiles saved before Registrations have conferenceKeysToAttend.
+        Entity entity = new Entity("Profile", "user");
+        entity.setProperty("conferenceKeysToAttend", conferenceKeysToAttend);
+        profile = ofy().load().fromEntity(entity);
+    }
+
+    @Benchmark
+    public List<String> getConferenceKeysToAttend(AppEngineEnvironment environment) {
+        return profile.getConferenceKeysToAttend();
+    }
+
+    @Benchmark
+    public void iterateConferenceKeysToAttend(AppEngineEnvironment environment,
+            Blackhole blackhole) {
+        for (String conferenceKey : profile.getConferenceKeysToAttend()) {
+            blackhole.consume(conferenceKey);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.google.devrel.training.conference.form;
+
+import com.google.devrel.training.conference.benchmark.AppEngineEnvironment;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.googlecode.objectify.cmd.Query;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of building the datastore query of a queryConferences request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ConferenceQueryFormBenchmark {
+
+    /**
+     * The filters of the query: none, a single equality filter, equality filters with an
+     * inequality filter, or inequality filters on two fields, one of which is residual.
+     */
+    @Param({"none", "equality", "inequality", "residual"})
+    public String filters;
+
+    private ConferenceQueryForm conferenceQueryForm;
+
+    @Setup
+    public void setUp(AppEngineEnvironment environment) {
+        conferenceQueryForm = new ConferenceQueryForm();
+        switch (filters) {
+            case "none":
+                break;
+            case "equality":
+                conferenceQueryForm.filter(new Filter(Field.CITY, Operator.EQ, "London"));
+                break;
+            case "inequality":
+                conferenceQueryForm
+                        .filter(new Filter(Field.CITY, Operator.EQ, "London"))
+                        .filter(new Filter(Field.TOPIC, Operator.EQ, "Cloud"))
+                        .filter(new Filter(Field.MAX_ATTENDEES, Operator.GT, "10"))
+                        .filter(new Filter(Field.MAX_ATTENDEES, Operator.LT, "1000"));
+                break;
+            case "residual":
+                conferenceQueryForm
+                        .filter(new Filter(Field.CITY, Operator.EQ, "London"))
+                        .filter(new Filter(Field.MAX_ATTENDEES, Operator.GT, "10"))
+                        .filter(new Filter(Field.MONTH, Operator.GTEQ, "6"));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown filters: " + filters);
+        }
+    }
+
+    @Benchmark
+    public Query<Conference> getQuery(AppEngineEnvironment environment) {
+        return conferenceQueryForm.getQuery();
+    }
+}
@@ -14,4 +14,5 @@ public class Constants {
     public static final String API_EXPLORER_CLIENT_ID = Constant.API_EXPLORER_CLIENT_ID;
 
     public static final String MEMCACHE_ANNOUNCEMENTS_KEY = "RECENT_ANNOUNCEMENTS";
+    public static final String MEMCACHE_CONFERENCE_GENERATION_KEY = "CONFERENCE_GENERATION";
 }
@@ -0,0 +1,110 @@
+package com.google.devrel.training.conference.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+import java.util.Date;
+
+/**
+ * BatchJobStatus class records the progress of a run of a BatchJob.
+ *
+ * The status holds the cursor of the batch to process next, so that a task running a batch
+ * twice, e.g. on a retry, is recognized and doesn't process the batch again.
+ */
+@Entity
+public class BatchJobStatus {
+
+    @Id
+    private String jobId;
+
+    private String jobName;
+
+    /**
+     * The websafe cursor of the next batch, null for the first batch.
+     */
+    private String cursor;
+
+    private boolean done;
+
+    private int batches;
+
+    private long processed;
+
+    @Index
+    private Date startedAt;
+
+    private Date updatedAt;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private BatchJobStatus() {}
+
+    public BatchJobStatus(String jobId, String jobName, Date startedAt) {
+        this.jobId = jobId;
+        this.jobName = jobName;
+        this.startedAt = startedAt;
+        this.updatedAt = startedAt;
+    }
+
+    public static Key<BatchJobStatus> key(String jobId) {
+        return Key.create(BatchJobStatus.class, jobId);
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public String getJobName() {
+        return jobName;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    public int getBatches() {
+        return batches;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public Date getStartedAt() {
+        return startedAt;
+    }
+
+    public Date getUpdatedAt() {
+        return updatedAt;
+    }
+
+    /**
+     * Returns the number of the entities processed per second since the job started.
+     */
+    public double getThroughput() {
+        long millis = updatedAt.getTime() - startedAt.getTime();
+        return millis <= 0 ? 0 : processed * 1000.0 / millis;
+    }
+
+    /**
+     * Records a processed batch.
+     *
+     * @param size The number of the entities in the batch.
+     * @param nextCursor The websafe cursor of the next batch, or null when the job is done.
+     * @param now The time the batch has finished.
+     */
+    public void advance(int size, String nextCursor, Date now) {
+        batches++;
+        processed += size;
+        cursor = nextCursor;
+        done = nextCursor == null;
+        updatedAt = now;
+    }
+}
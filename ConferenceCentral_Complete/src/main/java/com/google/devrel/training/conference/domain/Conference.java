@@ -13,9 +13,12 @@ import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Index;
 import com.googlecode.objectify.annotation.Parent;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Conference class stores conference information.
@@ -59,6 +62,15 @@ public class Conference {
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
     private String organizerUserId;
 
+    /**
+     * The display name of the organizer, denormalized from the organizer's Profile.
+     *
+     * Kept up to date by OrganizerDisplayNameFanOut when the organizer renames the Profile.
+     * Conferences stored before this field was introduced have null here, and their names are
+     * resolved by hydrateOrganizerDisplayNames instead.
+     */
+    private String organizerDisplayName;
+
     /**
      * Topics related to this conference.
      */
@@ -101,6 +113,28 @@ public class Conference {
     @Index
     private int seatsAvailable;
 
+    /**
+     * The number of SeatShards holding the seats, or 0 when seatsAvailable holds them.
+     *
+     * For a sharded Conference, seatsAvailable is only refreshed periodically from the shards.
+     * Use hydrateSeatsAvailable to get the exact number.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private int seatShards;
+
+    /**
+     * The number of seats sold by the memcache counter of FlashSale, or 0 when registrations
+     * book the seats in datastore transactions.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private int flashSaleSeats;
+
+    /**
+     * Incremented on every change, so that caches can tell a stale copy from a fresh one.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private long version;
+
     /**
      * Just making the default constructor private.
      */
@@ -144,14 +178,61 @@ public class Conference {
     /**
      * Returns organizer's display name.
      *
+     * Falls back to a datastore get for legacy Conferences without the denormalized name, when
+     * the name hasn't been resolved in advance by hydrateOrganizerDisplayNames.
+     *
      * @return organizer's display name. If there is no Profile, return his/her gplusId.
      */
     public String getOrganizerDisplayName() {
-        Profile organizer = ofy().load().key(Key.create(Profile.class, organizerUserId)).now();
-        if (organizer == null) {
-            return organizerUserId;
-        } else {
-            return organizer.getDisplayName();
+        if (organizerDisplayName == null) {
+            Profile organizer = ofy().load().key(Key.create(Profile.class, organizerUserId)).now();
+            organizerDisplayName = displayNameOf(organizer);
+        }
+        return organizerDisplayName;
+    }
+
+    /**
+     * Updates the denormalized display name of the organizer.
+     *
+     * @param organizerDisplayName organizer's current display name.
+     * @return true when the name has actually changed.
+     */
+    public boolean updateOrganizerDisplayName(String organizerDisplayName) {
+        if (organizerDisplayName == null
+                || organizerDisplayName.equals(this.organizerDisplayName)) {
+            return false;
+        }
+        this.organizerDisplayName = organizerDisplayName;
+        version++;
+        return true;
+    }
+
+    private String displayNameOf(Profile organizer) {
+        return organizer == null ? organizerUserId : organizer.getDisplayName();
+    }
+
+    /**
+     * Resolves the organizer's display names of the given Conferences with a single batch get,
+     * instead of a datastore get per Conference upon serialization.
+     *
+     * @param conferences Conferences to resolve the organizer's display names.
+     */
+    public static void hydrateOrganizerDisplayNames(Collection<Conference> conferences) {
+        List<Key<Profile>> organizerKeys = new ArrayList<>(conferences.size());
+        for (Conference conference : conferences) {
+            if (conference.organizerDisplayName == null) {
+                organizerKeys.add(conference.profileKey);
+            }
+        }
+        if (organizerKeys.isEmpty()) {
+            return;
+        }
+        Map<Key<Profile>, Profile> organizers = ofy().load().keys(organizerKeys);
+        for (Conference conference : conferences) {
+            if (conference.organizerDisplayName == null) {
+                conference.organizerDisplayName =
+                        conference.displayNameOf(organizers.get(conference.profileKey));
+            }
         }
     }
 
@@ -195,6 +276,96 @@ public class Conference {
         return seatsAvailable;
     }
 
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public int getSeatShards() {
+        return seatShards;
+    }
+
+    /**
+     * Moves the seats to the given number of SeatShards, which must have been allotted.
+     *
+     * @param seatShards The number of the shards.
+     */
+    public void enableSeatShards(int seatShards) {
+        Preconditions.checkState(this.seatShards == 0, "The seats are already sharded");
+        this.seatShards = seatShards;
+        version++;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public int getFlashSaleSeats() {
+        return flashSaleSeats;
+    }
+
+    /**
+     * Starts selling the seats with the memcache counter of FlashSale.
+     *
+     * @param flashSaleSeats The number of seats the counter may sell.
+     */
+    public void openFlashSale(int flashSaleSeats) {
+        Preconditions.checkArgument(flashSaleSeats > 0, "There are no seats to sell");
+        this.flashSaleSeats = flashSaleSeats;
+        version++;
+    }
+
+    public void closeFlashSale() {
+        flashSaleSeats = 0;
+        version++;
+    }
+
+    /**
+     * Stores the number of available seats summed up from the SeatShards.
+     *
+     * @param seatsAvailable The sum of the available seats of the shards.
+     * @return true when the number has actually changed.
+     */
+    public boolean updateSeatsAvailable(int seatsAvailable) {
+        Preconditions.checkState(seatShards > 0, "The seats aren't sharded");
+        if (this.seatsAvailable == seatsAvailable) {
+            return false;
+        }
+        this.seatsAvailable = seatsAvailable;
+        version++;
+        return true;
+    }
+
+    /**
+     * Sets the exact number of available seats of the sharded Conferences, with a single batch
+     * get of their SeatShards. The number isn't meant to be saved; the Conferences are left
+     * unchanged otherwise.
+     *
+     * @param conferences Conferences to resolve the available seats.
+     */
+    public static void hydrateSeatsAvailable(Collection<Conference> conferences) {
+        List<Key<SeatShard>> shardKeys = new ArrayList<>();
+        for (Conference conference : conferences) {
+            if (conference.seatShards > 0) {
+                shardKeys.addAll(
+                        SeatShard.keysOf(conference.getWebsafeKey(), conference.seatShards));
+            }
+        }
+        if (shardKeys.isEmpty()) {
+            return;
+        }
+        Map<Key<SeatShard>, SeatShard> shards = ofy().load().keys(shardKeys);
+        for (Conference conference : conferences) {
+            if (conference.seatShards > 0) {
+                int seatsAvailable = 0;
+                for (Key<SeatShard> shardKey
+                        : SeatShard.keysOf(conference.getWebsafeKey(), conference.seatShards)) {
+                    SeatShard shard = shards.get(shardKey);
+                    seatsAvailable += shard == null ? 0 : shard.getSeatsAvailable();
+                }
+                conference.seatsAvailable = seatsAvailable;
+            }
+        }
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public long getVersion() {
+        return version;
+    }
+
     /**
      * Updates the Conference with ConferenceForm.
      * This method is used upon object creation as well as updating existing Conferences.
@@ -219,6 +390,15 @@ public class Conference {
             // Calendar.MONTH is zero based, so adding 1.
             this.month = calendar.get(calendar.MONTH) + 1;
         }
+        if (seatShards > 0) {
+            // The SeatShards check and hold the seats, so just follow the change of maxAttendees
+            // until the next refresh.
+            int delta = conferenceForm.getMaxAttendees() - maxAttendees;
+            this.maxAttendees = conferenceForm.getMaxAttendees();
+            this.seatsAvailable = Math.max(0, Math.min(maxAttendees, seatsAvailable + delta));
+            version++;
+            return;
+        }
         // Check maxAttendees value against the number of already allocated seats.
         int seatsAllocated = maxAttendees - seatsAvailable;
         if (conferenceForm.getMaxAttendees() < seatsAllocated) {
@@ -229,20 +409,25 @@ public class Conference {
         // However, if there are already some seats allocated, we should subtract that numbers.
         this.maxAttendees = conferenceForm.getMaxAttendees();
         this.seatsAvailable = this.maxAttendees - seatsAllocated;
+        version++;
     }
 
     public void bookSeats(final int number) {
+        Preconditions.checkState(seatShards == 0, "Book the seats from the SeatShards");
         if (seatsAvailable < number) {
             throw new IllegalArgumentException("There are no seats available.");
         }
         seatsAvailable = seatsAvailable - number;
+        version++;
     }
 
     public void giveBackSeats(final int number) {
+        Preconditions.checkState(seatShards == 0, "Give back the seats to the SeatShards");
         if (seatsAvailable + number > maxAttendees) {
             throw new IllegalArgumentException("The number of seats will exceeds the capacity.");
         }
         seatsAvailable = seatsAvailable + number;
+        version++;
     }
 
     @Override
@@ -0,0 +1,100 @@
+package com.google.devrel.training.conference.domain;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A compact view of a Conference for list pages, without the description.
+ */
+public class ConferenceSummary {
+
+    private String websafeKey;
+
+    private String name;
+
+    private String city;
+
+    private List<String> topics;
+
+    private Date startDate;
+
+    private Date endDate;
+
+    private String organizerDisplayName;
+
+    private int maxAttendees;
+
+    private int seatsAvailable;
+
+    public ConferenceSummary() {}
+
+    /**
+     * Copies the fields for list pages from the Conference.
+     *
+     * Resolve the organizer's display names beforehand with
+     * Conference.hydrateOrganizerDisplayNames, to avoid a datastore get per Conference.
+     *
+     * @param conference the Conference to summarize.
+     */
+    public ConferenceSummary(Conference conference) {
+        this.websafeKey = conference.getWebsafeKey();
+        this.name = conference.getName();
+        this.city = conference.getCity();
+        this.topics = conference.getTopics();
+        this.startDate = conference.getStartDate();
+        this.endDate = conference.getEndDate();
+        this.organizerDisplayName = conference.getOrganizerDisplayName();
+        this.maxAttendees = conference.getMaxAttendees();
+        this.seatsAvailable = conference.getSeatsAvailable();
+    }
+
+    public String getWebsafeKey() {
+        return websafeKey;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCity() {
+        return city;
+    }
+
+    /**
+     * Returns a defensive copy of topics if not null.
+     * @return a defensive copy of topics if not null.
+     */
+    public List<String> getTopics() {
+        return topics == null ? null : ImmutableList.copyOf(topics);
+    }
+
+    /**
+     * Returns a defensive copy of startDate if not null.
+     * @return a defensive copy of startDate if not null.
+     */
+    public Date getStartDate() {
+        return startDate == null ? null : new Date(startDate.getTime());
+    }
+
+    /**
+     * Returns a defensive copy of endDate if not null.
+     * @return a defensive copy of endDate if not null.
+     */
+    public Date getEndDate() {
+        return endDate == null ? null : new Date(endDate.getTime());
+    }
+
+    public String getOrganizerDisplayName() {
+        return organizerDisplayName;
+    }
+
+    public int getMaxAttendees() {
+        return maxAttendees;
+    }
+
+    public int getSeatsAvailable() {
+        return seatsAvailable;
+    }
+}
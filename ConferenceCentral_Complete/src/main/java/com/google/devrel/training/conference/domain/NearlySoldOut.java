@@ -0,0 +1,103 @@
+package com.google.devrel.training.conference.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * NearlySoldOut class holds the names of the Conferences that are nearly sold out, for the
+ * announcement.
+ *
+ * There is a single NearlySoldOut entity, which changes only when a Conference enters or leaves
+ * the set, so the registrations rarely write it. It is cached by Objectify, since every seat
+ * change reads it.
+ */
+@Entity
+@Cache
+public class NearlySoldOut {
+
+    /**
+     * A Conference with fewer seats available than this, but not sold out, is nearly sold out.
+     */
+    public static final int SEATS_THRESHOLD = 5;
+
+    private static final String ID = "nearlySoldOut";
+
+    @Id
+    private String id = ID;
+
+    /**
+     * The names of the Conferences keyed by their websafe keys.
+     */
+    private Map<String, String> conferenceNames = new HashMap<>();
+
+    public static Key<NearlySoldOut> key() {
+        return Key.create(NearlySoldOut.class, ID);
+    }
+
+    public static boolean isNearlySoldOut(Conference conference) {
+        return conference.getSeatsAvailable() > 0
+                && conference.getSeatsAvailable() < SEATS_THRESHOLD;
+    }
+
+    /**
+     * Returns the name under which the Conference should be listed.
+     *
+     * @return the name, or null when the Conference should not be listed.
+     */
+    private static String listedName(Conference conference) {
+        return conference != null && isNearlySoldOut(conference) ? conference.getName() : null;
+    }
+
+    /**
+     * Returns whether the Conference is listed as it should be.
+     *
+     * @param websafeConferenceKey The String representation of the Conference key.
+     * @param conference The Conference, or null when it has been deleted.
+     */
+    public boolean isUpToDate(String websafeConferenceKey, Conference conference) {
+        String listed = conferenceNames.get(websafeConferenceKey);
+        String expected = listedName(conference);
+        return listed == null ? expected == null : listed.equals(expected);
+    }
+
+    /**
+     * Lists or unlists the Conference as it should be.
+     *
+     * @param websafeConferenceKey The String representation of the Conference key.
+     * @param conference The Conference, or null when it has been deleted.
+     * @return true when the set has changed.
+     */
+    public boolean update(String websafeConferenceKey, Conference conference) {
+        if (isUpToDate(websafeConferenceKey, conference)) {
+            return false;
+        }
+        String expected = listedName(conference);
+        if (expected == null) {
+            conferenceNames.remove(websafeConferenceKey);
+        } else {
+            conferenceNames.put(websafeConferenceKey, expected);
+        }
+        return true;
+    }
+
+    public List<String> getWebsafeConferenceKeys() {
+        return new ArrayList<>(conferenceNames.keySet());
+    }
+
+    /**
+     * Returns the names of the Conferences in alphabetical order.
+     */
+    public List<String> getConferenceNames() {
+        List<String> names = new ArrayList<>(conferenceNames.values());
+        Collections.sort(names);
+        return names;
+    }
+}
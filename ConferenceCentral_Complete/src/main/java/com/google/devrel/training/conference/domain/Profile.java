@@ -1,11 +1,17 @@
 package com.google.devrel.training.conference.domain;
 
-import com.google.common.collect.ImmutableList;
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -36,10 +42,19 @@ public class Profile {
     private TeeShirtSize teeShirtSize;
 
     /**
-     * Keys of the conferences that this user registers to attend.
+     * Keys of the conferences that this user registered to attend before Registrations were
+     * introduced. Emptied by migrateRegistrations.
      */
     private List<String> conferenceKeysToAttend = new ArrayList<>(0);
 
+    /**
+     * Keys of the conferences that this user has Registrations for, followed by the legacy
+     * conferenceKeysToAttend, not saved with the Profile. Filled in by
+     * hydrateConferenceKeysToAttend, null until then.
+     */
+    @Ignore
+    private List<String> hydratedConferenceKeysToAttend;
+
     /**
      * Just making the default constructor private.
      */
@@ -92,11 +107,39 @@ public class Profile {
     }
 
     /**
-     * Getter for conferenceIdsToAttend.
-     * @return an immutable copy of conferenceIdsToAttend.
+     * Getter for the keys of the conferences that this user registered to attend, as the clients
+     * have always read them: the Registrations filled in by hydrateConferenceKeysToAttend,
+     * followed by the legacy keys not migrated yet.
+     * @return an unmodifiable list of the keys of the conferences to attend, only the legacy
+     *     ones until hydrateConferenceKeysToAttend is called.
      */
     public List<String> getConferenceKeysToAttend() {
-        return ImmutableList.copyOf(conferenceKeysToAttend);
+        return hydratedConferenceKeysToAttend != null
+                ? hydratedConferenceKeysToAttend
+                : Collections.unmodifiableList(conferenceKeysToAttend);
+    }
+
+    /**
+     * Getter for the legacy conferenceKeysToAttend. Use Registrations for the new ones.
+     * @return an unmodifiable view of conferenceKeysToAttend.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public List<String> getLegacyConferenceKeysToAttend() {
+        return Collections.unmodifiableList(conferenceKeysToAttend);
+    }
+
+    /**
+     * Reads the keys of the conferences that this user has Registrations for, with a keys-only
+     * ancestor query, so that getConferenceKeysToAttend returns them.
+     */
+    public void hydrateConferenceKeysToAttend() {
+        List<String> conferenceKeys = new ArrayList<>();
+        for (Key<Registration> registrationKey : ofy().load().type(Registration.class)
+                .ancestor(Key.create(Profile.class, userId)).keys()) {
+            conferenceKeys.add(registrationKey.getName());
+        }
+        conferenceKeys.addAll(conferenceKeysToAttend);
+        hydratedConferenceKeysToAttend = Collections.unmodifiableList(conferenceKeys);
     }
 
     /**
@@ -114,27 +157,18 @@ public class Profile {
     }
 
     /**
-     * Adds a ConferenceId to conferenceIdsToAttend.
-     *
-     * The method initConferenceIdsToAttend is not thread-safe, but we need a transaction for
-     * calling this method after all, so it is not a practical issue.
+     * Moves the legacy conferenceKeysToAttend to Registrations.
      *
-     * @param conferenceKey a websafe String representation of the Conference Key.
-     */
-    public void addToConferenceKeysToAttend(String conferenceKey) {
-        conferenceKeysToAttend.add(conferenceKey);
-    }
-
-    /**
-     * Remove the conferenceId from conferenceIdsToAttend.
+     * Save the Registrations along with the Profile in a single transaction.
      *
-     * @param conferenceKey a websafe String representation of the Conference Key.
+     * @return the Registrations to save, empty when there is nothing to migrate.
      */
-    public void unregisterFromConference(String conferenceKey) {
-        if (conferenceKeysToAttend.contains(conferenceKey)) {
-            conferenceKeysToAttend.remove(conferenceKey);
-        } else {
-            throw new IllegalArgumentException("Invalid conferenceKey: " + conferenceKey);
+    public List<Registration> migrateRegistrations() {
+        List<Registration> registrations = new ArrayList<>(conferenceKeysToAttend.size());
+        for (String conferenceKey : conferenceKeysToAttend) {
+            registrations.add(new Registration(userId, conferenceKey));
         }
+        conferenceKeysToAttend = new ArrayList<>(0);
+        return registrations;
     }
 }
@@ -0,0 +1,87 @@
+package com.google.devrel.training.conference.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.Parent;
+
+/**
+ * Registration class records that a user registers to attend a Conference.
+ *
+ * A Registration is a child of the attendee's Profile, keyed by the websafe Conference key, so
+ * checking a registration is a key lookup and the Registrations of a user are read with an
+ * ancestor query. The Conference key is indexed, so that the attendees of a Conference can be
+ * queried as well.
+ */
+@Entity
+public class Registration {
+
+    /**
+     * The websafe key of the Conference.
+     */
+    @Id
+    private String websafeConferenceKey;
+
+    /**
+     * Holds the attendee's Profile key as the parent.
+     */
+    @Parent
+    private Key<Profile> profileKey;
+
+    @Index
+    private Key<Conference> conferenceKey;
+
+    /**
+     * The number of seats booked, more than 1 for a group registration.
+     */
+    private int seats = 1;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private Registration() {}
+
+    public Registration(String userId, String websafeConferenceKey) {
+        this(userId, websafeConferenceKey, 1);
+    }
+
+    public Registration(String userId, String websafeConferenceKey, int seats) {
+        this.profileKey = Key.create(Profile.class, userId);
+        this.websafeConferenceKey = websafeConferenceKey;
+        this.conferenceKey = Key.create(websafeConferenceKey);
+        this.seats = seats;
+    }
+
+    /**
+     * Returns the key of the user's Registration for the Conference.
+     *
+     * @param userId The userId of the attendee.
+     * @param websafeConferenceKey The String representation of the Conference key.
+     * @return the key, whether the Registration exists or not.
+     */
+    public static Key<Registration> key(String userId, String websafeConferenceKey) {
+        return Key.create(Key.create(Profile.class, userId), Registration.class,
+                websafeConferenceKey);
+    }
+
+    public Key<Registration> getKey() {
+        return Key.create(profileKey, Registration.class, websafeConferenceKey);
+    }
+
+    public String getUserId() {
+        return profileKey.getName();
+    }
+
+    public String getWebsafeConferenceKey() {
+        return websafeConferenceKey;
+    }
+
+    public Key<Conference> getConferenceKey() {
+        return conferenceKey;
+    }
+
+    public int getSeats() {
+        return seats;
+    }
+}
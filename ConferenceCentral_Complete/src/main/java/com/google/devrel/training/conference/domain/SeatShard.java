@@ -0,0 +1,127 @@
+package com.google.devrel.training.conference.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SeatShard class holds a share of the seats of a popular Conference.
+ *
+ * Each shard is a root entity, so that registrations booking seats from different shards don't
+ * contend on a single entity group. The seats are allotted to the shards up front, so that the
+ * total never exceeds maxAttendees of the Conference.
+ */
+@Entity
+public class SeatShard {
+
+    /**
+     * The websafe Conference key followed by the shard index.
+     */
+    @Id
+    private String id;
+
+    private String websafeConferenceKey;
+
+    /**
+     * The number of seats allotted to this shard.
+     */
+    private int capacity;
+
+    private int seatsAvailable;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private SeatShard() {}
+
+    public SeatShard(String websafeConferenceKey, int index, int capacity) {
+        this.id = shardId(websafeConferenceKey, index);
+        this.websafeConferenceKey = websafeConferenceKey;
+        this.capacity = capacity;
+        this.seatsAvailable = capacity;
+    }
+
+    private static String shardId(String websafeConferenceKey, int index) {
+        return websafeConferenceKey + "-" + index;
+    }
+
+    /**
+     * Returns the keys of all the shards of the Conference.
+     *
+     * @param websafeConferenceKey The String representation of the Conference key.
+     * @param shardCount The number of the shards.
+     * @return the keys of the shards in the order of the index.
+     */
+    public static List<Key<SeatShard>> keysOf(String websafeConferenceKey, int shardCount) {
+        List<Key<SeatShard>> keys = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            keys.add(Key.create(SeatShard.class, shardId(websafeConferenceKey, i)));
+        }
+        return keys;
+    }
+
+    /**
+     * Allots the seats evenly to the given number of shards.
+     *
+     * @param websafeConferenceKey The String representation of the Conference key.
+     * @param maxAttendees The total number of the seats.
+     * @param shardCount The number of the shards.
+     * @return the new shards, whose capacities add up to maxAttendees.
+     */
+    public static List<SeatShard> allot(String websafeConferenceKey, int maxAttendees,
+                                        int shardCount) {
+        List<SeatShard> shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            int capacity = maxAttendees / shardCount + (i < maxAttendees % shardCount ? 1 : 0);
+            shards.add(new SeatShard(websafeConferenceKey, i, capacity));
+        }
+        return shards;
+    }
+
+    public Key<SeatShard> getKey() {
+        return Key.create(SeatShard.class, id);
+    }
+
+    public String getWebsafeConferenceKey() {
+        return websafeConferenceKey;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getSeatsAvailable() {
+        return seatsAvailable;
+    }
+
+    public void bookSeats(final int number) {
+        if (seatsAvailable < number) {
+            throw new IllegalArgumentException("There are no seats available in this shard.");
+        }
+        seatsAvailable = seatsAvailable - number;
+    }
+
+    public void giveBackSeats(final int number) {
+        if (seatsAvailable + number > capacity) {
+            throw new IllegalArgumentException("The number of seats will exceeds the capacity.");
+        }
+        seatsAvailable = seatsAvailable + number;
+    }
+
+    /**
+     * Changes the capacity along with the available seats, keeping the booked seats.
+     *
+     * @param delta The number of seats to add, or to remove when negative.
+     */
+    public void resize(final int delta) {
+        if (seatsAvailable + delta < 0) {
+            throw new IllegalArgumentException("Only " + seatsAvailable
+                    + " seats can be removed from this shard.");
+        }
+        capacity = capacity + delta;
+        seatsAvailable = seatsAvailable + delta;
+    }
+}
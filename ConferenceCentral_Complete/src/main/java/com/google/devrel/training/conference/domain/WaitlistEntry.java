@@ -0,0 +1,86 @@
+package com.google.devrel.training.conference.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.Parent;
+
+/**
+ * WaitlistEntry class records that a user waits for a seat of a sold out Conference.
+ *
+ * Like a Registration, an entry is a child of the user's Profile keyed by the websafe Conference
+ * key, so that promoting the user writes the Registration and removes the entry in a single
+ * entity group. The entries of a Conference are ordered by position.
+ */
+@Entity
+public class WaitlistEntry {
+
+    /**
+     * The websafe key of the Conference.
+     */
+    @Id
+    private String websafeConferenceKey;
+
+    /**
+     * Holds the waiting user's Profile key as the parent.
+     */
+    @Parent
+    private Key<Profile> profileKey;
+
+    @Index
+    private Key<Conference> conferenceKey;
+
+    /**
+     * The time of joining the waitlist in milliseconds, which orders the entries.
+     */
+    @Index
+    private long position;
+
+    /**
+     * The email of the user, for creating the Profile upon promotion if there isn't any.
+     */
+    private String mainEmail;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private WaitlistEntry() {}
+
+    public WaitlistEntry(String userId, String websafeConferenceKey, long position,
+                         String mainEmail) {
+        this.profileKey = Key.create(Profile.class, userId);
+        this.websafeConferenceKey = websafeConferenceKey;
+        this.conferenceKey = Key.create(websafeConferenceKey);
+        this.position = position;
+        this.mainEmail = mainEmail;
+    }
+
+    /**
+     * Returns the key of the user's WaitlistEntry for the Conference.
+     *
+     * @param userId The userId of the waiting user.
+     * @param websafeConferenceKey The String representation of the Conference key.
+     * @return the key, whether the WaitlistEntry exists or not.
+     */
+    public static Key<WaitlistEntry> key(String userId, String websafeConferenceKey) {
+        return Key.create(Key.create(Profile.class, userId), WaitlistEntry.class,
+                websafeConferenceKey);
+    }
+
+    public String getUserId() {
+        return profileKey.getName();
+    }
+
+    public String getWebsafeConferenceKey() {
+        return websafeConferenceKey;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public String getMainEmail() {
+        return mainEmail;
+    }
+}
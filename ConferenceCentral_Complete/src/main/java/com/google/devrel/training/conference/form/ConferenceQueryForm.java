@@ -4,13 +4,24 @@ import static com.google.devrel.training.conference.service.OfyService.ofy;
 
 import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
 import com.google.devrel.training.conference.domain.Conference;
 
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.cmd.Query;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
@@ -20,6 +31,28 @@ public class ConferenceQueryForm {
 
     private static final Logger LOG = Logger.getLogger(ConferenceQueryForm.class.getName());
 
+    /**
+     * The number of Conferences returned in a page when the client doesn't specify pageSize.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 20;
+
+    /**
+     * The upper bound of pageSize, in order to keep a single response reasonably small.
+     */
+    public static final int MAX_PAGE_SIZE = 100;
+
+    /**
+     * The upper bound of Conferences scanned for a page when residual filters are applied in
+     * memory. A page may have fewer Conferences than pageSize, along with nextPageToken, when
+     * the limit is reached.
+     */
+    public static final int MAX_SCANNED_PER_PAGE = 1000;
+
+    /**
+     * The upper bound of sub-queries that IN filters and filter groups expand into.
+     */
+    public static final int MAX_BRANCHES = 30;
+
     /**
      * Enum representing a field type.
      */
@@ -48,6 +81,24 @@ public class ConferenceQueryForm {
         private String getFieldName() {
             return this.fieldName;
         }
+
+        /**
+         * Returns the value of this field of the given Conference, as stored in the datastore.
+         */
+        private Object getValue(Conference conference) {
+            switch (this) {
+                case CITY:
+                    return conference.getCity();
+                case TOPIC:
+                    return conference.getTopics();
+                case MONTH:
+                    return conference.getMonth();
+                case MAX_ATTENDEES:
+                    return conference.getMaxAttendees();
+                default:
+                    throw new IllegalStateException("Unknown field: " + this);
+            }
+        }
     }
 
     /**
@@ -59,7 +110,8 @@ public class ConferenceQueryForm {
         GT(">"),
         LTEQ("<="),
         GTEQ(">="),
-        NE("!=");
+        NE("!="),
+        IN("IN");
 
         private String queryOperator;
 
@@ -75,6 +127,32 @@ public class ConferenceQueryForm {
             return this.queryOperator.contains("<") || this.queryOperator.contains(">") ||
                     this.queryOperator.contains("!");
         }
+
+        /**
+         * Evaluates the operator in memory, the same way as the datastore does.
+         *
+         * @param comparison The result of comparing the actual value with the filter value.
+         */
+        private boolean evaluate(int comparison) {
+            switch (this) {
+                case EQ:
+                    return comparison == 0;
+                case LT:
+                    return comparison < 0;
+                case GT:
+                    return comparison > 0;
+                case LTEQ:
+                    return comparison <= 0;
+                case GTEQ:
+                    return comparison >= 0;
+                case NE:
+                    return comparison != 0;
+                case IN:
+                    throw new IllegalStateException("IN filters are expanded into EQ filters.");
+                default:
+                    throw new IllegalStateException("Unknown operator: " + this);
+            }
+        }
     }
 
     /**
@@ -104,6 +182,116 @@ public class ConferenceQueryForm {
         public String getValue() {
             return value;
         }
+
+        /**
+         * Expands this filter into the filters any of which has to be satisfied.
+         *
+         * @return EQ filters for each of the comma separated values for an IN filter, otherwise
+         * this filter itself.
+         */
+        private List<Filter> expand() {
+            if (operator != Operator.IN) {
+                return ImmutableList.of(this);
+            }
+            List<Filter> alternatives = new ArrayList<>();
+            for (String alternativeValue : getInValues()) {
+                alternatives.add(new Filter(field, Operator.EQ, alternativeValue));
+            }
+            return alternatives;
+        }
+
+        /**
+         * Returns the distinct comma separated values of an IN filter in the canonical order.
+         */
+        private List<String> getInValues() {
+            Set<String> inValues = new HashSet<>();
+            for (String inValue : value.split(",")) {
+                inValue = inValue.trim();
+                if (!inValue.isEmpty()) {
+                    inValues.add(field.fieldType == FieldType.INTEGER
+                            ? String.valueOf(Integer.parseInt(inValue)) : inValue);
+                }
+            }
+            List<String> sortedValues = new ArrayList<>(inValues);
+            Collections.sort(sortedValues);
+            return sortedValues;
+        }
+
+        /**
+         * Returns a canonical String representation of this filter.
+         */
+        private String toCanonicalString() {
+            String canonicalValue;
+            if (operator == Operator.IN) {
+                canonicalValue = getInValues().toString();
+            } else if (field.fieldType == FieldType.INTEGER) {
+                canonicalValue = String.valueOf(Integer.parseInt(value.trim()));
+            } else {
+                canonicalValue = value;
+            }
+            return field.getFieldName() + " " + operator.getQueryOperator() + " " + canonicalValue;
+        }
+
+        /**
+         * Returns the filter value converted to the type of the field.
+         */
+        private Comparable<?> getTypedValue() {
+            if (field.fieldType == FieldType.INTEGER) {
+                return Integer.parseInt(value.trim());
+            }
+            return value;
+        }
+
+        /**
+         * Evaluates this filter against a single property value.
+         */
+        @SuppressWarnings("unchecked")
+        private boolean matchesValue(Object propertyValue) {
+            if (propertyValue == null) {
+                return false;
+            }
+            Comparable<Object> comparable = (Comparable<Object>) propertyValue;
+            return operator.evaluate(comparable.compareTo(getTypedValue()));
+        }
+
+        /**
+         * Evaluates this filter against the Conference in memory.
+         *
+         * Like the datastore, a filter on a multi-valued property such as topics matches when any
+         * of the values matches.
+         *
+         * @param conference The Conference to evaluate.
+         * @return true when the Conference satisfies this filter.
+         */
+        private boolean matches(Conference conference) {
+            Object propertyValue = field.getValue(conference);
+            if (propertyValue instanceof Collection) {
+                for (Object element : (Collection<?>) propertyValue) {
+                    if (matchesValue(element)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return matchesValue(propertyValue);
+        }
+    }
+
+    /**
+     * A class representing a group of filters, any of which has to be satisfied.
+     */
+    public static class FilterGroup {
+        private List<Filter> filters = new ArrayList<>(0);
+
+        public FilterGroup() {}
+
+        public FilterGroup(List<Filter> filters) {
+            this.filters = new ArrayList<>(filters);
+        }
+
+        public List<Filter> getFilters() {
+            return ImmutableList.copyOf(filters);
+        }
     }
 
     /**
@@ -112,27 +300,126 @@ public class ConferenceQueryForm {
     private List<Filter> filters = new ArrayList<>(0);
 
     /**
-     * Holds the first inequalityFilter for checking the feasibility of the whole query.
+     * A list of filter groups, each of which has to be satisfied along with the filters.
+     */
+    private List<FilterGroup> filterGroups = new ArrayList<>(0);
+
+    /**
+     * True when this form is one of the sub-queries expanded from IN filters and filter groups.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private boolean branch;
+
+    /**
+     * Holds the field whose inequality filters are run by the datastore, chosen by planQuery.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private Field inequalityField;
+
+    /**
+     * Holds the inequality filters on the other fields, which are applied in memory.
      */
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
-    private Filter inequalityFilter;
+    private List<Filter> residualFilters = new ArrayList<>(0);
+
+    /**
+     * The maximum number of Conferences to return in a page.
+     */
+    private Integer pageSize;
+
+    /**
+     * The websafe cursor string returned as nextPageToken in the previous page.
+     */
+    private String startCursor;
 
     public ConferenceQueryForm() {}
 
     /**
-     * Checks the feasibility of the whole query.
+     * Plans the query.
+     *
+     * The datastore allows inequality filters on only one field. So when the query has
+     * inequality filters on multiple fields, the filters on the most selective field are run by
+     * the datastore along with all the equality filters, and the rest are applied in memory
+     * as residual filters while iterating the result.
      */
-    private void checkFilters() {
-        for (Filter filter : this.filters) {
+    private void planQuery() {
+        Map<Field, List<Filter>> inequalityFilters = groupInequalityFilters(this.filters);
+        if (!branch) {
+            // The field of a branch is chosen upfront, so that all the branches share the order.
+            inequalityField = mostSelectiveField(inequalityFilters);
+        }
+        residualFilters = new ArrayList<>(0);
+        for (Map.Entry<Field, List<Filter>> entry : inequalityFilters.entrySet()) {
+            if (entry.getKey() != inequalityField) {
+                residualFilters.addAll(entry.getValue());
+            }
+        }
+    }
+
+    private static Map<Field, List<Filter>> groupInequalityFilters(List<Filter> filters) {
+        Map<Field, List<Filter>> inequalityFilters = new LinkedHashMap<>();
+        for (Filter filter : filters) {
             if (filter.operator.isInequalityFilter()) {
-                // Only one inequality filter is allowed.
-                if (inequalityFilter != null && !inequalityFilter.field.equals(filter.field)) {
-                    throw new IllegalArgumentException(
-                            "Inequality filter is allowed on only one field.");
+                if (!inequalityFilters.containsKey(filter.field)) {
+                    inequalityFilters.put(filter.field, new ArrayList<Filter>());
+                }
+                inequalityFilters.get(filter.field).add(filter);
+            }
+        }
+        return inequalityFilters;
+    }
+
+    private static Field mostSelectiveField(Map<Field, List<Filter>> inequalityFilters) {
+        Field mostSelectiveField = null;
+        double bestSelectivity = Double.MAX_VALUE;
+        for (Map.Entry<Field, List<Filter>> entry : inequalityFilters.entrySet()) {
+            double selectivity = estimateSelectivity(entry.getKey(), entry.getValue());
+            if (selectivity < bestSelectivity) {
+                mostSelectiveField = entry.getKey();
+                bestSelectivity = selectivity;
+            }
+        }
+        return mostSelectiveField;
+    }
+
+    /**
+     * Estimates the fraction of Conferences that satisfy all the given inequality filters on a
+     * single field. The smaller, the more selective.
+     *
+     * The month is estimated exactly from the months satisfying the filters, assuming an even
+     * spread over the year. Other fields are estimated from the shape of the filters: a range
+     * bounded on both sides is more selective than a single bound, which in turn is more
+     * selective than not-equal filters.
+     */
+    private static double estimateSelectivity(Field field, List<Filter> filters) {
+        if (field == Field.MONTH) {
+            int matchingMonths = 0;
+            for (int month = 1; month <= 12; month++) {
+                boolean matches = true;
+                for (Filter filter : filters) {
+                    matches = matches && filter.matchesValue(month);
+                }
+                if (matches) {
+                    matchingMonths++;
                 }
-                inequalityFilter = filter;
             }
+            return matchingMonths / 12.0;
+        }
+        boolean lowerBound = false;
+        boolean upperBound = false;
+        for (Filter filter : filters) {
+            lowerBound = lowerBound
+                    || filter.operator == Operator.GT || filter.operator == Operator.GTEQ;
+            upperBound = upperBound
+                    || filter.operator == Operator.LT || filter.operator == Operator.LTEQ;
         }
+        if (lowerBound && upperBound) {
+            return 0.25;
+        }
+        if (lowerBound || upperBound) {
+            return 0.5;
+        }
+        return 0.9;
     }
 
     /**
@@ -151,37 +438,278 @@ public class ConferenceQueryForm {
      * @return this for method chaining.
      */
     public ConferenceQueryForm filter(Filter filter) {
-        if (filter.operator.isInequalityFilter()) {
-            // Only allows inequality filters on a single field.
-            if (inequalityFilter != null && !inequalityFilter.field.equals(filter.field)) {
-                throw new IllegalArgumentException(
-                        "Inequality filter is allowed on only one field.");
+        filters.add(filter);
+        return this;
+    }
+
+    /**
+     * Getter for filterGroups.
+     *
+     * @return The List of filter groups.
+     */
+    public List<FilterGroup> getFilterGroups() {
+        return ImmutableList.copyOf(filterGroups);
+    }
+
+    /**
+     * Adds a group of filters, any of which has to be satisfied.
+     *
+     * @param filters Filter objects, any of which has to be satisfied.
+     * @return this for method chaining.
+     */
+    public ConferenceQueryForm anyOf(Filter... filters) {
+        filterGroups.add(new FilterGroup(ImmutableList.copyOf(filters)));
+        return this;
+    }
+
+    /**
+     * Expands IN filters and filter groups into sub-queries, each of which has only simple
+     * filters. The query is satisfied when any of the sub-queries is.
+     *
+     * All the sub-queries are ordered the same, by getOrdering(), so that their results can be
+     * merged. Their startCursor and nextPageToken are managed by the caller.
+     *
+     * @return the sub-queries, or this form itself when there is nothing to expand.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public List<ConferenceQueryForm> getBranches() {
+        boolean hasInFilters = false;
+        for (Filter filter : filters) {
+            hasInFilters = hasInFilters || filter.operator == Operator.IN;
+        }
+        if (!hasInFilters && filterGroups.isEmpty()) {
+            return ImmutableList.of(this);
+        }
+        List<List<Filter>> conjunctions = new ArrayList<>();
+        conjunctions.add(new ArrayList<Filter>());
+        for (Filter filter : filters) {
+            conjunctions = crossProduct(conjunctions, filter.expand());
+        }
+        for (FilterGroup filterGroup : filterGroups) {
+            List<Filter> alternatives = new ArrayList<>();
+            for (Filter filter : filterGroup.filters) {
+                alternatives.addAll(filter.expand());
             }
-            inequalityFilter = filter;
+            conjunctions = crossProduct(conjunctions, alternatives);
         }
-        filters.add(filter);
+        Field branchInequalityField = chooseBranchInequalityField();
+        List<ConferenceQueryForm> branches = new ArrayList<>(conjunctions.size());
+        for (List<Filter> conjunction : conjunctions) {
+            ConferenceQueryForm branchForm = new ConferenceQueryForm();
+            branchForm.filters = conjunction;
+            branchForm.pageSize = pageSize;
+            branchForm.branch = true;
+            branchForm.inequalityField = branchInequalityField;
+            branches.add(branchForm);
+        }
+        return branches;
+    }
+
+    private static List<List<Filter>> crossProduct(List<List<Filter>> conjunctions,
+                                                   List<Filter> alternatives) {
+        if (conjunctions.size() * alternatives.size() > MAX_BRANCHES) {
+            throw new IllegalArgumentException(
+                    "The query expands into more than " + MAX_BRANCHES + " sub-queries.");
+        }
+        List<List<Filter>> product = new ArrayList<>();
+        for (List<Filter> conjunction : conjunctions) {
+            for (Filter alternative : alternatives) {
+                List<Filter> extended = new ArrayList<>(conjunction);
+                extended.add(alternative);
+                product.add(extended);
+            }
+        }
+        return product;
+    }
+
+    /**
+     * Chooses the inequality field that all the branches run by the datastore.
+     *
+     * The most selective field among the filters shared by all the branches is preferred.
+     * Otherwise the field is used when all the inequality filters in the filter groups are on
+     * that single field, like "month < 3 OR month > 10". Topics can't be used, because the
+     * order of a multi-valued property isn't suitable for merging.
+     */
+    private Field chooseBranchInequalityField() {
+        Map<Field, List<Filter>> sharedInequalityFilters = groupInequalityFilters(filters);
+        sharedInequalityFilters.remove(Field.TOPIC);
+        if (!sharedInequalityFilters.isEmpty()) {
+            return mostSelectiveField(sharedInequalityFilters);
+        }
+        Set<Field> groupInequalityFields = new HashSet<>();
+        for (FilterGroup filterGroup : filterGroups) {
+            groupInequalityFields.addAll(groupInequalityFilters(filterGroup.filters).keySet());
+        }
+        if (groupInequalityFields.size() == 1 && !groupInequalityFields.contains(Field.TOPIC)) {
+            return groupInequalityFields.iterator().next();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the order of the result of getQuery(): by the field of the inequality filters run
+     * by the datastore if any, then by name, and then by key.
+     *
+     * @return a Comparator of Conferences in the order of the query result.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public Comparator<Conference> getOrdering() {
+        planQuery();
+        final Field orderField = inequalityField;
+        final Ordering<Comparable<?>> nullsFirst = Ordering.natural().nullsFirst();
+        return new Comparator<Conference>() {
+            @Override
+            public int compare(Conference conference1, Conference conference2) {
+                ComparisonChain comparisonChain = ComparisonChain.start();
+                if (orderField != null) {
+                    comparisonChain = comparisonChain.compare(
+                            (Comparable<?>) orderField.getValue(conference1),
+                            (Comparable<?>) orderField.getValue(conference2), nullsFirst);
+                }
+                return comparisonChain
+                        .compare(conference1.getName(), conference2.getName(), nullsFirst)
+                        .compare(keyOf(conference1), keyOf(conference2))
+                        .result();
+            }
+        };
+    }
+
+    private static Key<Conference> keyOf(Conference conference) {
+        return Key.create(conference.getProfileKey(), Conference.class, conference.getId());
+    }
+
+    /**
+     * Returns true when the query has filters which the datastore can't run, so that the result
+     * of getQuery() has to be filtered by matches().
+     *
+     * @return true when the query has residual filters.
+     */
+    public boolean hasResidualFilters() {
+        planQuery();
+        return !residualFilters.isEmpty();
+    }
+
+    /**
+     * Applies the residual filters to a Conference returned by getQuery().
+     *
+     * @param conference A Conference returned by getQuery().
+     * @return true when the Conference satisfies all the residual filters.
+     */
+    public boolean matches(Conference conference) {
+        for (Filter filter : residualFilters) {
+            if (!filter.matches(conference)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the effective page size, which is DEFAULT_PAGE_SIZE when not specified, and capped
+     * by MAX_PAGE_SIZE.
+     *
+     * @return The number of Conferences to return in a page.
+     */
+    public int getPageSize() {
+        if (pageSize == null || pageSize <= 0) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        return Math.min(pageSize, MAX_PAGE_SIZE);
+    }
+
+    /**
+     * Getter for startCursor.
+     *
+     * @return The websafe cursor string to start the query at, or null for the first page.
+     */
+    public String getStartCursor() {
+        return startCursor;
+    }
+
+    /**
+     * Sets the page size.
+     *
+     * @param pageSize The maximum number of Conferences to return in a page.
+     * @return this for method chaining.
+     */
+    public ConferenceQueryForm pageSize(int pageSize) {
+        this.pageSize = pageSize;
         return this;
     }
 
+    /**
+     * Sets the cursor to start the query at.
+     *
+     * @param startCursor The nextPageToken returned in the previous page.
+     * @return this for method chaining.
+     */
+    public ConferenceQueryForm startCursor(String startCursor) {
+        this.startCursor = startCursor;
+        return this;
+    }
+
+    /**
+     * Returns a canonical String representation of the query, which is the same for queries
+     * that return the same page regardless of the order of the filters or the format of integer
+     * values. Used as the cache key for the query result.
+     *
+     * @return a canonical String representation of the query.
+     */
+    public String toCanonicalString() {
+        List<String> normalizedFilters = new ArrayList<>(filters.size());
+        for (Filter filter : filters) {
+            normalizedFilters.add(filter.toCanonicalString());
+        }
+        for (FilterGroup filterGroup : filterGroups) {
+            List<String> normalizedGroup = new ArrayList<>(filterGroup.filters.size());
+            for (Filter filter : filterGroup.filters) {
+                normalizedGroup.add(filter.toCanonicalString());
+            }
+            Collections.sort(normalizedGroup);
+            normalizedFilters.add("anyOf " + normalizedGroup);
+        }
+        Collections.sort(normalizedFilters);
+        StringBuilder stringBuilder = new StringBuilder();
+        for (String normalizedFilter : normalizedFilters) {
+            stringBuilder.append(normalizedFilter).append("\n");
+        }
+        stringBuilder.append("pageSize ").append(getPageSize()).append("\n");
+        if (startCursor != null && !startCursor.isEmpty()) {
+            stringBuilder.append("startCursor ").append(startCursor).append("\n");
+        }
+        return stringBuilder.toString();
+    }
+
     /**
      * Returns an Objectify Query object for the specified filters.
+     * The query starts at startCursor if any, and is limited to a single page unless there are
+     * residual filters to apply in memory or this is a branch.
+     *
+     * This form must not have IN filters nor filter groups. Use getBranches() for those.
+     *
+     * The result is ordered by the field of the inequality filters run by the datastore if any,
+     * and then by name.
      *
      * @return an Objectify Query.
+     * @throws IllegalArgumentException when the startCursor is malformed.
      */
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
     public Query<Conference> getQuery() {
-        // First check the feasibility of inequality filters.
-        checkFilters();
+        // First plan which filters the datastore runs.
+        planQuery();
         Query<Conference> query = ofy().load().type(Conference.class);
-        if (inequalityFilter == null) {
+        if (inequalityField == null) {
             // Order by name.
             query = query.order("name");
         } else {
             // If we have any inequality filters, order by the field first.
-            query = query.order(inequalityFilter.field.getFieldName());
+            query = query.order(inequalityField.getFieldName());
             query = query.order("name");
         }
         for (Filter filter : this.filters) {
+            if (residualFilters.contains(filter)) {
+                continue;
+            }
             // Applies filters in order.
             if (filter.field.fieldType == FieldType.STRING) {
                 query = query.filter(String.format("%s %s", filter.field.getFieldName(),
@@ -191,6 +719,21 @@ public class ConferenceQueryForm {
                         filter.operator.getQueryOperator()), Integer.parseInt(filter.value));
             }
         }
+        if (residualFilters.isEmpty() && !branch) {
+            query = query.limit(getPageSize());
+        } else {
+            // The number of entities to scan is unknown, so only size the batches.
+            query = query.chunk(getPageSize());
+        }
+        if (startCursor != null && !startCursor.isEmpty()) {
+            Cursor cursor;
+            try {
+                cursor = Cursor.fromWebSafeString(startCursor);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid startCursor", e);
+            }
+            query = query.startAt(cursor);
+        }
         LOG.info(query.toString());
         return query;
     }
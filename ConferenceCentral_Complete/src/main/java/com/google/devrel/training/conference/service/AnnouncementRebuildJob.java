@@ -0,0 +1,46 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.NearlySoldOut;
+import com.googlecode.objectify.cmd.Query;
+
+import java.util.List;
+
+/**
+ * Rebuilds the NearlySoldOut set from the Conferences, e.g. for the first deployment.
+ *
+ * The nearly sold out Conferences are applied to the set batch by batch, and the Conferences
+ * listed in the set are checked again at the end, which drops the ones that are no longer
+ * nearly sold out. Only the Conferences whose entries change cause a write.
+ */
+public class AnnouncementRebuildJob extends BatchJob<Conference> {
+
+    public static final String NAME = "announcement_rebuild";
+
+    public static final int BATCH_SIZE = 100;
+
+    public AnnouncementRebuildJob() {
+        super(NAME, BATCH_SIZE);
+    }
+
+    @Override
+    protected Query<Conference> query() {
+        return ofy().load().type(Conference.class)
+                .filter("seatsAvailable <", NearlySoldOut.SEATS_THRESHOLD)
+                .filter("seatsAvailable >", 0);
+    }
+
+    @Override
+    protected void process(List<Conference> batch) {
+        for (Conference conference : batch) {
+            Announcements.update(conference);
+        }
+    }
+
+    @Override
+    protected void finish() {
+        Announcements.updateListed();
+    }
+}
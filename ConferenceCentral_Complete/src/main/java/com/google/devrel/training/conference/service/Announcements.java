@@ -0,0 +1,150 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Joiner;
+import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.NearlySoldOut;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maintains the announcement of the nearly sold out Conferences.
+ *
+ * Whenever the seats or the name of a Conference change, the change is applied to the
+ * NearlySoldOut set right away, and the announcement in memcache is dropped when the set has
+ * changed, to be rebuilt by the next read. So the announcement is up to date within the request,
+ * or within the refresh task for the Conferences holding their seats in SeatShards.
+ */
+public class Announcements {
+
+    private static final String MESSAGE_PREFIX =
+            "Last chance to attend! The following conferences are nearly sold out: ";
+
+    /**
+     * Cached in place of the message while no Conference is nearly sold out.
+     */
+    private static final String NO_MESSAGE = "";
+
+    /**
+     * Bounds how long a message put by a reader that lost a race with an update can stay.
+     */
+    private static final int MESSAGE_EXPIRATION_SECONDS = 60;
+
+    /**
+     * How long after an update the message can't be put back. A reader that loaded the
+     * NearlySoldOut set before the update puts its message well within this period.
+     */
+    private static final long NO_READD_MILLIS = 5 * 1000;
+
+    private static MemcacheService memcache() {
+        return MemcacheServiceFactory.getMemcacheService();
+    }
+
+    /**
+     * Applies the changes of the Conference to the NearlySoldOut set. Call this after the
+     * transaction changing the Conference has committed.
+     *
+     * The set is checked against the given Conference first, which usually finds nothing to
+     * change. Otherwise the Conference is loaded again in the transaction updating the set, so
+     * that concurrent changes can't leave it stale whichever order they are applied in.
+     *
+     * @param conference The Conference that has changed.
+     */
+    public static void update(Conference conference) {
+        update(conference.getWebsafeKey(), conference);
+    }
+
+    /**
+     * Applies the Conference to the NearlySoldOut set.
+     *
+     * @param websafeConferenceKey The String representation of the Conference key.
+     * @param conference The Conference, or null when it has been deleted.
+     */
+    private static void update(final String websafeConferenceKey, Conference conference) {
+        NearlySoldOut nearlySoldOut = ofy().load().key(NearlySoldOut.key()).now();
+        if (nearlySoldOut == null
+                ? conference == null || !NearlySoldOut.isNearlySoldOut(conference)
+                : nearlySoldOut.isUpToDate(websafeConferenceKey, conference)) {
+            return;
+        }
+        boolean changed = Transactions.transact(NearlySoldOut.key(), new Work<Boolean>() {
+            @Override
+            public Boolean run() {
+                NearlySoldOut nearlySoldOut = ofy().load().key(NearlySoldOut.key()).now();
+                if (nearlySoldOut == null) {
+                    nearlySoldOut = new NearlySoldOut();
+                }
+                Conference conference = ofy().load()
+                        .key(Key.<Conference>create(websafeConferenceKey)).now();
+                if (!nearlySoldOut.update(websafeConferenceKey, conference)) {
+                    return false;
+                }
+                ofy().save().entity(nearlySoldOut).now();
+                return true;
+            }
+        });
+        if (changed) {
+            memcache().delete(Constants.MEMCACHE_ANNOUNCEMENTS_KEY, NO_READD_MILLIS);
+        }
+    }
+
+    /**
+     * Applies the current state of the Conferences listed in the NearlySoldOut set, which drops
+     * the ones that are no longer nearly sold out.
+     */
+    public static void updateListed() {
+        NearlySoldOut nearlySoldOut = ofy().load().key(NearlySoldOut.key()).now();
+        if (nearlySoldOut == null) {
+            return;
+        }
+        List<Key<Conference>> conferenceKeys = new ArrayList<>();
+        for (String websafeConferenceKey : nearlySoldOut.getWebsafeConferenceKeys()) {
+            conferenceKeys.add(Key.<Conference>create(websafeConferenceKey));
+        }
+        Map<Key<Conference>, Conference> conferences = ofy().load().keys(conferenceKeys);
+        for (Key<Conference> conferenceKey : conferenceKeys) {
+            update(conferenceKey.getString(), conferences.get(conferenceKey));
+        }
+    }
+
+    /**
+     * Returns the announcement, reading the NearlySoldOut set when memcache has lost it.
+     *
+     * @return the message, or null when no Conference is nearly sold out.
+     */
+    public static String getMessage() {
+        String message = (String) memcache().get(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+        if (message == null) {
+            NearlySoldOut nearlySoldOut = ofy().load().key(NearlySoldOut.key()).now();
+            message = nearlySoldOut == null ? NO_MESSAGE : putMessage(nearlySoldOut);
+        }
+        return message.isEmpty() ? null : message;
+    }
+
+    /**
+     * Caches the message built from the NearlySoldOut set, unless an update has dropped the
+     * message in the meantime, as the set may have been read before that update.
+     *
+     * @param nearlySoldOut The NearlySoldOut set, as read by the caller.
+     * @return the message, even when it hasn't been cached.
+     */
+    static String putMessage(NearlySoldOut nearlySoldOut) {
+        List<String> names = nearlySoldOut.getConferenceNames();
+        String message = names.isEmpty()
+                ? NO_MESSAGE : MESSAGE_PREFIX + Joiner.on(", ").skipNulls().join(names);
+        memcache().put(Constants.MEMCACHE_ANNOUNCEMENTS_KEY, message,
+                Expiration.byDeltaSeconds(MESSAGE_EXPIRATION_SECONDS),
+                SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        return message;
+    }
+}
@@ -0,0 +1,162 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Objects;
+import com.google.devrel.training.conference.domain.BatchJobStatus;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Processes the results of a query in batches, each in its own task.
+ *
+ * A run of the job reads a page of the query per task, processes it, records the progress in
+ * a BatchJobStatus, and enqueues the task for the next page with the cursor, so that no single
+ * request has to go through the whole query however large it is. The next task is enqueued in
+ * the transaction recording the progress, and a task whose cursor has been processed already
+ * does nothing, so a retried task never processes a page twice. It may process a page again
+ * when it fails after processing it though, so process has to be idempotent.
+ *
+ * @param <T> The type of the entities processed.
+ */
+public abstract class BatchJob<T> {
+
+    private static final Logger LOG = Logger.getLogger(BatchJob.class.getName());
+
+    private static final String TASK_URL = "/tasks/batch_job";
+
+    private final String name;
+
+    private final int batchSize;
+
+    /**
+     * @param name The name of the job, by which the tasks find the job.
+     * @param batchSize The number of the entities processed in a single task.
+     */
+    protected BatchJob(String name, int batchSize) {
+        this.name = name;
+        this.batchSize = batchSize;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Returns the query for the entities to process, which is run with a limit and a cursor.
+     */
+    protected abstract Query<T> query();
+
+    /**
+     * Processes a batch of the entities.
+     */
+    protected abstract void process(List<T> batch);
+
+    /**
+     * Called after the last batch has been processed. It may be called again when the last task
+     * is retried.
+     */
+    protected void finish() {
+    }
+
+    /**
+     * Starts a run of the job.
+     *
+     * @return the id of the run, which is the id of its BatchJobStatus.
+     */
+    public String start() {
+        final String jobId = name + "-" + UUID.randomUUID();
+        Transactions.transact(BatchJobStatus.key(jobId), new VoidWork() {
+            @Override
+            public void vrun() {
+                ofy().save().entity(new BatchJobStatus(jobId, name, new Date())).now();
+                enqueue(jobId, null);
+            }
+        });
+        LOG.info("Started " + jobId);
+        return jobId;
+    }
+
+    /**
+     * Enqueues the task for the batch at the cursor, in the current transaction.
+     */
+    private void enqueue(String jobId, String cursor) {
+        TaskOptions taskOptions = TaskOptions.Builder.withUrl(TASK_URL)
+                .param("job", name)
+                .param("jobId", jobId);
+        if (cursor != null) {
+            taskOptions.param("cursor", cursor);
+        }
+        QueueFactory.getDefaultQueue().add(ofy().getTransaction(), taskOptions);
+    }
+
+    /**
+     * Processes the batch at the cursor, and enqueues the task for the next batch if there may
+     * be more entities.
+     *
+     * @param jobId The id of the run.
+     * @param cursor The websafe cursor of the batch, or null for the first batch.
+     * @return the websafe cursor of the next batch, or null when the run is done or the batch
+     *     has been processed already.
+     */
+    public String runBatch(final String jobId, final String cursor) {
+        BatchJobStatus status = ofy().load().key(BatchJobStatus.key(jobId)).now();
+        if (status == null || status.isDone() || !Objects.equal(cursor, status.getCursor())) {
+            LOG.info("Skipped a batch of " + jobId + ", which has been processed already.");
+            return null;
+        }
+        Query<T> query = query().limit(batchSize);
+        if (cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+        QueryResultIterator<T> iterator = query.iterator();
+        final List<T> batch = new ArrayList<>(batchSize);
+        while (iterator.hasNext()) {
+            batch.add(iterator.next());
+        }
+        process(batch);
+        final String nextCursor = batch.size() < batchSize
+                ? null : iterator.getCursor().toWebSafeString();
+        if (nextCursor == null) {
+            finish();
+        }
+        BatchJobStatus advanced = Transactions.transact(BatchJobStatus.key(jobId),
+                new Work<BatchJobStatus>() {
+            @Override
+            public BatchJobStatus run() {
+                BatchJobStatus status = ofy().load().key(BatchJobStatus.key(jobId)).now();
+                if (status.isDone() || !Objects.equal(cursor, status.getCursor())) {
+                    return null;
+                }
+                status.advance(batch.size(), nextCursor, new Date());
+                ofy().save().entity(status).now();
+                if (nextCursor != null) {
+                    enqueue(jobId, nextCursor);
+                }
+                return status;
+            }
+        });
+        if (advanced == null) {
+            return null;
+        }
+        LOG.info(String.format("%s: %d entities in %d batches, %.1f entities/s%s", jobId,
+                advanced.getProcessed(), advanced.getBatches(), advanced.getThroughput(),
+                advanced.isDone() ? ", done." : "."));
+        return nextCursor;
+    }
+}
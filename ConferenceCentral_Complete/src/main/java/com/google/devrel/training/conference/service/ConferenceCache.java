@@ -0,0 +1,186 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.devrel.training.conference.domain.Conference;
+import com.googlecode.objectify.Key;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A read-through cache of Conferences for getConference, in two tiers.
+ *
+ * The first tier is a small LRU in the instance memory with a short TTL. The second tier is
+ * memcache, shared by all the instances. Both hold the datastore Entity rather than the
+ * Conference, so that every caller gets its own copy.
+ *
+ * Memcache entries are stamped with Conference.getVersion(). Changing a Conference replaces its
+ * entry with a marker of the new version, and a Conference read from the datastore is stored
+ * only if it's at least as new as the entry it replaces. This way, a slow reader can't put back
+ * a copy from before the change. The first tier of the other instances may serve a stale copy
+ * until its TTL passes.
+ */
+public class ConferenceCache {
+
+    private static final String KEY_PREFIX = "Conference:";
+
+    private static final int LOCAL_MAX_SIZE = 1000;
+
+    private static final int LOCAL_TTL_SECONDS = 5;
+
+    private static final Expiration EXPIRATION = Expiration.byDeltaSeconds(60 * 60);
+
+    private static final Cache<String, Entity> LOCAL_CACHE = CacheBuilder.newBuilder()
+            .maximumSize(LOCAL_MAX_SIZE)
+            .expireAfterWrite(LOCAL_TTL_SECONDS, TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+
+    private static final AtomicLong LOCAL_HITS = new AtomicLong();
+
+    private static final AtomicLong MEMCACHE_HITS = new AtomicLong();
+
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    /**
+     * A memcache entry. The entity is null for the marker left by invalidate().
+     */
+    private static class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long version;
+
+        private final Entity entity;
+
+        private Entry(long version, Entity entity) {
+            this.version = version;
+            this.entity = entity;
+        }
+    }
+
+    /**
+     * A snapshot of the cache counters.
+     */
+    public static class Stats {
+
+        private final long localHits;
+
+        private final long memcacheHits;
+
+        private final long misses;
+
+        private final long evictions;
+
+        private Stats(long localHits, long memcacheHits, long misses, long evictions) {
+            this.localHits = localHits;
+            this.memcacheHits = memcacheHits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        public long getLocalHits() {
+            return localHits;
+        }
+
+        public long getMemcacheHits() {
+            return memcacheHits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * Returns the number of entries evicted from the first tier, by size or by TTL.
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+    }
+
+    private static MemcacheService memcache() {
+        return MemcacheServiceFactory.getMemcacheService();
+    }
+
+    /**
+     * Returns the Conference, reading through the cache tiers.
+     *
+     * @param conferenceKey The key of the Conference.
+     * @return the Conference, or null when there is no Conference with the key.
+     */
+    public static Conference get(Key<Conference> conferenceKey) {
+        String cacheKey = KEY_PREFIX + conferenceKey.getString();
+        Entity entity = LOCAL_CACHE.getIfPresent(cacheKey);
+        if (entity != null) {
+            LOCAL_HITS.incrementAndGet();
+            return ofy().load().fromEntity(entity);
+        }
+        MemcacheService memcache = memcache();
+        IdentifiableValue identifiable = memcache.getIdentifiable(cacheKey);
+        Entry entry = identifiable == null ? null : (Entry) identifiable.getValue();
+        if (entry != null && entry.entity != null) {
+            MEMCACHE_HITS.incrementAndGet();
+            LOCAL_CACHE.put(cacheKey, entry.entity);
+            return ofy().load().fromEntity(entry.entity);
+        }
+
+        MISSES.incrementAndGet();
+        Conference conference = ofy().load().key(conferenceKey).now();
+        if (conference == null) {
+            return null;
+        }
+        entity = ofy().save().toEntity(conference);
+        Entry newEntry = new Entry(conference.getVersion(), entity);
+        boolean stored = false;
+        if (entry == null) {
+            stored = memcache.put(cacheKey, newEntry, EXPIRATION,
+                    SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        } else if (conference.getVersion() >= entry.version) {
+            stored = memcache.putIfUntouched(cacheKey, identifiable, newEntry, EXPIRATION);
+        }
+        // A copy losing the race against invalidate() may be stale, so keep it out of both tiers.
+        if (stored) {
+            LOCAL_CACHE.put(cacheKey, entity);
+        }
+        return conference;
+    }
+
+    /**
+     * Drops the cached copies of the Conference.
+     *
+     * Call this after the transaction changing the Conference has committed.
+     *
+     * @param conference The Conference as saved by the transaction.
+     */
+    public static void invalidate(Conference conference) {
+        String cacheKey = KEY_PREFIX + conference.getWebsafeKey();
+        LOCAL_CACHE.invalidate(cacheKey);
+        memcache().put(cacheKey, new Entry(conference.getVersion(), null), EXPIRATION);
+    }
+
+    /**
+     * Returns the current values of the counters of this instance.
+     */
+    public static Stats getStats() {
+        return new Stats(LOCAL_HITS.get(), MEMCACHE_HITS.get(), MISSES.get(),
+                LOCAL_CACHE.stats().evictionCount());
+    }
+
+    /**
+     * Drops the first tier of this instance. Memcache is left untouched.
+     */
+    public static void clearLocalCache() {
+        LOCAL_CACHE.invalidateAll();
+    }
+}
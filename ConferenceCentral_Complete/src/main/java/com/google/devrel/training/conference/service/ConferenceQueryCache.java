@@ -0,0 +1,153 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.googlecode.objectify.Key;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the result pages of Conference queries in memcache.
+ *
+ * A page is cached as the list of the Conference keys, and served with a single batch get
+ * without running the datastore query. The cache key consists of the canonical representation
+ * of the query and the global conference generation. Creating or updating a Conference bumps
+ * the generation by invalidate(), so that all the pages cached before become unreachable and
+ * simply expire.
+ *
+ * Since the Conferences themselves are loaded fresh, registrations don't invalidate the pages;
+ * the number of available seats isn't a query field.
+ */
+public class ConferenceQueryCache {
+
+    private static final String KEY_PREFIX = "ConferenceQuery:";
+
+    /**
+     * Unreachable pages are left in memcache until they expire. The expiration also bounds the
+     * staleness caused by the eventual consistency of global queries.
+     */
+    private static final Expiration EXPIRATION = Expiration.byDeltaSeconds(5 * 60);
+
+    /**
+     * A page of the query result as stored in memcache.
+     */
+    public static class Page implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<String> websafeConferenceKeys;
+
+        private final String nextPageToken;
+
+        private Page(ArrayList<String> websafeConferenceKeys, String nextPageToken) {
+            this.websafeConferenceKeys = websafeConferenceKeys;
+            this.nextPageToken = nextPageToken;
+        }
+
+        /**
+         * Loads the Conferences of this page with a single batch get, preserving the order.
+         *
+         * @return the Conferences of this page, except those deleted since cached.
+         */
+        public List<Conference> loadConferences() {
+            List<Key<Conference>> conferenceKeys = new ArrayList<>(websafeConferenceKeys.size());
+            for (String websafeConferenceKey : websafeConferenceKeys) {
+                conferenceKeys.add(Key.<Conference>create(websafeConferenceKey));
+            }
+            Map<Key<Conference>, Conference> conferences = ofy().load().keys(conferenceKeys);
+            List<Conference> result = new ArrayList<>(conferenceKeys.size());
+            for (Key<Conference> conferenceKey : conferenceKeys) {
+                Conference conference = conferences.get(conferenceKey);
+                if (conference != null) {
+                    result.add(conference);
+                }
+            }
+            return result;
+        }
+
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+    }
+
+    private static MemcacheService memcache() {
+        return MemcacheServiceFactory.getMemcacheService();
+    }
+
+    /**
+     * Returns the current conference generation, initializing it if absent.
+     *
+     * The generation is initialized with the current time rather than 0, so that when memcache
+     * evicts the counter, the new generation doesn't collide with the older ones.
+     */
+    private static long currentGeneration() {
+        Long generation = memcache().increment(
+                Constants.MEMCACHE_CONFERENCE_GENERATION_KEY, 0L, System.currentTimeMillis());
+        return generation == null ? 0L : generation;
+    }
+
+    /**
+     * Returns the cache key for the query in the current generation.
+     *
+     * Look up and store a page with the same cache key, so that a page read before a change
+     * never gets cached under the generation bumped by the change.
+     *
+     * @param conferenceQueryForm A form object representing the query.
+     * @return the cache key for the query.
+     */
+    public static String cacheKey(ConferenceQueryForm conferenceQueryForm) {
+        String queryHash = Hashing.sha1()
+                .hashString(conferenceQueryForm.toCanonicalString(), Charsets.UTF_8)
+                .toString();
+        return KEY_PREFIX + currentGeneration() + ":" + queryHash;
+    }
+
+    /**
+     * Returns the cached page.
+     *
+     * @param cacheKey The cache key returned by cacheKey.
+     * @return the cached page, or null when the page isn't cached.
+     */
+    public static Page get(String cacheKey) {
+        Object page = memcache().get(cacheKey);
+        return page instanceof Page ? (Page) page : null;
+    }
+
+    /**
+     * Caches a page of the query result.
+     *
+     * @param cacheKey The cache key returned by cacheKey.
+     * @param conferences The Conferences in the page.
+     * @param nextPageToken The token for the next page, or null for the last page.
+     */
+    public static void put(String cacheKey, Collection<Conference> conferences,
+                           String nextPageToken) {
+        ArrayList<String> websafeConferenceKeys = new ArrayList<>(conferences.size());
+        for (Conference conference : conferences) {
+            websafeConferenceKeys.add(conference.getWebsafeKey());
+        }
+        memcache().put(cacheKey, new Page(websafeConferenceKeys, nextPageToken), EXPIRATION);
+    }
+
+    /**
+     * Invalidates all the cached pages by bumping the conference generation.
+     *
+     * Call this after creating a Conference or changing any of its query fields.
+     */
+    public static void invalidate() {
+        memcache().increment(Constants.MEMCACHE_CONFERENCE_GENERATION_KEY, 1L,
+                System.currentTimeMillis());
+    }
+}
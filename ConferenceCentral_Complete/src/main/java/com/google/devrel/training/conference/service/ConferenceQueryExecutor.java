@@ -0,0 +1,226 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.api.server.spi.response.CollectionResponse;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Runs a Conference query and returns a single page of the result.
+ *
+ * A query with IN filters or filter groups is run as concurrent sub-queries, one per branch
+ * returned by ConferenceQueryForm.getBranches(). Since the branches share the order, their
+ * results are merged by a k-way merge, dropping the Conferences matched by more than one
+ * branch. The nextPageToken of such a query holds the cursors of all the branches.
+ */
+public class ConferenceQueryExecutor {
+
+    /**
+     * Separates the cursors of the branches in nextPageToken. Not used by websafe cursors.
+     */
+    private static final String CURSOR_SEPARATOR = ".";
+
+    /**
+     * Marks an exhausted branch in nextPageToken.
+     */
+    private static final String EXHAUSTED = "~";
+
+    /**
+     * The state of a branch during the merge.
+     */
+    private static class BranchIterator {
+
+        private final ConferenceQueryForm branch;
+
+        private final QueryResultIterator<Conference> iterator;
+
+        /**
+         * The websafe cursor pointing right before head, or an empty String for the start.
+         */
+        private String position;
+
+        /**
+         * The websafe cursor pointing right after head.
+         */
+        private String positionAfterHead;
+
+        /**
+         * The next Conference of this branch, or null when the branch is exhausted.
+         */
+        private Conference head;
+
+        private BranchIterator(ConferenceQueryForm branch, String startCursor) {
+            this.branch = branch;
+            this.position = startCursor;
+            if (!startCursor.isEmpty()) {
+                branch.startCursor(startCursor);
+            }
+            // Creating the iterator sends the query without waiting for the result.
+            this.iterator = branch.getQuery().iterator();
+        }
+
+        private void advance() {
+            if (iterator.hasNext()) {
+                head = iterator.next();
+                positionAfterHead = iterator.getCursor().toWebSafeString();
+            } else {
+                head = null;
+            }
+        }
+
+        private void consumeHead() {
+            position = positionAfterHead;
+            advance();
+        }
+
+        private String getPosition() {
+            return head == null ? EXHAUSTED : position;
+        }
+    }
+
+    /**
+     * Returns a page of the query result.
+     *
+     * @param conferenceQueryForm A form object representing the query.
+     * @return a CollectionResponse holding the Conferences of the page, along with the
+     * nextPageToken when there may be more Conferences.
+     */
+    public static CollectionResponse<Conference> fetchPage(
+            ConferenceQueryForm conferenceQueryForm) {
+        List<ConferenceQueryForm> branches = conferenceQueryForm.getBranches();
+        if (branches.size() == 1 && branches.get(0) == conferenceQueryForm) {
+            return fetchSimplePage(conferenceQueryForm);
+        }
+        return fetchMergedPage(conferenceQueryForm, branches);
+    }
+
+    private static CollectionResponse<Conference> fetchSimplePage(
+            ConferenceQueryForm conferenceQueryForm) {
+        int pageSize = conferenceQueryForm.getPageSize();
+        QueryResultIterator<Conference> iterator = conferenceQueryForm.getQuery().iterator();
+        List<Conference> result = new ArrayList<>(pageSize);
+        int scanned = 0;
+        // Apply the residual filters, if any, while streaming the query result.
+        while (result.size() < pageSize && scanned < ConferenceQueryForm.MAX_SCANNED_PER_PAGE
+                && iterator.hasNext()) {
+            Conference conference = iterator.next();
+            scanned++;
+            if (conferenceQueryForm.matches(conference)) {
+                result.add(conference);
+            }
+        }
+        // A full page or a scan cut short means there may be more results, so hand out the
+        // cursor pointing right after the last scanned Conference.
+        String nextPageToken = null;
+        if (result.size() == pageSize || scanned == ConferenceQueryForm.MAX_SCANNED_PER_PAGE) {
+            nextPageToken = iterator.getCursor().toWebSafeString();
+        }
+        return CollectionResponse.<Conference>builder()
+                .setItems(result)
+                .setNextPageToken(nextPageToken)
+                .build();
+    }
+
+    private static CollectionResponse<Conference> fetchMergedPage(
+            ConferenceQueryForm conferenceQueryForm, List<ConferenceQueryForm> branches) {
+        List<String> startCursors = decodeStartCursors(
+                conferenceQueryForm.getStartCursor(), branches.size());
+        // Send all the queries first, so that they run concurrently.
+        List<BranchIterator> branchIterators = new ArrayList<>(branches.size());
+        for (int i = 0; i < branches.size(); i++) {
+            if (!EXHAUSTED.equals(startCursors.get(i))) {
+                branchIterators.add(new BranchIterator(branches.get(i), startCursors.get(i)));
+            }
+        }
+        final Comparator<Conference> ordering = branches.get(0).getOrdering();
+        PriorityQueue<BranchIterator> heads = new PriorityQueue<>(
+                Math.max(1, branchIterators.size()), new Comparator<BranchIterator>() {
+                    @Override
+                    public int compare(BranchIterator branch1, BranchIterator branch2) {
+                        return ordering.compare(branch1.head, branch2.head);
+                    }
+                });
+        for (BranchIterator branchIterator : branchIterators) {
+            branchIterator.advance();
+            if (branchIterator.head != null) {
+                heads.add(branchIterator);
+            }
+        }
+
+        int pageSize = conferenceQueryForm.getPageSize();
+        List<Conference> result = new ArrayList<>(pageSize);
+        int scanned = 0;
+        while (result.size() < pageSize && scanned < ConferenceQueryForm.MAX_SCANNED_PER_PAGE
+                && !heads.isEmpty()) {
+            // Take the smallest Conference, along with the same Conference from other branches.
+            BranchIterator smallest = heads.poll();
+            Conference conference = smallest.head;
+            List<BranchIterator> consumed = new ArrayList<>();
+            consumed.add(smallest);
+            while (!heads.isEmpty() && ordering.compare(heads.peek().head, conference) == 0) {
+                consumed.add(heads.poll());
+            }
+            scanned++;
+            boolean matches = false;
+            for (BranchIterator branchIterator : consumed) {
+                matches = matches || branchIterator.branch.matches(branchIterator.head);
+            }
+            if (matches) {
+                result.add(conference);
+            }
+            for (BranchIterator branchIterator : consumed) {
+                branchIterator.consumeHead();
+                if (branchIterator.head != null) {
+                    heads.add(branchIterator);
+                }
+            }
+        }
+
+        String nextPageToken = null;
+        if (!heads.isEmpty()) {
+            nextPageToken = encodeNextPageToken(startCursors, branchIterators);
+        }
+        return CollectionResponse.<Conference>builder()
+                .setItems(result)
+                .setNextPageToken(nextPageToken)
+                .build();
+    }
+
+    private static List<String> decodeStartCursors(String startCursor, int numberOfBranches) {
+        List<String> startCursors = new ArrayList<>(numberOfBranches);
+        if (startCursor == null || startCursor.isEmpty()) {
+            for (int i = 0; i < numberOfBranches; i++) {
+                startCursors.add("");
+            }
+            return startCursors;
+        }
+        for (String branchCursor : Splitter.on(CURSOR_SEPARATOR).split(startCursor)) {
+            startCursors.add(branchCursor);
+        }
+        if (startCursors.size() != numberOfBranches) {
+            throw new IllegalArgumentException("The startCursor doesn't match the query.");
+        }
+        return startCursors;
+    }
+
+    private static String encodeNextPageToken(List<String> startCursors,
+                                              List<BranchIterator> branchIterators) {
+        List<String> positions = new ArrayList<>(startCursors.size());
+        int branchIteratorIndex = 0;
+        for (String startCursor : startCursors) {
+            if (EXHAUSTED.equals(startCursor)) {
+                positions.add(EXHAUSTED);
+            } else {
+                positions.add(branchIterators.get(branchIteratorIndex++).getPosition());
+            }
+        }
+        return Joiner.on(CURSOR_SEPARATOR).join(positions);
+    }
+}
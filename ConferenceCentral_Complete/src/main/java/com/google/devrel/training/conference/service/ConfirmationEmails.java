@@ -0,0 +1,431 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.utils.SystemProperty;
+import com.google.common.collect.ImmutableMap;
+import com.google.devrel.training.conference.domain.Conference;
+import com.googlecode.objectify.Key;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Sends the confirmation emails through a pull queue.
+ *
+ * The emails are queued as pull tasks and sent by a cron job, which leases the tasks in batches
+ * and sends them over a single mail Transport, no faster than the rate set by RATE_PROPERTY. So
+ * a bulk import of Conferences queues thousands of tasks, but doesn't start thousands of
+ * requests.
+ *
+ * The tasks hold the key of the Conference and the id of the template rather than the text of
+ * the email, so they stay small, and the email shows the Conference as it is when it is sent.
+ * The Conferences of a batch are loaded at once.
+ *
+ * An email that fails to be sent is queued again with an exponential backoff, and after
+ * MAX_ATTEMPTS it is moved to the dead letter queue instead, to be looked into.
+ */
+public class ConfirmationEmails {
+
+    private static final Logger LOG = Logger.getLogger(ConfirmationEmails.class.getName());
+
+    public static final String QUEUE_NAME = "confirmation-email";
+
+    public static final String DEAD_LETTER_QUEUE_NAME = "confirmation-email-dead";
+
+    /**
+     * The system property configuring the maximum number of the emails sent per second.
+     */
+    public static final String RATE_PROPERTY = "conference.confirmationEmail.ratePerSecond";
+
+    public static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * The task parameter holding the number of the failed attempts to send the email.
+     */
+    static final String ATTEMPTS_PARAM = "attempts";
+
+    /**
+     * The number of the tasks leased at once.
+     */
+    static final int LEASE_BATCH_SIZE = 100;
+
+    private static final long LEASE_SECONDS = 5 * 60;
+
+    private static final long BASE_BACKOFF_SECONDS = 30;
+
+    private static final long MAX_BACKOFF_SECONDS = 60 * 60;
+
+    /**
+     * The template of the email confirming the creation of a Conference.
+     */
+    public static final String CONFERENCE_CREATED = "conference_created";
+
+    /**
+     * The template of the email holding the description of the Conference in the task.
+     */
+    static final String CONFERENCE_INFO = "conference_info";
+
+    private static final Map<String, EmailTemplate> TEMPLATES = ImmutableMap.of(
+            CONFERENCE_CREATED, new EmailTemplate("You created a new Conference!",
+                    "Hi, you have created a following conference.\n"
+                    + "Id: {id}\n"
+                    + "Name: {name}\n"
+                    + "{cityLine}{topicLines}{startDateLine}{endDateLine}"
+                    + "Max Attendees: {maxAttendees}\n"),
+            CONFERENCE_INFO, new EmailTemplate("You created a new Conference!",
+                    "Hi, you have created a following conference.\n{conferenceInfo}"));
+
+    private static final String EMAIL_PARAM = "email";
+
+    private static final String TEMPLATE_PARAM = "template";
+
+    private static final String CONFERENCE_KEY_PARAM = "conferenceKey";
+
+    private static final String CONFERENCE_INFO_PARAM = "conferenceInfo";
+
+    private static final Session SESSION = Session.getDefaultInstance(new Properties(), null);
+
+    /**
+     * Sends the emails.
+     */
+    public interface Mailer {
+
+        void send(Message message) throws MessagingException;
+
+        /**
+         * Releases the resources of the Mailer once all the emails have been sent.
+         */
+        void close();
+    }
+
+    /**
+     * Sends the emails over a single Transport, which is connected on the first email.
+     */
+    public static class TransportMailer implements Mailer {
+
+        private Transport transport;
+
+        @Override
+        public void send(Message message) throws MessagingException {
+            if (transport == null) {
+                transport = SESSION.getTransport();
+                transport.connect();
+            }
+            transport.sendMessage(message, message.getAllRecipients());
+        }
+
+        @Override
+        public void close() {
+            if (transport == null) {
+                return;
+            }
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                LOG.log(Level.WARNING, "Failed to close the mail transport.", e);
+            }
+            transport = null;
+        }
+    }
+
+    private static Queue queue() {
+        return QueueFactory.getQueue(QUEUE_NAME);
+    }
+
+    private static int ratePerSecond() {
+        return Math.max(1, Integer.getInteger(RATE_PROPERTY, 10));
+    }
+
+    /**
+     * Queues a confirmation email, which is rendered from the template and the Conference when
+     * it is sent. When called in a transaction, the email is queued only if the transaction
+     * commits.
+     *
+     * @param email The address to send the email to.
+     * @param templateId The id of the template of the email, such as CONFERENCE_CREATED.
+     * @param conferenceKey The key of the Conference the email is about.
+     */
+    public static void enqueue(String email, String templateId, Key<Conference> conferenceKey) {
+        add(TaskOptions.Builder.withMethod(TaskOptions.Method.PULL)
+                .param(EMAIL_PARAM, email)
+                .param(TEMPLATE_PARAM, templateId)
+                .param(CONFERENCE_KEY_PARAM, conferenceKey.getString()));
+    }
+
+    /**
+     * Queues a confirmation email holding the description of the Conference, for the tasks
+     * queued before the emails were rendered from the templates.
+     *
+     * @param email The address to send the email to.
+     * @param conferenceInfo The description of the created Conference.
+     */
+    public static void enqueueWithConferenceInfo(String email, String conferenceInfo) {
+        add(TaskOptions.Builder.withMethod(TaskOptions.Method.PULL)
+                .param(EMAIL_PARAM, email)
+                .param(TEMPLATE_PARAM, CONFERENCE_INFO)
+                .param(CONFERENCE_INFO_PARAM, conferenceInfo));
+    }
+
+    private static void add(TaskOptions taskOptions) {
+        if (ofy().getTransaction() != null) {
+            queue().add(ofy().getTransaction(), taskOptions);
+        } else {
+            queue().add(taskOptions);
+        }
+    }
+
+    /**
+     * Sends the queued emails until the queue is empty or the deadline has passed.
+     *
+     * @param mailer The Mailer sending the emails, which is closed at the end.
+     * @param deadlineMillis The time to stop leasing, in milliseconds since the epoch.
+     * @return the number of the emails sent.
+     */
+    public static int send(Mailer mailer, long deadlineMillis) {
+        long start = System.currentTimeMillis();
+        long millisPerEmail = 1000 / ratePerSecond();
+        int sent = 0;
+        try {
+            while (System.currentTimeMillis() < deadlineMillis) {
+                List<TaskHandle> tasks = queue().leaseTasks(LEASE_SECONDS, TimeUnit.SECONDS,
+                        LEASE_BATCH_SIZE);
+                List<Map<String, String>> paramsList = new ArrayList<>(tasks.size());
+                for (TaskHandle task : tasks) {
+                    paramsList.add(paramsOf(task));
+                }
+                Map<Key<Conference>, Conference> conferences = loadConferences(paramsList);
+                List<TaskHandle> finished = new ArrayList<>(tasks.size());
+                for (int i = 0; i < tasks.size(); i++) {
+                    TaskHandle task = tasks.get(i);
+                    if (System.currentTimeMillis() >= deadlineMillis) {
+                        // Let the next run have the rest right away.
+                        queue().modifyTaskLease(task, 0, TimeUnit.SECONDS);
+                        continue;
+                    }
+                    sleep(start + sent * millisPerEmail - System.currentTimeMillis());
+                    Map<String, String> params = paramsList.get(i);
+                    finished.add(task);
+                    try {
+                        conferenceKeyOf(params);
+                    } catch (IllegalArgumentException e) {
+                        // Retrying can't fix the payload, and mustn't hold up the other emails.
+                        LOG.log(Level.WARNING, String.format(
+                                "Dead lettered a mail to %s with a malformed Conference key",
+                                params.get(EMAIL_PARAM)), e);
+                        deadLetter(params);
+                        continue;
+                    }
+                    try {
+                        Message message = buildMessage(params, conferences);
+                        if (message == null) {
+                            LOG.info("Dropped a confirmation email of a deleted Conference.");
+                        } else {
+                            mailer.send(message);
+                            sent++;
+                        }
+                    } catch (MessagingException | UnsupportedEncodingException
+                            | RuntimeException e) {
+                        LOG.log(Level.WARNING, String.format("Failed to send a mail to %s",
+                                params.get(EMAIL_PARAM)), e);
+                        retryLater(params);
+                    }
+                }
+                if (!finished.isEmpty()) {
+                    queue().deleteTask(finished);
+                }
+                if (tasks.size() < LEASE_BATCH_SIZE) {
+                    break;
+                }
+            }
+        } finally {
+            mailer.close();
+        }
+        return sent;
+    }
+
+    /**
+     * Returns the key of the Conference of the email, or null when the task holds the
+     * description of the Conference instead.
+     *
+     * @throws IllegalArgumentException when the key is malformed.
+     */
+    private static Key<Conference> conferenceKeyOf(Map<String, String> params) {
+        String websafeConferenceKey = params.get(CONFERENCE_KEY_PARAM);
+        return websafeConferenceKey == null ? null : Key.<Conference>create(websafeConferenceKey);
+    }
+
+    /**
+     * Loads the Conferences of a batch of the emails at once, skipping the malformed keys,
+     * whose tasks send moves to the dead letter queue.
+     */
+    private static Map<Key<Conference>, Conference> loadConferences(
+            List<Map<String, String>> paramsList) {
+        Set<Key<Conference>> conferenceKeys = new HashSet<>();
+        for (Map<String, String> params : paramsList) {
+            try {
+                Key<Conference> conferenceKey = conferenceKeyOf(params);
+                if (conferenceKey != null) {
+                    conferenceKeys.add(conferenceKey);
+                }
+            } catch (IllegalArgumentException e) {
+                // Dead lettered by send.
+            }
+        }
+        if (conferenceKeys.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        return ofy().load().keys(conferenceKeys);
+    }
+
+    /**
+     * Queues a failed email again to be retried after the backoff, or in the dead letter queue
+     * after MAX_ATTEMPTS. The leased task is deleted afterwards, so an email may be sent twice
+     * when the request dies in between, but it is never lost.
+     */
+    private static void retryLater(Map<String, String> params) {
+        String attemptsParam = params.get(ATTEMPTS_PARAM);
+        int attempts = (attemptsParam == null ? 0 : Integer.parseInt(attemptsParam)) + 1;
+        TaskOptions taskOptions = TaskOptions.Builder.withMethod(TaskOptions.Method.PULL);
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (!param.getKey().equals(ATTEMPTS_PARAM)) {
+                taskOptions.param(param.getKey(), param.getValue());
+            }
+        }
+        taskOptions.param(ATTEMPTS_PARAM, Integer.toString(attempts));
+        if (attempts >= MAX_ATTEMPTS) {
+            QueueFactory.getQueue(DEAD_LETTER_QUEUE_NAME).add(taskOptions);
+        } else {
+            queue().add(taskOptions.countdownMillis(
+                    TimeUnit.SECONDS.toMillis(backoffSeconds(attempts))));
+        }
+    }
+
+    /**
+     * Queues an email that can never be sent in the dead letter queue right away.
+     */
+    private static void deadLetter(Map<String, String> params) {
+        TaskOptions taskOptions = TaskOptions.Builder.withMethod(TaskOptions.Method.PULL);
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            taskOptions.param(param.getKey(), param.getValue());
+        }
+        QueueFactory.getQueue(DEAD_LETTER_QUEUE_NAME).add(taskOptions);
+    }
+
+    /**
+     * Returns the delay before the next attempt, which doubles with every failed attempt.
+     */
+    static long backoffSeconds(int attempts) {
+        return Math.min(MAX_BACKOFF_SECONDS,
+                BASE_BACKOFF_SECONDS << Math.min(Math.max(attempts - 1, 0), 20));
+    }
+
+    private static Map<String, String> paramsOf(TaskHandle task) {
+        Map<String, String> params = new HashMap<>();
+        try {
+            for (Map.Entry<String, String> param : task.extractParams()) {
+                params.put(param.getKey(), param.getValue());
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return params;
+    }
+
+    /**
+     * Returns the values of the placeholders for the Conference, each optional line of its
+     * description being empty when the Conference doesn't have it.
+     */
+    static Map<String, String> valuesOf(Conference conference) {
+        Map<String, String> values = new HashMap<>();
+        values.put("id", Long.toString(conference.getId()));
+        values.put("name", conference.getName());
+        values.put("maxAttendees", Integer.toString(conference.getMaxAttendees()));
+        if (conference.getCity() != null) {
+            values.put("cityLine", "City: " + conference.getCity() + "\n");
+        }
+        List<String> topics = conference.getTopics();
+        if (topics != null && !topics.isEmpty()) {
+            StringBuilder stringBuilder = new StringBuilder("Topics:\n");
+            for (String topic : topics) {
+                stringBuilder.append("\t").append(topic).append("\n");
+            }
+            values.put("topicLines", stringBuilder.toString());
+        }
+        if (conference.getStartDate() != null) {
+            values.put("startDateLine", "StartDate: " + conference.getStartDate() + "\n");
+        }
+        if (conference.getEndDate() != null) {
+            values.put("endDateLine", "EndDate: " + conference.getEndDate() + "\n");
+        }
+        return values;
+    }
+
+    /**
+     * Renders the email of the task.
+     *
+     * @return the message, or null when the Conference has been deleted.
+     */
+    private static Message buildMessage(Map<String, String> params,
+            Map<Key<Conference>, Conference> conferences)
+            throws MessagingException, UnsupportedEncodingException {
+        // The tasks queued before the templates hold the description of the Conference.
+        String templateId = params.containsKey(TEMPLATE_PARAM)
+                ? params.get(TEMPLATE_PARAM) : CONFERENCE_INFO;
+        Map<String, String> values = new HashMap<>(params);
+        Key<Conference> conferenceKey = conferenceKeyOf(params);
+        if (conferenceKey != null) {
+            Conference conference = conferences.get(conferenceKey);
+            if (conference == null) {
+                return null;
+            }
+            values.putAll(valuesOf(conference));
+        }
+        EmailTemplate template = TEMPLATES.get(templateId);
+        if (template == null) {
+            throw new MessagingException("Unknown email template " + templateId);
+        }
+        Message message = new MimeMessage(SESSION);
+        InternetAddress from = new InternetAddress(
+                String.format("noreply@%s.appspotmail.com",
+                        SystemProperty.applicationId.get()), "Conference Central");
+        message.setFrom(from);
+        message.addRecipient(Message.RecipientType.TO,
+                new InternetAddress(params.get(EMAIL_PARAM), ""));
+        message.setSubject(template.renderSubject(values));
+        message.setText(template.renderBody(values));
+        return message;
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
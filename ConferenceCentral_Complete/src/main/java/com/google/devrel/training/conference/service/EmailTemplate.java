@@ -0,0 +1,77 @@
+package com.google.devrel.training.conference.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A template of an email, with {placeholders} in its subject and its body.
+ *
+ * The template is split into its literal parts and its placeholders once, when it is created,
+ * so rendering an email only appends the parts and the values.
+ */
+public class EmailTemplate {
+
+    private final List<String> subjectParts;
+
+    private final List<String> bodyParts;
+
+    /**
+     * @param subject The subject, which may hold {placeholders}.
+     * @param body The body, which may hold {placeholders}.
+     */
+    public EmailTemplate(String subject, String body) {
+        this.subjectParts = compile(subject);
+        this.bodyParts = compile(body);
+    }
+
+    /**
+     * Splits the text into the literal parts at the even indexes, and the names of the
+     * placeholders at the odd indexes.
+     */
+    private static List<String> compile(String text) {
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        while (true) {
+            int open = text.indexOf('{', start);
+            int close = open < 0 ? -1 : text.indexOf('}', open);
+            if (close < 0) {
+                parts.add(text.substring(start));
+                return Collections.unmodifiableList(parts);
+            }
+            parts.add(text.substring(start, open));
+            parts.add(text.substring(open + 1, close));
+            start = close + 1;
+        }
+    }
+
+    private static String render(List<String> parts, Map<String, String> values) {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (int i = 0; i < parts.size(); i++) {
+            if (i % 2 == 0) {
+                stringBuilder.append(parts.get(i));
+            } else {
+                String value = values.get(parts.get(i));
+                if (value != null) {
+                    stringBuilder.append(value);
+                }
+            }
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Renders the subject, leaving out the placeholders without values.
+     */
+    public String renderSubject(Map<String, String> values) {
+        return render(subjectParts, values);
+    }
+
+    /**
+     * Renders the body, leaving out the placeholders without values.
+     */
+    public String renderBody(Map<String, String> values) {
+        return render(bodyParts, values);
+    }
+}
@@ -0,0 +1,122 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Conference;
+import com.googlecode.objectify.Key;
+
+import java.util.logging.Logger;
+
+/**
+ * Sells the seats of a Conference with a memcache counter while its registration opens.
+ *
+ * A user is admitted by an atomic increment of the number of seats claimed, which takes a few
+ * milliseconds however many users register at once. The Registration and the seat are written
+ * afterwards by a reconciling task, which retries on contention. The counter never admits more
+ * than Conference.getFlashSaleSeats() users, and the reconciler books the seat in a datastore
+ * transaction as usual, so maxAttendees is never exceeded even when the counter gets lost.
+ *
+ * When memcache evicts the counter, the registrations go through the datastore transactions
+ * again. A user admitted by the counter is then turned away by the reconciler if the seat has
+ * been taken in the meantime.
+ */
+public class FlashSale {
+
+    private static final Logger LOG = Logger.getLogger(FlashSale.class.getName());
+
+    private static final String KEY_PREFIX = "FlashSale:";
+
+    private static final String RECONCILE_TASK_URL = "/tasks/reconcile_flash_sale";
+
+    private static MemcacheService memcache() {
+        return MemcacheServiceFactory.getMemcacheService();
+    }
+
+    private static String counterKey(String websafeConferenceKey) {
+        return KEY_PREFIX + websafeConferenceKey;
+    }
+
+    /**
+     * Resets the counter. Call this after the transaction opening the flash sale has committed.
+     *
+     * @param websafeConferenceKey The String representation of the Conference key.
+     */
+    public static void open(String websafeConferenceKey) {
+        memcache().put(counterKey(websafeConferenceKey), 0L);
+    }
+
+    /**
+     * Drops the counter. Call this after the transaction closing the flash sale has committed.
+     *
+     * @param websafeConferenceKey The String representation of the Conference key.
+     */
+    public static void close(String websafeConferenceKey) {
+        memcache().delete(counterKey(websafeConferenceKey));
+    }
+
+    /**
+     * Claims a seat with the counter, and enqueues the task writing the Registration.
+     *
+     * @param conference The Conference on a flash sale.
+     * @param userId The userId of the user.
+     * @param mainEmail The email of the user, for creating the Profile if there isn't any.
+     * @return true when the user has been admitted, false when the seats are sold out, or null
+     *     when the counter has been lost and the registration should go through a transaction.
+     */
+    public static Boolean admit(Conference conference, String userId, String mainEmail) {
+        String websafeConferenceKey = conference.getWebsafeKey();
+        Long claimed = memcache().increment(counterKey(websafeConferenceKey), 1);
+        if (claimed == null) {
+            return null;
+        }
+        if (claimed > conference.getFlashSaleSeats()) {
+            giveBack(websafeConferenceKey);
+            return false;
+        }
+        try {
+            QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(RECONCILE_TASK_URL)
+                    .param("websafeConferenceKey", websafeConferenceKey)
+                    .param("userId", userId)
+                    .param("mainEmail", mainEmail));
+        } catch (RuntimeException e) {
+            giveBack(websafeConferenceKey);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Returns a seat to the counter, so that another user can claim it.
+     *
+     * Decrementing the counter from 0 has no effect, so the seats of registrations made before
+     * the flash sale are not resold by the counter.
+     *
+     * @param websafeConferenceKey The String representation of the Conference key.
+     */
+    public static void giveBack(String websafeConferenceKey) {
+        memcache().increment(counterKey(websafeConferenceKey), -1);
+    }
+
+    /**
+     * Writes the Registration of an admitted user and books the seat, or returns the seat to
+     * the counter when the user can't be registered.
+     *
+     * @param websafeConferenceKey The String representation of the Conference key.
+     * @param userId The userId of the admitted user.
+     * @param mainEmail The email of the admitted user.
+     */
+    public static void reconcile(String websafeConferenceKey, String userId, String mainEmail) {
+        Conference conference = ofy().load().key(Key.<Conference>create(websafeConferenceKey))
+                .now();
+        if (conference == null
+                || SeatBooking.register(conference, userId, mainEmail)
+                        != SeatBooking.Result.REGISTERED) {
+            LOG.warning("Couldn't register " + userId + " admitted to " + websafeConferenceKey);
+            giveBack(websafeConferenceKey);
+        }
+    }
+}
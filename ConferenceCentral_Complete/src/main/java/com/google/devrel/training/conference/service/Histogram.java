@@ -0,0 +1,114 @@
+package com.google.devrel.training.conference.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values in log-linear buckets, in the manner of
+ * HdrHistogram.
+ *
+ * Values below SUB_BUCKETS have a bucket each. Above, every power of 2 is split into SUB_BUCKETS
+ * buckets, so a percentile is reported within about 6% of the recorded value. Recording is an
+ * atomic increment of a bucket and of the totals, so the histogram can be always on. Values
+ * above MAX_VALUE are recorded as MAX_VALUE.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The largest value that is told apart, about 19 hours in microseconds.
+     */
+    public static final long MAX_VALUE = (1L << 36) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Returns the index of the bucket holding the value.
+     */
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the largest value held by the bucket.
+     */
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        long bounded = Math.max(0, Math.min(value, MAX_VALUE));
+        counts.incrementAndGet(indexOf(bounded));
+        count.incrementAndGet();
+        sum.addAndGet(bounded);
+        long currentMax = max.get();
+        while (bounded > currentMax && !max.compareAndSet(currentMax, bounded)) {
+            currentMax = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Returns the value at the given percentile, as the highest value of its bucket, but no more
+     * than the maximum recorded.
+     *
+     * The buckets are read one by one while values may still be recorded, so the result is
+     * approximate under concurrent recording.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return the value, or 0 when nothing has been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
@@ -0,0 +1,150 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.ConflictException;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.io.Serializable;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Remembers the outcomes of the requests carrying an Idempotency-Key header for a while, so that
+ * a client retrying on a timeout gets the original outcome instead of running the request again.
+ *
+ * The records are scoped by the user and the operation, and live in memcache for TTL_SECONDS.
+ * A lost record only makes a retry run the request again, which the transactions guard against
+ * anyway, e.g. by answering that the user has already registered.
+ *
+ * All the methods do nothing when the idempotencyKey is null.
+ */
+public class IdempotentRequests {
+
+    private static final Logger LOG = Logger.getLogger(IdempotentRequests.class.getName());
+
+    public static final String HEADER = "Idempotency-Key";
+
+    /**
+     * How long the outcome of a request is remembered.
+     */
+    public static final int TTL_SECONDS = 60 * 60;
+
+    /**
+     * Memcache keys are limited to 250 bytes.
+     */
+    private static final int MAX_KEY_LENGTH = 128;
+
+    private static final String KEY_PREFIX = "Idempotency:";
+
+    /**
+     * Recorded while the first request is in progress.
+     */
+    private static final String PENDING = "PENDING";
+
+    /**
+     * The number of attempts to record a request, beyond which memcache is taken as unavailable.
+     */
+    static final int MAX_RESERVE_ATTEMPTS = 3;
+
+    private static MemcacheService memcache() {
+        return MemcacheServiceFactory.getMemcacheService();
+    }
+
+    private static String recordKey(String userId, String operation, String idempotencyKey) {
+        return KEY_PREFIX + userId + ":" + operation + ":" + idempotencyKey;
+    }
+
+    /**
+     * Returns the Idempotency-Key of the request.
+     *
+     * @param request The request injected by the cloud endpoints, or null.
+     * @return the key, or null when the request doesn't carry one.
+     * @throws BadRequestException when the key is too long.
+     */
+    public static String keyOf(HttpServletRequest request) throws BadRequestException {
+        String idempotencyKey = request == null ? null : request.getHeader(HEADER);
+        if (idempotencyKey == null || idempotencyKey.isEmpty()) {
+            return null;
+        }
+        if (idempotencyKey.length() > MAX_KEY_LENGTH) {
+            throw new BadRequestException(HEADER + " must be at most " + MAX_KEY_LENGTH
+                    + " characters.");
+        }
+        return idempotencyKey;
+    }
+
+    /**
+     * Records the value for the request unless there is a record already.
+     *
+     * When memcache is unavailable, the request runs without the idempotency guarantee after
+     * MAX_RESERVE_ATTEMPTS, rather than failing.
+     *
+     * @return null when the value has been recorded or can't be, otherwise the value recorded
+     *     before.
+     */
+    public static Serializable reserve(String userId, String operation, String idempotencyKey,
+                                       Serializable value) {
+        if (idempotencyKey == null) {
+            return null;
+        }
+        String recordKey = recordKey(userId, operation, idempotencyKey);
+        for (int attempt = 0; attempt < MAX_RESERVE_ATTEMPTS; attempt++) {
+            if (memcache().put(recordKey, value, Expiration.byDeltaSeconds(TTL_SECONDS),
+                    SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+                return null;
+            }
+            Serializable recorded = (Serializable) memcache().get(recordKey);
+            // Otherwise the record may have been evicted in the meantime, so try again.
+            if (recorded != null) {
+                return recorded;
+            }
+        }
+        LOG.warning("Couldn't record " + recordKey + ", running the request without the "
+                + HEADER + ".");
+        return null;
+    }
+
+    /**
+     * Marks the request as in progress, unless it has been seen before.
+     *
+     * Call complete or abandon once the request has finished.
+     *
+     * @return null when the request is new, otherwise the outcome of the first request.
+     * @throws ConflictException when the first request is still in progress.
+     */
+    public static Serializable begin(String userId, String operation, String idempotencyKey)
+            throws ConflictException {
+        Serializable recorded = reserve(userId, operation, idempotencyKey, PENDING);
+        if (PENDING.equals(recorded)) {
+            throw new ConflictException("The request with the same " + HEADER
+                    + " is in progress.");
+        }
+        return recorded;
+    }
+
+    /**
+     * Records the outcome of the request, which the retries will get.
+     */
+    public static void complete(String userId, String operation, String idempotencyKey,
+                                Serializable outcome) {
+        if (idempotencyKey == null) {
+            return;
+        }
+        memcache().put(recordKey(userId, operation, idempotencyKey), outcome,
+                Expiration.byDeltaSeconds(TTL_SECONDS));
+    }
+
+    /**
+     * Forgets the request that has failed, so that it can be retried.
+     */
+    public static void abandon(String userId, String operation, String idempotencyKey) {
+        if (idempotencyKey == null) {
+            return;
+        }
+        memcache().delete(recordKey(userId, operation, idempotencyKey));
+    }
+}
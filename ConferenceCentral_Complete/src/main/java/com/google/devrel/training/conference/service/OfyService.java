@@ -1,8 +1,13 @@
 package com.google.devrel.training.conference.service;
 
 import com.google.devrel.training.conference.domain.AppEngineUser;
+import com.google.devrel.training.conference.domain.BatchJobStatus;
 import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.NearlySoldOut;
 import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.google.devrel.training.conference.domain.WaitlistEntry;
 import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.ObjectifyFactory;
 import com.googlecode.objectify.ObjectifyService;
@@ -16,8 +21,13 @@ public class OfyService {
      */
     static {
         factory().register(AppEngineUser.class);
+        factory().register(BatchJobStatus.class);
         factory().register(Conference.class);
+        factory().register(NearlySoldOut.class);
         factory().register(Profile.class);
+        factory().register(Registration.class);
+        factory().register(SeatShard.class);
+        factory().register(WaitlistEntry.class);
     }
 
     /**
@@ -0,0 +1,108 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Propagates the organizer's display name to the Conferences the organizer created.
+ *
+ * The Conferences hold a denormalized copy of the name, so that reading them doesn't need a
+ * Profile lookup. When the organizer renames the Profile, the copies are updated asynchronously
+ * by a chain of tasks, each of which updates a batch of Conferences in a single transaction.
+ */
+public class OrganizerDisplayNameFanOut {
+
+    /**
+     * The number of Conferences updated in a single task.
+     */
+    public static final int BATCH_SIZE = 100;
+
+    private static final String TASK_URL = "/tasks/update_organizer_display_name";
+
+    /**
+     * Enqueues the first task for propagating the organizer's display name.
+     *
+     * @param userId The userId of the organizer.
+     */
+    public static void enqueue(String userId) {
+        enqueue(userId, null);
+    }
+
+    private static void enqueue(String userId, String cursor) {
+        TaskOptions taskOptions = TaskOptions.Builder.withUrl(TASK_URL).param("userId", userId);
+        if (cursor != null) {
+            taskOptions.param("cursor", cursor);
+        }
+        QueueFactory.getDefaultQueue().add(taskOptions);
+    }
+
+    /**
+     * Updates a batch of the organizer's Conferences, and enqueues the next task if there may be
+     * more Conferences to update.
+     *
+     * The organizer's Conferences share the Profile as their parent, so a batch is updated in a
+     * single entity group transaction, which keeps concurrent seat updates safe.
+     *
+     * @param userId The userId of the organizer.
+     * @param cursor The websafe cursor to start at, or null for the first batch.
+     * @return the websafe cursor for the next batch, or null when all Conferences are done.
+     */
+    public static String updateBatch(String userId, String cursor) {
+        final Key<Profile> profileKey = Key.create(Profile.class, userId);
+        Profile profile = ofy().load().key(profileKey).now();
+        if (profile == null) {
+            return null;
+        }
+        final String displayName = profile.getDisplayName();
+        Query<Conference> query = ofy().load().type(Conference.class).ancestor(profileKey)
+                .limit(BATCH_SIZE);
+        if (cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+        QueryResultIterator<Key<Conference>> iterator = query.keys().iterator();
+        final List<Key<Conference>> conferenceKeys = new ArrayList<>(BATCH_SIZE);
+        while (iterator.hasNext()) {
+            conferenceKeys.add(iterator.next());
+        }
+        if (!conferenceKeys.isEmpty()) {
+            List<Conference> updated = Transactions.transact(profileKey,
+                    new Work<List<Conference>>() {
+                @Override
+                public List<Conference> run() {
+                    Map<Key<Conference>, Conference> conferences =
+                            ofy().load().keys(conferenceKeys);
+                    List<Conference> updated = new ArrayList<>(conferences.size());
+                    for (Conference conference : conferences.values()) {
+                        if (conference.updateOrganizerDisplayName(displayName)) {
+                            updated.add(conference);
+                        }
+                    }
+                    ofy().save().entities(updated).now();
+                    return updated;
+                }
+            });
+            for (Conference conference : updated) {
+                ConferenceCache.invalidate(conference);
+            }
+        }
+        if (conferenceKeys.size() < BATCH_SIZE) {
+            return null;
+        }
+        String nextCursor = iterator.getCursor().toWebSafeString();
+        enqueue(userId, nextCursor);
+        return nextCursor;
+    }
+}
@@ -0,0 +1,104 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.cmd.Query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves Profile.conferenceKeysToAttend to Registration entities.
+ *
+ * All the Profiles are migrated by a chain of tasks, each of which migrates a batch of Profiles.
+ * Until the chain is done, the transactions registering and unregistering migrate the Profile
+ * they touch as well, so the legacy keys only have to be considered where Registrations are
+ * read without a Profile transaction.
+ */
+public class RegistrationMigration {
+
+    /**
+     * The number of Profiles migrated in a single task.
+     */
+    public static final int BATCH_SIZE = 100;
+
+    private static final String TASK_URL = "/tasks/migrate_registrations";
+
+    /**
+     * Enqueues the first task for migrating all the Profiles.
+     */
+    public static void enqueue() {
+        enqueue(null);
+    }
+
+    private static void enqueue(String cursor) {
+        TaskOptions taskOptions = TaskOptions.Builder.withUrl(TASK_URL);
+        if (cursor != null) {
+            taskOptions.param("cursor", cursor);
+        }
+        QueueFactory.getDefaultQueue().add(taskOptions);
+    }
+
+    /**
+     * Migrates the Profile. Call this in the transaction that has loaded the Profile.
+     *
+     * @param profile The Profile, which is saved only when it had legacy keys.
+     * @return true when the Profile has been migrated.
+     */
+    public static boolean migrate(Profile profile) {
+        List<Registration> registrations = profile.migrateRegistrations();
+        if (registrations.isEmpty()) {
+            return false;
+        }
+        ofy().save().entities(registrations).now();
+        ofy().save().entity(profile).now();
+        return true;
+    }
+
+    /**
+     * Migrates a batch of Profiles, and enqueues the next task if there may be more Profiles to
+     * migrate.
+     *
+     * Each Profile is migrated in its own transaction, since a Profile and its Registrations
+     * form an entity group.
+     *
+     * @param cursor The websafe cursor to start at, or null for the first batch.
+     * @return the websafe cursor for the next batch, or null when all Profiles are done.
+     */
+    public static String migrateBatch(String cursor) {
+        Query<Profile> query = ofy().load().type(Profile.class).limit(BATCH_SIZE);
+        if (cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+        QueryResultIterator<Key<Profile>> iterator = query.keys().iterator();
+        List<Key<Profile>> profileKeys = new ArrayList<>(BATCH_SIZE);
+        while (iterator.hasNext()) {
+            profileKeys.add(iterator.next());
+        }
+        for (final Key<Profile> profileKey : profileKeys) {
+            Transactions.transact(profileKey, new VoidWork() {
+                @Override
+                public void vrun() {
+                    Profile profile = ofy().load().key(profileKey).now();
+                    if (profile != null) {
+                        migrate(profile);
+                    }
+                }
+            });
+        }
+        if (profileKeys.size() < BATCH_SIZE) {
+            return null;
+        }
+        String nextCursor = iterator.getCursor().toWebSafeString();
+        enqueue(nextCursor);
+        return nextCursor;
+    }
+}
@@ -0,0 +1,303 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Always-on metrics of the requests served by this instance, per endpoint: a latency histogram,
+ * the errors, the datastore and memcache calls, and the payload sizes of the calls.
+ *
+ * MetricsFilter times the requests. The calls are counted by an ApiProxy Delegate wrapping the
+ * one of the runtime, and attributed to the endpoint of the request running on the calling
+ * thread. Like the statistics of Transactions, the metrics are kept in the memory of the
+ * instance.
+ */
+public class RequestMetrics {
+
+    /**
+     * The number of endpoints tracked, beyond which the requests are recorded as OTHER.
+     */
+    private static final int MAX_ENDPOINTS = 200;
+
+    public static final String OTHER = "other";
+
+    private static final String DATASTORE_PACKAGE = "datastore_v3";
+
+    private static final String MEMCACHE_PACKAGE = "memcache";
+
+    private static final ConcurrentMap<String, EndpointMetrics> ENDPOINTS =
+            new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<EndpointMetrics> CURRENT = new ThreadLocal<>();
+
+    /**
+     * The metrics of an endpoint.
+     */
+    public static class EndpointMetrics {
+
+        private final String endpoint;
+
+        private final Histogram latencyMicros = new Histogram();
+
+        private final AtomicLong errors = new AtomicLong();
+
+        private final AtomicLong datastoreCalls = new AtomicLong();
+
+        private final AtomicLong memcacheCalls = new AtomicLong();
+
+        private final Histogram requestBytes = new Histogram();
+
+        private final Histogram responseBytes = new Histogram();
+
+        private EndpointMetrics(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        /**
+         * The latencies of the requests in microseconds, which also counts the requests.
+         */
+        public Histogram getLatencyMicros() {
+            return latencyMicros;
+        }
+
+        /**
+         * The number of requests that threw or responded with a 5xx status.
+         */
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public long getDatastoreCalls() {
+            return datastoreCalls.get();
+        }
+
+        public long getMemcacheCalls() {
+            return memcacheCalls.get();
+        }
+
+        /**
+         * The sizes of the datastore and memcache requests in bytes.
+         */
+        public Histogram getRequestBytes() {
+            return requestBytes;
+        }
+
+        /**
+         * The sizes of the datastore and memcache responses in bytes.
+         */
+        public Histogram getResponseBytes() {
+            return responseBytes;
+        }
+    }
+
+    /**
+     * Returns the metrics of the endpoint, created on the first request.
+     */
+    private static EndpointMetrics metricsOf(String endpoint) {
+        EndpointMetrics metrics = ENDPOINTS.get(endpoint);
+        if (metrics != null) {
+            return metrics;
+        }
+        if (ENDPOINTS.size() >= MAX_ENDPOINTS && !OTHER.equals(endpoint)) {
+            return metricsOf(OTHER);
+        }
+        EndpointMetrics created = new EndpointMetrics(endpoint);
+        metrics = ENDPOINTS.putIfAbsent(endpoint, created);
+        return metrics == null ? created : metrics;
+    }
+
+    /**
+     * Starts attributing the calls of the current thread to the endpoint.
+     *
+     * @param endpoint The name of the endpoint.
+     * @return the start time to pass to end.
+     */
+    public static long begin(String endpoint) {
+        CURRENT.set(metricsOf(endpoint));
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the request started by begin on the current thread.
+     *
+     * @param startNanos The start time returned by begin.
+     * @param failed Whether the request has failed.
+     */
+    public static void end(long startNanos, boolean failed) {
+        EndpointMetrics metrics = CURRENT.get();
+        CURRENT.remove();
+        if (metrics == null) {
+            return;
+        }
+        metrics.latencyMicros.record(
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        if (failed) {
+            metrics.errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the metrics of all the endpoints, by the name of the endpoint.
+     */
+    public static Map<String, EndpointMetrics> snapshot() {
+        return new TreeMap<>(ENDPOINTS);
+    }
+
+    /**
+     * Clears the metrics. Mainly for testing.
+     */
+    public static void clear() {
+        ENDPOINTS.clear();
+    }
+
+    /**
+     * Wraps the ApiProxy Delegate of the runtime with the one counting the calls, unless it has
+     * been wrapped already.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public static synchronized void install() {
+        Delegate delegate = ApiProxy.getDelegate();
+        if (delegate != null && !(delegate instanceof CountingDelegate)) {
+            ApiProxy.setDelegate(new CountingDelegate(delegate));
+        }
+    }
+
+    /**
+     * Counts the calls of the requests being recorded, and passes them on.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static class CountingDelegate implements Delegate<Environment> {
+
+        private final Delegate<Environment> delegate;
+
+        private CountingDelegate(Delegate<Environment> delegate) {
+            this.delegate = delegate;
+        }
+
+        /**
+         * Counts the call, and returns the metrics to record its response in.
+         */
+        private static EndpointMetrics count(String packageName, byte[] request) {
+            EndpointMetrics metrics = CURRENT.get();
+            if (metrics == null) {
+                return null;
+            }
+            if (DATASTORE_PACKAGE.equals(packageName)) {
+                metrics.datastoreCalls.incrementAndGet();
+            } else if (MEMCACHE_PACKAGE.equals(packageName)) {
+                metrics.memcacheCalls.incrementAndGet();
+            } else {
+                return null;
+            }
+            metrics.requestBytes.record(request == null ? 0 : request.length);
+            return metrics;
+        }
+
+        @Override
+        public byte[] makeSyncCall(Environment environment, String packageName,
+                                   String methodName, byte[] request) throws ApiProxyException {
+            EndpointMetrics metrics = count(packageName, request);
+            byte[] response = delegate.makeSyncCall(environment, packageName, methodName,
+                    request);
+            if (metrics != null && response != null) {
+                metrics.responseBytes.record(response.length);
+            }
+            return response;
+        }
+
+        @Override
+        public Future<byte[]> makeAsyncCall(Environment environment, String packageName,
+                                            String methodName, byte[] request,
+                                            ApiConfig apiConfig) {
+            EndpointMetrics metrics = count(packageName, request);
+            Future<byte[]> response = delegate.makeAsyncCall(environment, packageName,
+                    methodName, request, apiConfig);
+            return metrics == null ? response : new SizedResponse(response, metrics);
+        }
+
+        @Override
+        public void log(Environment environment, LogRecord record) {
+            delegate.log(environment, record);
+        }
+
+        @Override
+        public void flushLogs(Environment environment) {
+            delegate.flushLogs(environment);
+        }
+
+        @Override
+        public List<Thread> getRequestThreads(Environment environment) {
+            return delegate.getRequestThreads(environment);
+        }
+    }
+
+    /**
+     * Records the size of an asynchronous response when it's first read.
+     */
+    private static class SizedResponse implements Future<byte[]> {
+
+        private final Future<byte[]> response;
+
+        private final EndpointMetrics metrics;
+
+        private final AtomicBoolean recorded = new AtomicBoolean();
+
+        private SizedResponse(Future<byte[]> response, EndpointMetrics metrics) {
+            this.response = response;
+            this.metrics = metrics;
+        }
+
+        private byte[] record(byte[] bytes) {
+            if (bytes != null && recorded.compareAndSet(false, true)) {
+                metrics.responseBytes.record(bytes.length);
+            }
+            return bytes;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return response.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return response.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return response.isDone();
+        }
+
+        @Override
+        public byte[] get() throws InterruptedException, ExecutionException {
+            return record(response.get());
+        }
+
+        @Override
+        public byte[] get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            return record(response.get(timeout, unit));
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.google.devrel.training.conference.domain.WaitlistEntry;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Books and gives back the seats of the registrations, for ConferenceApi as well as for the
+ * tasks registering a user where there is no signed in User.
+ *
+ * The seats are booked from the Conference or from its SeatShards in the same transaction as
+ * the Registration. The user's WaitlistEntry, if any, is removed in that transaction as well.
+ */
+public class SeatBooking {
+
+    /**
+     * The outcome of a registration or of an unregistration.
+     */
+    public enum Result {
+        REGISTERED,
+        ALREADY_REGISTERED,
+        NOT_WAITING,
+        SOLD_OUT,
+        NOT_FOUND,
+        UNREGISTERED,
+        NOT_REGISTERED,
+        /**
+         * The seats of a group couldn't be given back to the shards at the moment.
+         */
+        CONTENDED
+    }
+
+    /**
+     * The outcome of a transaction on a Conference holding its seats, along with the
+     * Conference as saved, whose cached copies are dropped after the commit.
+     */
+    private static class Outcome {
+
+        private final Result result;
+
+        private final Conference conference;
+
+        private Outcome(Result result, Conference conference) {
+            this.result = result;
+            this.conference = conference;
+        }
+
+        private Outcome(Result result) {
+            this(result, null);
+        }
+
+        private Result commit() {
+            if (conference != null) {
+                ConferenceCache.invalidate(conference);
+                Announcements.update(conference);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Registers the user to the Conference.
+     *
+     * @param conference The Conference, which may be a stale copy.
+     * @param userId The userId of the user.
+     * @param mainEmail The email of the user, for creating the Profile if there isn't any.
+     * @return the outcome of the registration.
+     */
+    public static Result register(Conference conference, String userId, String mainEmail) {
+        return register(conference, userId, mainEmail, 1, false);
+    }
+
+    /**
+     * Registers a group to the Conference, booking all the seats in one transaction. The group
+     * is recorded as a single Registration of the user who books the seats.
+     *
+     * @param conference The Conference, which may be a stale copy.
+     * @param userId The userId of the user booking the seats.
+     * @param mainEmail The email of the user, for creating the Profile if there isn't any.
+     * @param seats The number of seats to book.
+     * @return the outcome of the registration, SOLD_OUT when there are not enough seats.
+     * @throws IllegalArgumentException when the Conference holds its seats in SeatShards, and
+     *     the group is larger than the seats a single transaction can book from them.
+     */
+    public static Result registerGroup(Conference conference, String userId, String mainEmail,
+                                       int seats) {
+        return register(conference, userId, mainEmail, seats, false);
+    }
+
+    /**
+     * Registers a user waiting for the Conference.
+     *
+     * @param conference The Conference, which may be a stale copy.
+     * @param entry The WaitlistEntry of the user, which may have been removed in the meantime.
+     * @return the outcome of the registration, NOT_WAITING when the entry has been removed.
+     */
+    public static Result promote(Conference conference, WaitlistEntry entry) {
+        return register(conference, entry.getUserId(), entry.getMainEmail(), 1, true);
+    }
+
+    /**
+     * Unregisters the user from the Conference, giving back all the seats of the Registration.
+     *
+     * @param conference The Conference, which may be a stale copy.
+     * @param userId The userId of the user.
+     * @return the outcome of the unregistration, NOT_REGISTERED when there is nothing to do.
+     */
+    public static Result unregister(Conference conference, String userId) {
+        if (conference.getSeatShards() == 0) {
+            return unregisterWithTransaction(conference.getWebsafeKey(), userId);
+        }
+        Registration registration = ofy().load()
+                .key(Registration.key(userId, conference.getWebsafeKey())).now();
+        return registration != null && registration.getSeats() > 1
+                ? unregisterGroupWithSeatShards(conference, userId)
+                : unregisterWithSeatShards(conference, userId);
+    }
+
+    private static Result register(Conference conference, String userId, String mainEmail,
+                                   int seats, boolean waiting) {
+        if (conference.getSeatShards() == 0) {
+            return registerWithTransaction(conference.getWebsafeKey(), userId, mainEmail, seats,
+                    waiting);
+        }
+        return seats == 1
+                ? registerWithSeatShards(conference, userId, mainEmail, waiting)
+                : registerGroupWithSeatShards(conference, userId, mainEmail, seats);
+    }
+
+    /**
+     * Loads the Profile in the current transaction, migrating its legacy registrations, or
+     * creates a new one.
+     *
+     * @return the new Profile, to be saved along with the Registration, or null when the
+     *     Profile exists, in which case it isn't written unless it had legacy registrations.
+     */
+    private static Profile createProfileIfMissing(String userId, String mainEmail) {
+        Profile profile = ofy().load().key(Key.create(Profile.class, userId)).now();
+        if (profile == null) {
+            String displayName = mainEmail == null || mainEmail.indexOf("@") < 0
+                    ? null : mainEmail.substring(0, mainEmail.indexOf("@"));
+            return new Profile(userId, displayName, mainEmail, TeeShirtSize.NOT_SPECIFIED);
+        }
+        RegistrationMigration.migrate(profile);
+        return null;
+    }
+
+    /**
+     * Saves the entities in a single batch, along with the new Profile if there is one.
+     */
+    private static void save(Profile newProfile, Object... entities) {
+        List<Object> batch = new ArrayList<>(Arrays.asList(entities));
+        if (newProfile != null) {
+            batch.add(newProfile);
+        }
+        ofy().save().entities(batch).now();
+    }
+
+    /**
+     * Migrates the legacy registrations of the user's Profile, if any, in the current
+     * transaction, so that the user's Registrations are all there is to look up.
+     */
+    private static void migrateProfile(String userId) {
+        Profile profile = ofy().load().key(Key.create(Profile.class, userId)).now();
+        if (profile != null) {
+            RegistrationMigration.migrate(profile);
+        }
+    }
+
+    /**
+     * Checks whether the user can be registered, in the current transaction. The WaitlistEntry
+     * of a user who has already registered is removed.
+     *
+     * @return null when the user can be registered, otherwise the outcome.
+     */
+    private static Result check(String userId, String websafeConferenceKey, boolean waiting) {
+        Key<WaitlistEntry> entryKey = WaitlistEntry.key(userId, websafeConferenceKey);
+        if (ofy().load().key(Registration.key(userId, websafeConferenceKey)).now() != null) {
+            ofy().delete().key(entryKey).now();
+            return Result.ALREADY_REGISTERED;
+        }
+        if (waiting && ofy().load().key(entryKey).now() == null) {
+            return Result.NOT_WAITING;
+        }
+        return null;
+    }
+
+    private static Result registerWithTransaction(final String websafeConferenceKey,
+                                                  final String userId, final String mainEmail,
+                                                  final int seats, final boolean waiting) {
+        return Transactions.transact(Key.create(websafeConferenceKey), new Work<Outcome>() {
+            @Override
+            public Outcome run() {
+                Conference conference = ofy().load()
+                        .key(Key.<Conference>create(websafeConferenceKey)).now();
+                if (conference == null) {
+                    return new Outcome(Result.NOT_FOUND);
+                }
+                Profile newProfile = createProfileIfMissing(userId, mainEmail);
+                Result result = check(userId, websafeConferenceKey, waiting);
+                if (result != null) {
+                    return new Outcome(result);
+                }
+                if (conference.getSeatsAvailable() < seats) {
+                    return new Outcome(Result.SOLD_OUT);
+                }
+                conference.bookSeats(seats);
+                save(newProfile, new Registration(userId, websafeConferenceKey, seats),
+                        conference);
+                ofy().delete().key(WaitlistEntry.key(userId, websafeConferenceKey)).now();
+                return new Outcome(Result.REGISTERED, conference);
+            }
+        }).commit();
+    }
+
+    /**
+     * Registers to a Conference whose seats are held by SeatShards.
+     *
+     * The transaction touches the user's Profile and a single shard but not the Conference, so
+     * that concurrent registrations rarely contend. When the picked shard has sold out in the
+     * meantime, another shard is picked.
+     */
+    private static Result registerWithSeatShards(Conference conference, final String userId,
+                                                 final String mainEmail, final boolean waiting) {
+        final String websafeConferenceKey = conference.getWebsafeKey();
+        for (int i = 0; i < conference.getSeatShards(); i++) {
+            final Key<SeatShard> shardKey = SeatInventory.pickShardToBook(conference);
+            if (shardKey == null) {
+                break;
+            }
+            // The result is null when the picked shard has sold out in the meantime.
+            Result outcome = Transactions.transact(Key.create(websafeConferenceKey),
+                    new Work<Result>() {
+                @Override
+                public Result run() {
+                    Profile newProfile = createProfileIfMissing(userId, mainEmail);
+                    Result result = check(userId, websafeConferenceKey, waiting);
+                    if (result != null) {
+                        return result;
+                    }
+                    SeatShard shard = ofy().load().key(shardKey).now();
+                    if (shard.getSeatsAvailable() <= 0) {
+                        return null;
+                    }
+                    shard.bookSeats(1);
+                    save(newProfile, new Registration(userId, websafeConferenceKey), shard);
+                    ofy().delete().key(WaitlistEntry.key(userId, websafeConferenceKey)).now();
+                    return Result.REGISTERED;
+                }
+            });
+            if (outcome != null) {
+                if (outcome == Result.REGISTERED) {
+                    SeatInventory.scheduleRefresh(websafeConferenceKey);
+                }
+                return outcome;
+            }
+        }
+        return Result.SOLD_OUT;
+    }
+
+    /**
+     * Registers a group to a Conference whose seats are held by SeatShards.
+     *
+     * The seats are booked from the shards with the most available seats, in a single
+     * transaction with the Registration.
+     */
+    private static Result registerGroupWithSeatShards(final Conference conference,
+                                                      final String userId,
+                                                      final String mainEmail, final int seats) {
+        final String websafeConferenceKey = conference.getWebsafeKey();
+        Result outcome = Transactions.transact(Key.create(websafeConferenceKey),
+                new Work<Result>() {
+            @Override
+            public Result run() {
+                Profile newProfile = createProfileIfMissing(userId, mainEmail);
+                Result result = check(userId, websafeConferenceKey, false);
+                if (result != null) {
+                    return result;
+                }
+                if (!SeatInventory.bookSeats(conference, seats)) {
+                    return Result.SOLD_OUT;
+                }
+                save(newProfile, new Registration(userId, websafeConferenceKey, seats));
+                ofy().delete().key(WaitlistEntry.key(userId, websafeConferenceKey)).now();
+                return Result.REGISTERED;
+            }
+        });
+        if (outcome == Result.REGISTERED) {
+            SeatInventory.scheduleRefresh(websafeConferenceKey);
+        }
+        return outcome;
+    }
+
+    /**
+     * Unregisters from a Conference whose seats are held by the Conference itself.
+     */
+    private static Result unregisterWithTransaction(final String websafeConferenceKey,
+                                                    final String userId) {
+        return Transactions.transact(Key.create(websafeConferenceKey), new Work<Outcome>() {
+            @Override
+            public Outcome run() {
+                Conference conference = ofy().load()
+                        .key(Key.<Conference>create(websafeConferenceKey)).now();
+                if (conference == null) {
+                    return new Outcome(Result.NOT_FOUND);
+                }
+                migrateProfile(userId);
+                Registration registration = ofy().load()
+                        .key(Registration.key(userId, websafeConferenceKey)).now();
+                if (registration == null) {
+                    return new Outcome(Result.NOT_REGISTERED);
+                }
+                ofy().delete().key(registration.getKey()).now();
+                conference.giveBackSeats(registration.getSeats());
+                ofy().save().entity(conference).now();
+                Waitlist.enqueuePromotion(websafeConferenceKey);
+                return new Outcome(Result.UNREGISTERED, conference);
+            }
+        }).commit();
+    }
+
+    /**
+     * Unregisters from a Conference whose seats are held by SeatShards.
+     *
+     * The seat is given back to a random shard with a booked seat. When the picked shard has
+     * been filled up in the meantime, another shard is picked.
+     */
+    private static Result unregisterWithSeatShards(Conference conference,
+                                                   final String userId) {
+        final String websafeConferenceKey = conference.getWebsafeKey();
+        for (int i = 0; i < conference.getSeatShards(); i++) {
+            final Key<SeatShard> shardKey = SeatInventory.pickShardToGiveBack(conference);
+            if (shardKey == null) {
+                break;
+            }
+            // The result is null when the picked shard has no booked seat any more.
+            Result outcome = Transactions.transact(Key.create(websafeConferenceKey),
+                    new Work<Result>() {
+                @Override
+                public Result run() {
+                    migrateProfile(userId);
+                    Key<Registration> registrationKey =
+                            Registration.key(userId, websafeConferenceKey);
+                    if (ofy().load().key(registrationKey).now() == null) {
+                        return Result.NOT_REGISTERED;
+                    }
+                    SeatShard shard = ofy().load().key(shardKey).now();
+                    if (shard.getSeatsAvailable() >= shard.getCapacity()) {
+                        return null;
+                    }
+                    ofy().delete().key(registrationKey).now();
+                    shard.giveBackSeats(1);
+                    ofy().save().entity(shard).now();
+                    Waitlist.enqueuePromotion(websafeConferenceKey);
+                    return Result.UNREGISTERED;
+                }
+            });
+            if (outcome != null) {
+                if (outcome == Result.UNREGISTERED) {
+                    SeatInventory.scheduleRefresh(websafeConferenceKey);
+                }
+                return outcome;
+            }
+        }
+        return Result.NOT_REGISTERED;
+    }
+
+    /**
+     * Unregisters a group from a Conference whose seats are held by SeatShards, giving back
+     * the seats to the shards with the most booked seats.
+     */
+    private static Result unregisterGroupWithSeatShards(final Conference conference,
+                                                        final String userId) {
+        final String websafeConferenceKey = conference.getWebsafeKey();
+        Result outcome = Transactions.transact(Key.create(websafeConferenceKey),
+                new Work<Result>() {
+            @Override
+            public Result run() {
+                migrateProfile(userId);
+                Registration registration = ofy().load()
+                        .key(Registration.key(userId, websafeConferenceKey)).now();
+                if (registration == null) {
+                    return Result.NOT_REGISTERED;
+                }
+                if (!SeatInventory.giveBackSeats(conference, registration.getSeats())) {
+                    return Result.CONTENDED;
+                }
+                ofy().delete().key(registration.getKey()).now();
+                Waitlist.enqueuePromotion(websafeConferenceKey);
+                return Result.UNREGISTERED;
+            }
+        });
+        if (outcome == Result.UNREGISTERED) {
+            SeatInventory.scheduleRefresh(websafeConferenceKey);
+        }
+        return outcome;
+    }
+}
@@ -0,0 +1,363 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Manages the seats of popular Conferences held by SeatShards.
+ *
+ * A Conference lives in the entity group of its organizer, which sustains about one write per
+ * second. Conferences with at least SHARDING_THRESHOLD seats therefore keep the seats in
+ * SHARD_COUNT root entities instead, and a registration books a seat from a random shard in a
+ * transaction that doesn't touch the Conference. The sum of the shards is copied back to
+ * Conference.seatsAvailable by a task, at most once per REFRESH_INTERVAL_MILLIS.
+ */
+public class SeatInventory {
+
+    /**
+     * Conferences with at least this many seats are sharded upon creation.
+     */
+    public static final int SHARDING_THRESHOLD = 1000;
+
+    public static final int SHARD_COUNT = 20;
+
+    /**
+     * A transaction touches the Conference or the Profile, and at most this many shards, within
+     * the limit of 5 entity groups of a cross group transaction.
+     */
+    private static final int MAX_SHARDS_PER_TRANSACTION = 4;
+
+    private static final long REFRESH_INTERVAL_MILLIS = 10 * 1000;
+
+    private static final String REFRESH_TASK_URL = "/tasks/refresh_seats_available";
+
+    /**
+     * Well past the deadline of the request creating the Conference, after which its
+     * transaction has either committed or failed for good.
+     */
+    private static final long ORPHAN_CHECK_DELAY_MILLIS = 10 * 60 * 1000;
+
+    private static final String DELETE_ORPHANS_TASK_URL = "/tasks/delete_orphaned_seat_shards";
+
+    private static final Random RANDOM = new Random();
+
+    private static final Comparator<SeatShard> MOST_AVAILABLE_FIRST = new Comparator<SeatShard>() {
+        @Override
+        public int compare(SeatShard shard1, SeatShard shard2) {
+            return shard2.getSeatsAvailable() - shard1.getSeatsAvailable();
+        }
+    };
+
+    private static final Comparator<SeatShard> MOST_BOOKED_FIRST = new Comparator<SeatShard>() {
+        @Override
+        public int compare(SeatShard shard1, SeatShard shard2) {
+            return (shard2.getCapacity() - shard2.getSeatsAvailable())
+                    - (shard1.getCapacity() - shard1.getSeatsAvailable());
+        }
+    };
+
+    /**
+     * Returns the number of shards for a new Conference.
+     *
+     * @param maxAttendees The number of the seats.
+     * @return the number of the shards, or 0 when the Conference shouldn't be sharded.
+     */
+    public static int shardCountFor(int maxAttendees) {
+        return maxAttendees >= SHARDING_THRESHOLD ? SHARD_COUNT : 0;
+    }
+
+    /**
+     * Allots the seats to new shards and saves them.
+     *
+     * Call this before saving the Conference with Conference.enableSeatShards. The shards have
+     * fixed keys, so this can be safely retried.
+     *
+     * The shards can't be saved in the transaction saving the Conference, which would span more
+     * entity groups than a cross group transaction allows. When that transaction fails, the
+     * shards are left without a Conference, so a task scheduled here deletes them later.
+     *
+     * @param conferenceKey The key of the Conference.
+     * @param maxAttendees The number of the seats.
+     * @param shardCount The number of the shards.
+     */
+    public static void createShards(Key<Conference> conferenceKey, int maxAttendees,
+                                    int shardCount) {
+        String websafeConferenceKey = conferenceKey.getString();
+        try {
+            QueueFactory.getDefaultQueue().add(
+                    TaskOptions.Builder.withUrl(DELETE_ORPHANS_TASK_URL)
+                    .taskName("delete-orphaned-seat-shards-" + websafeConferenceKey)
+                    .countdownMillis(ORPHAN_CHECK_DELAY_MILLIS)
+                    .param("websafeConferenceKey", websafeConferenceKey)
+                    .param("shardCount", String.valueOf(shardCount)));
+        } catch (TaskAlreadyExistsException e) {
+            // A retry of the same creation.
+        }
+        ofy().save().entities(SeatShard.allot(websafeConferenceKey, maxAttendees,
+                shardCount)).now();
+    }
+
+    /**
+     * Deletes the shards created for a Conference that hasn't been saved.
+     *
+     * @param websafeConferenceKey The String representation of the Conference key.
+     * @param shardCount The number of the shards.
+     * @return whether the shards have been deleted.
+     */
+    public static boolean deleteOrphanedShards(String websafeConferenceKey, int shardCount) {
+        if (ofy().load().key(Key.<Conference>create(websafeConferenceKey)).now() != null) {
+            return false;
+        }
+        ofy().delete().keys(SeatShard.keysOf(websafeConferenceKey, shardCount)).now();
+        return true;
+    }
+
+    /**
+     * Loads all the shards of the Conference outside of the current transaction.
+     */
+    private static List<SeatShard> loadShards(Conference conference) {
+        Map<Key<SeatShard>, SeatShard> shards = ofy().transactionless().load().keys(
+                SeatShard.keysOf(conference.getWebsafeKey(), conference.getSeatShards()));
+        return new ArrayList<>(shards.values());
+    }
+
+    /**
+     * Picks a random shard with an available seat.
+     *
+     * The pick is made outside of a transaction, so the transaction booking the seat has to
+     * check the shard again.
+     *
+     * @param conference The sharded Conference.
+     * @return the key of the shard, or null when there are no seats available.
+     */
+    public static Key<SeatShard> pickShardToBook(Conference conference) {
+        List<Key<SeatShard>> candidates = new ArrayList<>();
+        for (SeatShard shard : loadShards(conference)) {
+            if (shard.getSeatsAvailable() > 0) {
+                candidates.add(shard.getKey());
+            }
+        }
+        return candidates.isEmpty() ? null : candidates.get(RANDOM.nextInt(candidates.size()));
+    }
+
+    /**
+     * Picks a random shard with a booked seat.
+     *
+     * @param conference The sharded Conference.
+     * @return the key of the shard, or null when all the seats are available.
+     */
+    public static Key<SeatShard> pickShardToGiveBack(Conference conference) {
+        List<Key<SeatShard>> candidates = new ArrayList<>();
+        for (SeatShard shard : loadShards(conference)) {
+            if (shard.getSeatsAvailable() < shard.getCapacity()) {
+                candidates.add(shard.getKey());
+            }
+        }
+        return candidates.isEmpty() ? null : candidates.get(RANDOM.nextInt(candidates.size()));
+    }
+
+    /**
+     * Applies a change of maxAttendees to the shards. Call this in the transaction updating the
+     * Conference.
+     *
+     * Seats are added to a single shard. Seats are removed from the shards with the most
+     * available seats, up to MAX_SHARDS_PER_TRANSACTION of them.
+     *
+     * @param conference The sharded Conference.
+     * @param delta The number of seats to add, or to remove when negative.
+     * @throws IllegalArgumentException when the shards don't have enough seats to remove.
+     */
+    public static void resize(Conference conference, int delta) {
+        if (delta == 0) {
+            return;
+        }
+        List<SeatShard> shards = loadShards(conference);
+        if (delta > 0) {
+            SeatShard shard = ofy().load().key(shards.get(RANDOM.nextInt(shards.size())).getKey())
+                    .now();
+            shard.resize(delta);
+            ofy().save().entity(shard).now();
+            return;
+        }
+        Collection<SeatShard> shardsToResize = loadTopShards(shards, MOST_AVAILABLE_FIRST);
+        int seatsToRemove = -delta;
+        for (SeatShard shard : shardsToResize) {
+            int seats = Math.min(seatsToRemove, shard.getSeatsAvailable());
+            shard.resize(-seats);
+            seatsToRemove -= seats;
+        }
+        if (seatsToRemove > 0) {
+            throw new IllegalArgumentException("Only " + (-delta - seatsToRemove)
+                    + " seats can be removed at once, but you tried to remove " + -delta);
+        }
+        ofy().save().entities(shardsToResize).now();
+    }
+
+    /**
+     * Books seats from the shards with the most available seats, up to
+     * MAX_SHARDS_PER_TRANSACTION of them. Call this in the transaction writing the Registration.
+     *
+     * @param conference The sharded Conference.
+     * @param seats The number of seats to book.
+     * @return false when these shards don't have enough seats available, in which case nothing
+     *     has been booked.
+     * @throws IllegalArgumentException when the seats exceed the capacity of
+     *     MAX_SHARDS_PER_TRANSACTION shards, so that they could never be booked at once.
+     */
+    public static boolean bookSeats(Conference conference, int seats) {
+        List<SeatShard> allShards = loadShards(conference);
+        int maxSeats = maxSeatsPerTransaction(allShards);
+        if (seats > maxSeats) {
+            throw new IllegalArgumentException("Only " + maxSeats
+                    + " seats can be booked at once, but you tried to book " + seats);
+        }
+        Collection<SeatShard> shards = loadTopShards(allShards, MOST_AVAILABLE_FIRST);
+        int seatsToBook = seats;
+        for (SeatShard shard : shards) {
+            seatsToBook -= shard.getSeatsAvailable();
+        }
+        if (seatsToBook > 0) {
+            return false;
+        }
+        seatsToBook = seats;
+        for (SeatShard shard : shards) {
+            int booked = Math.min(seatsToBook, shard.getSeatsAvailable());
+            shard.bookSeats(booked);
+            seatsToBook -= booked;
+        }
+        ofy().save().entities(shards).now();
+        return true;
+    }
+
+    /**
+     * Gives back seats to the shards with the most booked seats, up to
+     * MAX_SHARDS_PER_TRANSACTION of them. Call this in the transaction deleting the
+     * Registration.
+     *
+     * @param conference The sharded Conference.
+     * @param seats The number of seats to give back.
+     * @return false when these shards don't have enough booked seats, in which case nothing
+     *     has been given back.
+     */
+    public static boolean giveBackSeats(Conference conference, int seats) {
+        Collection<SeatShard> shards = loadTopShards(loadShards(conference),
+                MOST_BOOKED_FIRST);
+        int seatsToGiveBack = seats;
+        for (SeatShard shard : shards) {
+            seatsToGiveBack -= shard.getCapacity() - shard.getSeatsAvailable();
+        }
+        if (seatsToGiveBack > 0) {
+            return false;
+        }
+        seatsToGiveBack = seats;
+        for (SeatShard shard : shards) {
+            int givenBack = Math.min(seatsToGiveBack,
+                    shard.getCapacity() - shard.getSeatsAvailable());
+            shard.giveBackSeats(givenBack);
+            seatsToGiveBack -= givenBack;
+        }
+        ofy().save().entities(shards).now();
+        return true;
+    }
+
+    /**
+     * Returns the total capacity of the MAX_SHARDS_PER_TRANSACTION largest shards, which bounds
+     * the seats a single transaction can book.
+     */
+    private static int maxSeatsPerTransaction(List<SeatShard> shards) {
+        List<Integer> capacities = new ArrayList<>(shards.size());
+        for (SeatShard shard : shards) {
+            capacities.add(shard.getCapacity());
+        }
+        Collections.sort(capacities, Collections.reverseOrder());
+        int maxSeats = 0;
+        for (int capacity
+                : capacities.subList(0, Math.min(MAX_SHARDS_PER_TRANSACTION, capacities.size()))) {
+            maxSeats += capacity;
+        }
+        return maxSeats;
+    }
+
+    /**
+     * Picks the first MAX_SHARDS_PER_TRANSACTION shards in the given order, and reads them
+     * again in the current transaction, since they may have changed.
+     */
+    private static Collection<SeatShard> loadTopShards(List<SeatShard> shards,
+                                                       Comparator<SeatShard> order) {
+        Collections.sort(shards, order);
+        List<Key<SeatShard>> shardKeys = new ArrayList<>(MAX_SHARDS_PER_TRANSACTION);
+        for (SeatShard shard
+                : shards.subList(0, Math.min(MAX_SHARDS_PER_TRANSACTION, shards.size()))) {
+            shardKeys.add(shard.getKey());
+        }
+        return ofy().load().keys(shardKeys).values();
+    }
+
+    /**
+     * Schedules a task copying the sum of the shards to Conference.seatsAvailable.
+     *
+     * The task is named after the Conference and the current interval, so that the Conference
+     * is written at most once per REFRESH_INTERVAL_MILLIS however many seats are booked.
+     *
+     * @param websafeConferenceKey The String representation of the Conference key.
+     */
+    public static void scheduleRefresh(String websafeConferenceKey) {
+        long now = System.currentTimeMillis();
+        long interval = now / REFRESH_INTERVAL_MILLIS;
+        try {
+            QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(REFRESH_TASK_URL)
+                    .taskName("refresh-seats-" + websafeConferenceKey + "-" + interval)
+                    .countdownMillis((interval + 1) * REFRESH_INTERVAL_MILLIS - now)
+                    .param("websafeConferenceKey", websafeConferenceKey));
+        } catch (TaskAlreadyExistsException e) {
+            // The refresh for this interval is already scheduled.
+        }
+    }
+
+    /**
+     * Copies the sum of the shards to Conference.seatsAvailable.
+     *
+     * @param websafeConferenceKey The String representation of the Conference key.
+     */
+    public static void refresh(final String websafeConferenceKey) {
+        Conference conference = Transactions.transact(Key.create(websafeConferenceKey),
+                new Work<Conference>() {
+            @Override
+            public Conference run() {
+                Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
+                Conference conference = ofy().load().key(conferenceKey).now();
+                if (conference == null || conference.getSeatShards() == 0) {
+                    return null;
+                }
+                int seatsAvailable = 0;
+                for (SeatShard shard : loadShards(conference)) {
+                    seatsAvailable += shard.getSeatsAvailable();
+                }
+                if (!conference.updateSeatsAvailable(seatsAvailable)) {
+                    return null;
+                }
+                ofy().save().entity(conference).now();
+                return conference;
+            }
+        });
+        if (conference != null) {
+            ConferenceCache.invalidate(conference);
+            Announcements.update(conference);
+        }
+    }
+}
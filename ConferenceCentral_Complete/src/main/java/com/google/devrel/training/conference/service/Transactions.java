@@ -0,0 +1,214 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.common.cache.CacheBuilder;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Runs transactions with jittered exponential backoff between the retries, and records how
+ * often the transactions on each entity group collide.
+ *
+ * Objectify retries a transaction immediately on a ConcurrentModificationException, so all the
+ * retries of a burst of registrations hit the entity group again at once. Here each retry waits
+ * for a random time up to a cap that doubles with every attempt instead.
+ *
+ * The statistics are kept in the memory of the instance, like ConferenceCache, so they describe
+ * the requests that the instance has served. The groups are labeled by the contended Conference
+ * where there is one, since the seats of a Conference may be spread over several groups.
+ */
+public class Transactions {
+
+    private static final Logger LOG = Logger.getLogger(Transactions.class.getName());
+
+    /**
+     * The number of attempts before giving up with a ConcurrentModificationException.
+     */
+    public static final int MAX_TRIES = 10;
+
+    private static final long BASE_BACKOFF_MILLIS = 10;
+
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+
+    /**
+     * The number of groups tracked, beyond which the least recently used groups are dropped.
+     */
+    static final int MAX_TRACKED_GROUPS = 1000;
+
+    private static final Random RANDOM = new Random();
+
+    private static final ConcurrentMap<Key<?>, GroupStats> STATS = CacheBuilder.newBuilder()
+            .maximumSize(MAX_TRACKED_GROUPS)
+            .<Key<?>, GroupStats>build()
+            .asMap();
+
+    private static final Comparator<GroupStats> MOST_RETRIED_FIRST = new Comparator<GroupStats>() {
+        @Override
+        public int compare(GroupStats a, GroupStats b) {
+            return Long.compare(b.getRetries(), a.getRetries());
+        }
+    };
+
+    /**
+     * The transaction statistics of an entity group.
+     */
+    public static class GroupStats {
+
+        private final Key<?> group;
+
+        private final AtomicLong transactions = new AtomicLong();
+
+        private final AtomicLong attempts = new AtomicLong();
+
+        private final AtomicLong failures = new AtomicLong();
+
+        private final AtomicLong millis = new AtomicLong();
+
+        private GroupStats(Key<?> group) {
+            this.group = group;
+        }
+
+        public Key<?> getGroup() {
+            return group;
+        }
+
+        /**
+         * The number of transactions run, whether committed or failed.
+         */
+        public long getTransactions() {
+            return transactions.get();
+        }
+
+        public long getAttempts() {
+            return attempts.get();
+        }
+
+        public long getRetries() {
+            return attempts.get() - transactions.get();
+        }
+
+        /**
+         * The number of transactions that ran out of attempts.
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * The time spent in the transactions in milliseconds, including the backoff.
+         */
+        public long getMillis() {
+            return millis.get();
+        }
+    }
+
+    /**
+     * Runs the work in a transaction, retrying it on contention with a backoff.
+     *
+     * When there is a transaction already, the work simply joins it.
+     *
+     * @param group The contended entity group, or the Conference whose seats are contended.
+     * @param work The work to run, which may run several times.
+     * @return the result of the work.
+     * @throws ConcurrentModificationException when all the attempts have collided.
+     */
+    public static <R> R transact(Key<?> group, Work<R> work) {
+        if (ofy().getTransaction() != null) {
+            return ofy().transact(work);
+        }
+        GroupStats stats = statsOf(group);
+        long start = System.currentTimeMillis();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                stats.attempts.incrementAndGet();
+                try {
+                    // Objectify 5.0 retries while limitTries-- > 0, so 0 means a single try.
+                    return ofy().transactNew(0, work);
+                } catch (ConcurrentModificationException e) {
+                    if (attempt >= MAX_TRIES) {
+                        stats.failures.incrementAndGet();
+                        LOG.warning("Transaction on " + group + " failed after " + attempt
+                                + " attempts.");
+                        throw e;
+                    }
+                    sleep(backoffMillis(attempt));
+                }
+            }
+        } finally {
+            stats.transactions.incrementAndGet();
+            stats.millis.addAndGet(System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Returns a random backoff up to a cap, which doubles with every attempt.
+     */
+    static long backoffMillis(int attempt) {
+        long cap = Math.min(MAX_BACKOFF_MILLIS,
+                BASE_BACKOFF_MILLIS << Math.min(attempt - 1, 20));
+        return (long) (RANDOM.nextDouble() * cap);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the statistics of the group, tracking it from now on.
+     */
+    static GroupStats statsOf(Key<?> group) {
+        GroupStats stats = STATS.get(group);
+        if (stats != null) {
+            return stats;
+        }
+        GroupStats created = new GroupStats(group);
+        stats = STATS.putIfAbsent(group, created);
+        return stats == null ? created : stats;
+    }
+
+    /**
+     * Returns the groups with the most retries.
+     *
+     * @param limit The maximum number of the groups to return.
+     * @return the groups that have been retried, the most retried first.
+     */
+    public static List<GroupStats> mostContended(int limit) {
+        List<GroupStats> contended = new ArrayList<>();
+        for (GroupStats stats : STATS.values()) {
+            if (stats.getRetries() > 0) {
+                contended.add(stats);
+            }
+        }
+        Collections.sort(contended, MOST_RETRIED_FIRST);
+        return contended.subList(0, Math.max(0, Math.min(limit, contended.size())));
+    }
+
+    /**
+     * Returns the statistics of the group, or null when no transaction has run on it.
+     */
+    public static GroupStats getStats(String websafeKey) {
+        return STATS.get(Key.create(websafeKey));
+    }
+
+    /**
+     * Clears the statistics. Mainly for testing.
+     */
+    public static void clearStats() {
+        STATS.clear();
+    }
+}
@@ -0,0 +1,90 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.users.User;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.devrel.training.conference.domain.AppEngineUser;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+
+import java.util.logging.Logger;
+
+/**
+ * Resolves the App Engine userId of a User, which is null for Android clients.
+ *
+ * The datastore fills in the userId of a stored User, so the email is resolved by saving an
+ * AppEngineUser and reading it back. The result is memoized in the instance memory and in
+ * memcache, keyed by the email, so that a user pays the datastore write only once.
+ */
+public class UserIdResolver {
+
+    private static final Logger LOG = Logger.getLogger(UserIdResolver.class.getName());
+
+    private static final String KEY_PREFIX = "UserId:";
+
+    private static final int LOCAL_MAX_SIZE = 10000;
+
+    private static final Cache<String, String> LOCAL_CACHE = CacheBuilder.newBuilder()
+            .maximumSize(LOCAL_MAX_SIZE)
+            .build();
+
+    /**
+     * Returns the App Engine userId for the user.
+     *
+     * Looks up the instance memory, memcache, the stored AppEngineUser, and finally stores a new
+     * AppEngineUser, in this order.
+     *
+     * @param user A User object injected by the cloud endpoints.
+     * @return the App Engine userId for the user.
+     */
+    public static String getUserId(User user) {
+        if (user.getUserId() != null) {
+            return user.getUserId();
+        }
+        String email = user.getEmail();
+        String userId = LOCAL_CACHE.getIfPresent(email);
+        if (userId != null) {
+            return userId;
+        }
+        MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+        Object cachedUserId = memcache.get(KEY_PREFIX + email);
+        if (cachedUserId instanceof String) {
+            userId = (String) cachedUserId;
+        } else {
+            userId = loadUserId(user);
+            if (userId != null) {
+                memcache.put(KEY_PREFIX + email, userId);
+            }
+        }
+        if (userId != null) {
+            LOCAL_CACHE.put(email, userId);
+        }
+        return userId;
+    }
+
+    private static String loadUserId(User user) {
+        Key<AppEngineUser> appEngineUserKey = Key.create(AppEngineUser.class, user.getEmail());
+        // Begin new session for not using session cache.
+        AppEngineUser savedUser = ofy().factory().begin().load().key(appEngineUserKey).now();
+        if (savedUser == null || savedUser.getUser().getUserId() == null) {
+            LOG.info("userId is null, so trying to obtain it from the datastore.");
+            ofy().save().entity(new AppEngineUser(user)).now();
+            Objectify objectify = ofy().factory().begin();
+            savedUser = objectify.load().key(appEngineUserKey).now();
+        }
+        String userId = savedUser.getUser().getUserId();
+        LOG.info("Obtained the userId: " + userId);
+        return userId;
+    }
+
+    /**
+     * Drops the memoized userIds of this instance. Memcache is left untouched.
+     */
+    public static void clearLocalCache() {
+        LOCAL_CACHE.invalidateAll();
+    }
+}
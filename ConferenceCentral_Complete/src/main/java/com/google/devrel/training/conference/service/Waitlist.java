@@ -0,0 +1,83 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.WaitlistEntry;
+import com.googlecode.objectify.Key;
+
+import java.util.List;
+
+/**
+ * Promotes the users waiting for the seats of a sold out Conference.
+ *
+ * Whenever seats may have become available, a task registers the users at the head of the
+ * waitlist until the seats are sold out again. A promoted user simply finds the Registration,
+ * instead of retrying registerForConference.
+ */
+public class Waitlist {
+
+    /**
+     * The number of WaitlistEntries promoted in a single task.
+     */
+    public static final int BATCH_SIZE = 10;
+
+    private static final String PROMOTE_TASK_URL = "/tasks/promote_waitlist";
+
+    /**
+     * Enqueues a task promoting the head of the waitlist. When called in a transaction, the
+     * task is enqueued only if the transaction commits.
+     *
+     * @param websafeConferenceKey The String representation of the Conference key.
+     */
+    public static void enqueuePromotion(String websafeConferenceKey) {
+        TaskOptions taskOptions = TaskOptions.Builder.withUrl(PROMOTE_TASK_URL)
+                .param("websafeConferenceKey", websafeConferenceKey);
+        if (ofy().getTransaction() != null) {
+            QueueFactory.getDefaultQueue().add(ofy().getTransaction(), taskOptions);
+        } else {
+            QueueFactory.getDefaultQueue().add(taskOptions);
+        }
+    }
+
+    /**
+     * Registers the users at the head of the waitlist while there are seats available, and
+     * enqueues the next task if there may be more users to promote.
+     *
+     * The waitlist is read with an eventually consistent query, so each promotion checks the
+     * WaitlistEntry again in its transaction. The seats of a Conference on a flash sale are
+     * sold by the flash sale instead.
+     *
+     * @param websafeConferenceKey The String representation of the Conference key.
+     * @return the number of the promoted users.
+     */
+    public static int promote(String websafeConferenceKey) {
+        Conference conference = ofy().load().key(Key.<Conference>create(websafeConferenceKey))
+                .now();
+        if (conference == null || conference.getFlashSaleSeats() > 0) {
+            return 0;
+        }
+        List<WaitlistEntry> head = ofy().load().type(WaitlistEntry.class)
+                .filter("conferenceKey", Key.create(websafeConferenceKey))
+                .order("position")
+                .limit(BATCH_SIZE)
+                .list();
+        int promoted = 0;
+        for (WaitlistEntry entry : head) {
+            SeatBooking.Result result = SeatBooking.promote(conference, entry);
+            if (result == SeatBooking.Result.SOLD_OUT
+                    || result == SeatBooking.Result.NOT_FOUND) {
+                return promoted;
+            }
+            if (result == SeatBooking.Result.REGISTERED) {
+                promoted++;
+            }
+        }
+        if (head.size() == BATCH_SIZE) {
+            enqueuePromotion(websafeConferenceKey);
+        }
+        return promoted;
+    }
+}
@@ -0,0 +1,39 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devrel.training.conference.service.AnnouncementRebuildJob;
+import com.google.devrel.training.conference.service.BatchJob;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for running a batch of a BatchJob, on behalf of the task enqueued by the previous
+ * batch.
+ */
+public class BatchJobServlet extends HttpServlet {
+
+    /**
+     * The jobs by their names.
+     */
+    private static final Map<String, BatchJob<?>> JOBS = ImmutableMap.<String, BatchJob<?>>of(
+            AnnouncementRebuildJob.NAME, new AnnouncementRebuildJob());
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        BatchJob<?> job = JOBS.get(request.getParameter("job"));
+        if (job == null) {
+            // Don't let the task queue retry an unknown job.
+            response.setStatus(204);
+            return;
+        }
+        job.runBatch(request.getParameter("jobId"), request.getParameter("cursor"));
+        response.setStatus(204);
+    }
+}
@@ -0,0 +1,38 @@
+package com.google.devrel.training.conference.servlet;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.devrel.training.conference.domain.BatchJobStatus;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for listing the progress of the latest runs of the BatchJobs, one tab separated line
+ * per run.
+ */
+public class BatchJobStatusServlet extends HttpServlet {
+
+    private static final int LIMIT = 20;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter writer = response.getWriter();
+        writer.println("jobId\tdone\tbatches\tprocessed\tperSecond\tstartedAt\tupdatedAt");
+        for (BatchJobStatus status : ofy().load().type(BatchJobStatus.class)
+                .order("-startedAt").limit(LIMIT)) {
+            writer.println(status.getJobId() + "\t" + status.isDone() + "\t"
+                    + status.getBatches() + "\t" + status.getProcessed() + "\t"
+                    + String.format("%.1f", status.getThroughput()) + "\t"
+                    + status.getStartedAt() + "\t" + status.getUpdatedAt());
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.Transactions;
+import com.google.devrel.training.conference.service.Transactions.GroupStats;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for listing the entity groups whose transactions have retried the most on this
+ * instance, one tab separated line per group.
+ *
+ * The optional parameter k limits the number of the groups, 20 by default.
+ */
+public class ContentionServlet extends HttpServlet {
+
+    private static final int DEFAULT_LIMIT = 20;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        int limit = DEFAULT_LIMIT;
+        String k = request.getParameter("k");
+        if (k != null) {
+            try {
+                limit = Integer.parseInt(k);
+            } catch (NumberFormatException e) {
+                limit = 0;
+            }
+            if (limit < 1) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                        "k must be a positive number.");
+                return;
+            }
+        }
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter writer = response.getWriter();
+        writer.println("retries\tfailures\ttransactions\tmeanMillis\tgroup");
+        for (GroupStats stats : Transactions.mostContended(limit)) {
+            writer.println(stats.getRetries() + "\t" + stats.getFailures() + "\t"
+                    + stats.getTransactions() + "\t"
+                    + stats.getMillis() / Math.max(1, stats.getTransactions()) + "\t"
+                    + stats.getGroup().getRaw());
+        }
+    }
+}
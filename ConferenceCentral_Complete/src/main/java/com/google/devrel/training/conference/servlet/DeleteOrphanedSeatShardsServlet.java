@@ -0,0 +1,24 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.SeatInventory;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for deleting the SeatShards of a Conference whose creation has failed.
+ */
+public class DeleteOrphanedSeatShardsServlet extends HttpServlet {
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        SeatInventory.deleteOrphanedShards(request.getParameter("websafeConferenceKey"),
+                Integer.parseInt(request.getParameter("shardCount")));
+        response.setStatus(204);
+    }
+}
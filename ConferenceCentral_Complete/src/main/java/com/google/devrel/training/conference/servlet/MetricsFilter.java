@@ -0,0 +1,107 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.RequestMetrics;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A filter recording the requests in RequestMetrics.
+ *
+ * The Endpoints requests are named after the API method, such as
+ * "ConferenceApi.registerForConference", taken from the path that the Endpoints frontend calls
+ * the backend with. The other requests are named after their servlet path.
+ */
+public class MetricsFilter implements Filter {
+
+    private static final String SPI_PATH = "/_ah/spi";
+
+    /**
+     * Remembers the status of the response, which HttpServletResponse can't tell before
+     * Servlet 3.0.
+     */
+    private static class StatusResponse extends HttpServletResponseWrapper {
+
+        private int status = SC_OK;
+
+        private StatusResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public void setStatus(int status) {
+            this.status = status;
+            super.setStatus(status);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus(int status, String message) {
+            this.status = status;
+            super.setStatus(status, message);
+        }
+
+        @Override
+        public void sendError(int status) throws IOException {
+            this.status = status;
+            super.sendError(status);
+        }
+
+        @Override
+        public void sendError(int status, String message) throws IOException {
+            this.status = status;
+            super.sendError(status, message);
+        }
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        RequestMetrics.install();
+    }
+
+    /**
+     * Returns the name of the endpoint the request is recorded under.
+     */
+    static String endpointOf(HttpServletRequest request) {
+        String servletPath = request.getServletPath();
+        String pathInfo = request.getPathInfo();
+        if (SPI_PATH.equals(servletPath) && pathInfo != null) {
+            // The path is the class name followed by the method name, such as
+            // /com.google.devrel.training.conference.spi.ConferenceApi.getConference.
+            int methodDot = pathInfo.lastIndexOf('.');
+            int classDot = methodDot < 0 ? -1 : pathInfo.lastIndexOf('.', methodDot - 1);
+            return pathInfo.substring(Math.max(classDot, pathInfo.lastIndexOf('/')) + 1);
+        }
+        return servletPath;
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if (!(request instanceof HttpServletRequest)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        StatusResponse statusResponse = new StatusResponse((HttpServletResponse) response);
+        long start = RequestMetrics.begin(endpointOf((HttpServletRequest) request));
+        boolean failed = true;
+        try {
+            chain.doFilter(request, statusResponse);
+            failed = statusResponse.status >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+        } finally {
+            RequestMetrics.end(start, failed);
+        }
+    }
+
+    @Override
+    public void destroy() {}
+}
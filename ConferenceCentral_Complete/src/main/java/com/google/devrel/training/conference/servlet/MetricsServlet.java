@@ -0,0 +1,153 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.Histogram;
+import com.google.devrel.training.conference.service.RequestMetrics;
+import com.google.devrel.training.conference.service.RequestMetrics.EndpointMetrics;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collection;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for exporting the RequestMetrics of this instance, in JSON by default, or in the
+ * Prometheus text format with the parameter format=prometheus.
+ *
+ * The latencies are reported in milliseconds in JSON, and in seconds for Prometheus.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    /**
+     * The names of PERCENTILES in JSON.
+     */
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    /**
+     * The Prometheus quantiles of PERCENTILES.
+     */
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4";
+
+    private static final double MILLIS_PER_MICRO = 1e-3;
+
+    private static final double SECONDS_PER_MICRO = 1e-6;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        Collection<EndpointMetrics> endpoints = RequestMetrics.snapshot().values();
+        response.setCharacterEncoding("UTF-8");
+        if ("prometheus".equals(request.getParameter("format"))) {
+            response.setContentType(PROMETHEUS_CONTENT_TYPE);
+            writePrometheus(response.getWriter(), endpoints);
+        } else {
+            response.setContentType("application/json");
+            writeJson(response.getWriter(), endpoints);
+        }
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static void writeJson(PrintWriter writer, Histogram histogram, double scale) {
+        writer.print("{\"count\":" + histogram.getCount());
+        writer.print(",\"mean\":" + histogram.getMean() * scale);
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            writer.print("," + quote(PERCENTILE_NAMES[i]) + ":"
+                    + histogram.getValueAtPercentile(PERCENTILES[i]) * scale);
+        }
+        writer.print(",\"max\":" + histogram.getMax() * scale + "}");
+    }
+
+    private static void writeJson(PrintWriter writer, Collection<EndpointMetrics> endpoints) {
+        writer.print("{");
+        boolean first = true;
+        for (EndpointMetrics metrics : endpoints) {
+            if (!first) {
+                writer.print(",");
+            }
+            first = false;
+            writer.print(quote(metrics.getEndpoint()) + ":{");
+            writer.print("\"requests\":" + metrics.getLatencyMicros().getCount());
+            writer.print(",\"errors\":" + metrics.getErrors());
+            writer.print(",\"latencyMillis\":");
+            writeJson(writer, metrics.getLatencyMicros(), MILLIS_PER_MICRO);
+            writer.print(",\"datastoreCalls\":" + metrics.getDatastoreCalls());
+            writer.print(",\"memcacheCalls\":" + metrics.getMemcacheCalls());
+            writer.print(",\"rpcRequestBytes\":");
+            writeJson(writer, metrics.getRequestBytes(), 1);
+            writer.print(",\"rpcResponseBytes\":");
+            writeJson(writer, metrics.getResponseBytes(), 1);
+            writer.print("}");
+        }
+        writer.println("}");
+    }
+
+    private static void writeHeader(PrintWriter writer, String name, String type, String help) {
+        writer.println("# HELP " + name + " " + help);
+        writer.println("# TYPE " + name + " " + type);
+    }
+
+    /**
+     * Writes a sample, labeled with the endpoint and the given labels, if any.
+     */
+    private static void writeSample(PrintWriter writer, String name, EndpointMetrics metrics,
+                                    String labels, double value) {
+        writer.println(name + "{endpoint=" + quote(metrics.getEndpoint())
+                + (labels == null ? "" : "," + labels) + "} " + value);
+    }
+
+    private static void writeSummary(PrintWriter writer, String name, EndpointMetrics metrics,
+                                     String labels, Histogram histogram, double scale) {
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            String quantile = "quantile=" + quote(QUANTILES[i]);
+            writeSample(writer, name, metrics, labels == null ? quantile : labels + "," + quantile,
+                    histogram.getValueAtPercentile(PERCENTILES[i]) * scale);
+        }
+        writeSample(writer, name + "_sum", metrics, labels, histogram.getSum() * scale);
+        writeSample(writer, name + "_count", metrics, labels, histogram.getCount());
+    }
+
+    private static void writePrometheus(PrintWriter writer,
+                                        Collection<EndpointMetrics> endpoints) {
+        String latency = "conference_request_latency_seconds";
+        writeHeader(writer, latency, "summary", "The latency of the requests.");
+        for (EndpointMetrics metrics : endpoints) {
+            writeSummary(writer, latency, metrics, null, metrics.getLatencyMicros(),
+                    SECONDS_PER_MICRO);
+        }
+        String errors = "conference_request_errors_total";
+        writeHeader(writer, errors, "counter",
+                "The requests that threw or responded with a 5xx status.");
+        for (EndpointMetrics metrics : endpoints) {
+            writeSample(writer, errors, metrics, null, metrics.getErrors());
+        }
+        String datastoreCalls = "conference_datastore_calls_total";
+        writeHeader(writer, datastoreCalls, "counter", "The datastore calls of the requests.");
+        for (EndpointMetrics metrics : endpoints) {
+            writeSample(writer, datastoreCalls, metrics, null, metrics.getDatastoreCalls());
+        }
+        String memcacheCalls = "conference_memcache_calls_total";
+        writeHeader(writer, memcacheCalls, "counter", "The memcache calls of the requests.");
+        for (EndpointMetrics metrics : endpoints) {
+            writeSample(writer, memcacheCalls, metrics, null, metrics.getMemcacheCalls());
+        }
+        String payload = "conference_rpc_payload_bytes";
+        writeHeader(writer, payload, "summary",
+                "The sizes of the datastore and memcache requests and responses.");
+        for (EndpointMetrics metrics : endpoints) {
+            writeSummary(writer, payload, metrics, "direction=\"request\"",
+                    metrics.getRequestBytes(), 1);
+            writeSummary(writer, payload, metrics, "direction=\"response\"",
+                    metrics.getResponseBytes(), 1);
+        }
+    }
+}
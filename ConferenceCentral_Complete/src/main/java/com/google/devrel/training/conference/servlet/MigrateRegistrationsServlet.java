@@ -0,0 +1,34 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.RegistrationMigration;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for migrating the Profiles to Registrations.
+ *
+ * An admin starts the migration with GET, and the tasks migrate the batches with POST.
+ */
+public class MigrateRegistrationsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        RegistrationMigration.enqueue();
+        response.setContentType("text/plain");
+        response.getWriter().println("The migration of the registrations has been started.");
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String cursor = request.getParameter("cursor");
+        RegistrationMigration.migrateBatch(cursor);
+        response.setStatus(204);
+    }
+}
@@ -0,0 +1,23 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.Waitlist;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for registering the users at the head of the waitlist of a Conference.
+ */
+public class PromoteWaitlistServlet extends HttpServlet {
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        Waitlist.promote(request.getParameter("websafeConferenceKey"));
+        response.setStatus(204);
+    }
+}
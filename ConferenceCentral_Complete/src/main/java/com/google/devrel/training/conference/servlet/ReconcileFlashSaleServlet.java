@@ -0,0 +1,24 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.FlashSale;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for writing the Registration of a user admitted by a flash sale.
+ */
+public class ReconcileFlashSaleServlet extends HttpServlet {
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        FlashSale.reconcile(request.getParameter("websafeConferenceKey"),
+                request.getParameter("userId"), request.getParameter("mainEmail"));
+        response.setStatus(204);
+    }
+}
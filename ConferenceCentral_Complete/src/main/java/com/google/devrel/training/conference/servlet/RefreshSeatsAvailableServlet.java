@@ -0,0 +1,23 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.SeatInventory;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for copying the available seats of the SeatShards to the Conference.
+ */
+public class RefreshSeatsAvailableServlet extends HttpServlet {
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        SeatInventory.refresh(request.getParameter("websafeConferenceKey"));
+        response.setStatus(204);
+    }
+}
@@ -1,52 +1,43 @@
 package com.google.devrel.training.conference.servlet;
 
-import com.google.appengine.api.utils.SystemProperty;
+import com.google.devrel.training.conference.service.ConfirmationEmails;
 
 import java.io.IOException;
-import java.util.Properties;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.mail.Message;
-import javax.mail.MessagingException;
-import javax.mail.Session;
-import javax.mail.Transport;
-import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeMessage;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * A servlet for sending a notification e-mail.
+ * A servlet for sending the notification e-mails.
+ *
+ * The cron job GETs it every minute to send the e-mails queued in the pull queue. A POST comes
+ * from a push task queued before the pull queue, and just moves its e-mail to the pull queue.
  */
 public class SendConfirmationEmailServlet extends HttpServlet {
 
     private static final Logger LOG = Logger.getLogger(
             SendConfirmationEmailServlet.class.getName());
 
+    /**
+     * The time spent sending, which leaves a margin within the 60 seconds of a cron request.
+     */
+    private static final long SEND_MILLIS = 50 * 1000;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        int sent = ConfirmationEmails.send(new ConfirmationEmails.TransportMailer(),
+                System.currentTimeMillis() + SEND_MILLIS);
+        LOG.info(String.format("Sent %d confirmation emails.", sent));
+    }
+
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        String email = request.getParameter("email");
-        String conferenceInfo = request.getParameter("conferenceInfo");
-        Properties props = new Properties();
-        Session session = Session.getDefaultInstance(props, null);
-        String body = "Hi, you have created a following conference.\n" + conferenceInfo;
-        try {
-            Message message = new MimeMessage(session);
-            InternetAddress from = new InternetAddress(
-                    String.format("noreply@%s.appspotmail.com",
-                            SystemProperty.applicationId.get()), "Conference Central");
-            message.setFrom(from);
-            message.addRecipient(Message.RecipientType.TO, new InternetAddress(email, ""));
-            message.setSubject("You created a new Conference!");
-            message.setText(body);
-            Transport.send(message);
-        } catch (MessagingException e) {
-            LOG.log(Level.WARNING, String.format("Failed to send an mail to %s", email), e);
-            throw new RuntimeException(e);
-        }
+        ConfirmationEmails.enqueueWithConferenceInfo(request.getParameter("email"),
+                request.getParameter("conferenceInfo"));
     }
 }
@@ -0,0 +1,25 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.OrganizerDisplayNameFanOut;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for propagating the organizer's display name to a batch of Conferences.
+ */
+public class UpdateOrganizerDisplayNameServlet extends HttpServlet {
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String userId = request.getParameter("userId");
+        String cursor = request.getParameter("cursor");
+        OrganizerDisplayNameFanOut.updateBatch(userId, cursor);
+        response.setStatus(204);
+    }
+}
@@ -6,35 +6,50 @@ import static com.google.devrel.training.conference.service.OfyService.ofy;
 import com.google.api.server.spi.config.Api;
 import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiMethod.HttpMethod;
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
 import com.google.api.server.spi.response.ConflictException;
 import com.google.api.server.spi.response.ForbiddenException;
 import com.google.api.server.spi.response.NotFoundException;
 import com.google.api.server.spi.response.UnauthorizedException;
-import com.google.appengine.api.memcache.MemcacheService;
-import com.google.appengine.api.memcache.MemcacheServiceFactory;
-import com.google.appengine.api.taskqueue.Queue;
-import com.google.appengine.api.taskqueue.QueueFactory;
-import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.appengine.api.users.User;
 import com.google.devrel.training.conference.Constants;
 import com.google.devrel.training.conference.domain.Announcement;
-import com.google.devrel.training.conference.domain.AppEngineUser;
 import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceSummary;
 import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.domain.WaitlistEntry;
 import com.google.devrel.training.conference.form.ConferenceForm;
 import com.google.devrel.training.conference.form.ConferenceQueryForm;
 import com.google.devrel.training.conference.form.ProfileForm;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.Announcements;
+import com.google.devrel.training.conference.service.ConferenceCache;
+import com.google.devrel.training.conference.service.ConferenceQueryCache;
+import com.google.devrel.training.conference.service.ConferenceQueryExecutor;
+import com.google.devrel.training.conference.service.ConfirmationEmails;
+import com.google.devrel.training.conference.service.FlashSale;
+import com.google.devrel.training.conference.service.IdempotentRequests;
+import com.google.devrel.training.conference.service.OrganizerDisplayNameFanOut;
+import com.google.devrel.training.conference.service.RegistrationMigration;
+import com.google.devrel.training.conference.service.SeatBooking;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.google.devrel.training.conference.service.Transactions;
+import com.google.devrel.training.conference.service.UserIdResolver;
+import com.google.devrel.training.conference.service.Waitlist;
 import com.googlecode.objectify.Key;
-import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.Work;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import javax.inject.Named;
+import javax.servlet.http.HttpServletRequest;
 
 /**
  * Defines conference APIs.
@@ -71,25 +86,28 @@ public class ConferenceApi {
         return profile;
     }
 
+    /**
+     * Returns whether the user has registered for the Conference.
+     *
+     * Call this in the transaction that has loaded the Profile, so that its legacy
+     * conferenceKeysToAttend are migrated to Registrations first.
+     */
+    private static boolean isRegistered(Profile profile, String websafeConferenceKey) {
+        RegistrationMigration.migrate(profile);
+        return ofy().load().key(Registration.key(profile.getUserId(), websafeConferenceKey))
+                .now() != null;
+    }
+
     /**
      * This is an ugly workaround for null userId for Android clients.
      *
+     * Resolve the userId once per request, since even the memoized resolution may hit memcache.
+     *
      * @param user A User object injected by the cloud endpoints.
      * @return the App Engine userId for the user.
      */
     private static String getUserId(User user) {
-        String userId = user.getUserId();
-        if (userId == null) {
-            LOG.info("userId is null, so trying to obtain it from the datastore.");
-            AppEngineUser appEngineUser = new AppEngineUser(user);
-            ofy().save().entity(appEngineUser).now();
-            // Begin new session for not using session cache.
-            Objectify objectify = ofy().factory().begin();
-            AppEngineUser savedUser = objectify.load().key(appEngineUser.getKey()).now();
-            userId = savedUser.getUser().getUserId();
-            LOG.info("Obtained the userId: " + userId);
-        }
-        return userId;
+        return UserIdResolver.getUserId(user);
     }
 
     /**
@@ -178,7 +196,11 @@ public class ConferenceApi {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
-        return ofy().load().key(Key.create(Profile.class, getUserId(user))).now();
+        Profile profile = ofy().load().key(Key.create(Profile.class, getUserId(user))).now();
+        if (profile != null) {
+            profile.hydrateConferenceKeysToAttend();
+        }
+        return profile;
     }
 
     /**
@@ -197,8 +219,10 @@ public class ConferenceApi {
         }
         String displayName = profileForm.getDisplayName();
         TeeShirtSize teeShirtSize = profileForm.getTeeShirtSize();
+        String userId = getUserId(user);
 
-        Profile profile = ofy().load().key(Key.create(Profile.class, getUserId(user))).now();
+        Profile profile = ofy().load().key(Key.create(Profile.class, userId)).now();
+        boolean displayNameChanged = false;
         if (profile == null) {
             // Populate displayName and teeShirtSize with the default values if null.
             if (displayName == null) {
@@ -207,11 +231,18 @@ public class ConferenceApi {
             if (teeShirtSize == null) {
                 teeShirtSize = TeeShirtSize.NOT_SPECIFIED;
             }
-            profile = new Profile(getUserId(user), displayName, user.getEmail(), teeShirtSize);
+            profile = new Profile(userId, displayName, user.getEmail(), teeShirtSize);
         } else {
+            displayNameChanged = displayName != null
+                    && !displayName.equals(profile.getDisplayName());
             profile.update(displayName, teeShirtSize);
         }
         ofy().save().entity(profile).now();
+        if (displayNameChanged) {
+            // Update the organizer's name denormalized in the Conferences asynchronously.
+            OrganizerDisplayNameFanOut.enqueue(profile.getUserId());
+        }
+        profile.hydrateConferenceKeysToAttend();
         return profile;
     }
 
@@ -220,37 +251,71 @@ public class ConferenceApi {
      *
      * @param user A user who invokes this method, null when the user is not signed in.
      * @param conferenceForm A ConferenceForm object representing user's inputs.
+     * @param request The request, whose Idempotency-Key header makes a retry return the
+     *     Conference created by the first request.
      * @return A newly created Conference Object.
      * @throws UnauthorizedException when the user is not signed in.
+     * @throws BadRequestException when the Idempotency-Key is malformed.
      */
     @ApiMethod(name = "createConference", path = "conference", httpMethod = HttpMethod.POST)
-    public Conference createConference(final User user, final ConferenceForm conferenceForm)
-        throws UnauthorizedException {
+    public Conference createConference(final User user, final ConferenceForm conferenceForm,
+                                       HttpServletRequest request)
+        throws UnauthorizedException, BadRequestException {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
+        final String userId = getUserId(user);
         // Allocate Id first, in order to make the transaction idempotent.
-        Key<Profile> profileKey = Key.create(Profile.class, getUserId(user));
-        final Key<Conference> conferenceKey = factory().allocateId(profileKey, Conference.class);
+        final Key<Profile> profileKey = Key.create(Profile.class, userId);
+        Key<Conference> allocatedKey = factory().allocateId(profileKey, Conference.class);
+        // A retry reuses the Id allocated for the first request instead.
+        Long reservedId = (Long) IdempotentRequests.reserve(userId, "createConference",
+                IdempotentRequests.keyOf(request), allocatedKey.getId());
+        final boolean retried = reservedId != null;
+        final Key<Conference> conferenceKey = retried
+                ? Key.create(profileKey, Conference.class, reservedId) : allocatedKey;
         final long conferenceId = conferenceKey.getId();
-        final Queue queue = QueueFactory.getDefaultQueue();
-        final String userId = getUserId(user);
+        if (retried) {
+            Conference created = ofy().load().key(conferenceKey).now();
+            if (created != null) {
+                return created;
+            }
+        }
+        // Popular Conferences hold the seats in SeatShards, which have to exist beforehand.
+        // A task deletes them later if the transaction below fails.
+        final int seatShards = SeatInventory.shardCountFor(conferenceForm.getMaxAttendees());
+        if (seatShards > 0) {
+            SeatInventory.createShards(conferenceKey, conferenceForm.getMaxAttendees(), seatShards);
+        }
         // Start a transaction.
-        Conference conference = ofy().transact(new Work<Conference>() {
+        Conference conference = Transactions.transact(profileKey, new Work<Conference>() {
             @Override
             public Conference run() {
-                // Fetch user's Profile.
+                // Another request with the same Idempotency-Key may have created the Conference
+                // in the meantime, even on a rerun of this transaction after a collision with
+                // it. Loaded in the same round trip as the Profile.
+                Map<Key<Object>, Object> loaded = ofy().load().<Object>keys(conferenceKey,
+                        profileKey);
+                Conference created = (Conference) loaded.get(conferenceKey);
+                if (created != null) {
+                    return created;
+                }
+                // Fetch user's Profile, already in the session cache.
                 Profile profile = getProfileFromUser(user, userId);
                 Conference conference = new Conference(conferenceId, userId, conferenceForm);
+                conference.updateOrganizerDisplayName(profile.getDisplayName());
+                if (seatShards > 0) {
+                    conference.enableSeatShards(seatShards);
+                }
                 // Save Conference and Profile.
                 ofy().save().entities(conference, profile).now();
-                queue.add(ofy().getTransaction(),
-                        TaskOptions.Builder.withUrl("/tasks/send_confirmation_email")
-                        .param("email", profile.getMainEmail())
-                        .param("conferenceInfo", conference.toString()));
+                ConfirmationEmails.enqueue(profile.getMainEmail(),
+                        ConfirmationEmails.CONFERENCE_CREATED, conferenceKey);
                 return conference;
             }
         });
+        ConferenceQueryCache.invalidate();
+        Announcements.update(conference);
         return conference;
     }
 
@@ -264,6 +329,9 @@ public class ConferenceApi {
      * @throws UnauthorizedException when the user is not signed in.
      * @throws NotFoundException when there is no Conference with the given conferenceId.
      * @throws ForbiddenException when the user is not the owner of the Conference.
+     * @throws BadRequestException when maxAttendees is less than the seats already allocated,
+     *     or when more seats are removed from a Conference holding its seats in SeatShards than
+     *     can be removed at once.
      */
     @ApiMethod(
             name = "updateConference",
@@ -273,7 +341,8 @@ public class ConferenceApi {
     public Conference updateConference(final User user, final ConferenceForm conferenceForm,
                                        @Named("websafeConferenceKey")
                                        final String websafeConferenceKey)
-            throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException {
+            throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException,
+            BadRequestException {
         // If not signed in, throw a 401 error.
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
@@ -281,7 +350,30 @@ public class ConferenceApi {
         final String userId = getUserId(user);
         // Update the conference with the conferenceForm sent from the client.
         // Need a transaction because we need to safely preserve the number of allocated seats.
-        TxResult<Conference> result = ofy().transact(new Work<TxResult<Conference>>() {
+        TxResult<Conference> result;
+        try {
+            result = transactUpdate(userId, conferenceForm, websafeConferenceKey);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+        // NotFoundException or ForbiddenException is actually thrown here.
+        Conference conference = result.getResult();
+        ConferenceCache.invalidate(conference);
+        ConferenceQueryCache.invalidate();
+        Announcements.update(conference);
+        return conference;
+    }
+
+    /**
+     * Updates the Conference in a transaction, resizing its SeatShards if it has any.
+     *
+     * @throws IllegalArgumentException when the seats can't be removed.
+     */
+    private static TxResult<Conference> transactUpdate(final String userId,
+                                                       final ConferenceForm conferenceForm,
+                                                       final String websafeConferenceKey) {
+        return Transactions.transact(Key.create(websafeConferenceKey),
+                new Work<TxResult<Conference>>() {
             @Override
             public TxResult<Conference> run() {
                 // If there is no Conference with the id, throw a 404 error.
@@ -299,7 +391,130 @@ public class ConferenceApi {
                     return new TxResult<>(
                             new ForbiddenException("Only the owner can update the conference."));
                 }
+                int maxAttendeesDelta = conferenceForm.getMaxAttendees()
+                        - conference.getMaxAttendees();
                 conference.updateWithConferenceForm(conferenceForm);
+                if (conference.getSeatShards() > 0) {
+                    SeatInventory.resize(conference, maxAttendeesDelta);
+                }
+                ofy().save().entity(conference).now();
+                if (maxAttendeesDelta > 0) {
+                    Waitlist.enqueuePromotion(websafeConferenceKey);
+                }
+                return new TxResult<>(conference);
+            }
+        });
+    }
+
+    /**
+     * Opens a flash sale of the available seats of the Conference.
+     *
+     * While the flash sale is open, registrations claim the seats with a memcache counter
+     * instead of contending on a datastore transaction each. See FlashSale.
+     *
+     * @param user A user who invokes this method, null when the user is not signed in.
+     * @param websafeConferenceKey The String representation of the Conference key.
+     * @return the Conference on the flash sale.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws NotFoundException when there is no Conference with the given conferenceId.
+     * @throws ForbiddenException when the user is not the owner of the Conference.
+     * @throws ConflictException when there are no seats available.
+     */
+    @ApiMethod(
+            name = "openFlashSale",
+            path = "conference/{websafeConferenceKey}/flashSale",
+            httpMethod = HttpMethod.POST
+    )
+    public Conference openFlashSale(final User user,
+                                    @Named("websafeConferenceKey")
+                                    final String websafeConferenceKey)
+            throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException {
+        // If not signed in, throw a 401 error.
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        // Sum up the SeatShards in advance, since the transaction can't span them all.
+        Conference current = ConferenceCache.get(Key.<Conference>create(websafeConferenceKey));
+        if (current == null) {
+            throw new NotFoundException("No Conference found with the key: "
+                    + websafeConferenceKey);
+        }
+        Conference.hydrateSeatsAvailable(Collections.singletonList(current));
+        if (current.getSeatsAvailable() <= 0) {
+            throw new ConflictException("There are no seats available.");
+        }
+        Conference conference = updateFlashSale(getUserId(user), websafeConferenceKey,
+                current.getSeatsAvailable());
+        FlashSale.open(websafeConferenceKey);
+        ConferenceCache.invalidate(conference);
+        Conference.hydrateSeatsAvailable(Collections.singletonList(conference));
+        return conference;
+    }
+
+    /**
+     * Closes the flash sale of the Conference. The registrations book the seats in datastore
+     * transactions again.
+     *
+     * @param user A user who invokes this method, null when the user is not signed in.
+     * @param websafeConferenceKey The String representation of the Conference key.
+     * @return the Conference.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws NotFoundException when there is no Conference with the given conferenceId.
+     * @throws ForbiddenException when the user is not the owner of the Conference.
+     */
+    @ApiMethod(
+            name = "closeFlashSale",
+            path = "conference/{websafeConferenceKey}/flashSale",
+            httpMethod = HttpMethod.DELETE
+    )
+    public Conference closeFlashSale(final User user,
+                                     @Named("websafeConferenceKey")
+                                     final String websafeConferenceKey)
+            throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException {
+        // If not signed in, throw a 401 error.
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        Conference conference = updateFlashSale(getUserId(user), websafeConferenceKey, 0);
+        ConferenceCache.invalidate(conference);
+        FlashSale.close(websafeConferenceKey);
+        Conference.hydrateSeatsAvailable(Collections.singletonList(conference));
+        return conference;
+    }
+
+    /**
+     * Opens or closes the flash sale of the Conference on behalf of its owner.
+     *
+     * @param flashSaleSeats The number of seats to sell, or 0 to close the flash sale.
+     */
+    private static Conference updateFlashSale(final String userId,
+                                              final String websafeConferenceKey,
+                                              final int flashSaleSeats)
+            throws NotFoundException, ForbiddenException, ConflictException {
+        TxResult<Conference> result = Transactions.transact(Key.create(websafeConferenceKey),
+                new Work<TxResult<Conference>>() {
+            @Override
+            public TxResult<Conference> run() {
+                // If there is no Conference with the id, throw a 404 error.
+                Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
+                Conference conference = ofy().load().key(conferenceKey).now();
+                if (conference == null) {
+                    return new TxResult<>(
+                            new NotFoundException("No Conference found with the key: "
+                                    + websafeConferenceKey));
+                }
+                // If the user is not the owner, throw a 403 error.
+                if (!conference.getOrganizerUserId().equals(userId)) {
+                    return new TxResult<>(new ForbiddenException(
+                            "Only the owner can open or close the flash sale."));
+                }
+                if (flashSaleSeats > 0) {
+                    // The Conference itself holds the exact number of seats available.
+                    conference.openFlashSale(conference.getSeatShards() > 0
+                            ? flashSaleSeats : conference.getSeatsAvailable());
+                } else {
+                    conference.closeFlashSale();
+                }
                 ofy().save().entity(conference).now();
                 return new TxResult<>(conference);
             }
@@ -314,17 +529,15 @@ public class ConferenceApi {
             httpMethod = HttpMethod.GET
     )
     public Announcement getAnnouncement() {
-        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
-        Object message = memcacheService.get(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
-        if (message != null) {
-            return new Announcement(message.toString());
-        }
-        return null;
+        String message = Announcements.getMessage();
+        return message == null ? null : new Announcement(message);
     }
 
     /**
      * Returns a Conference object with the given conferenceId.
      *
+     * Reads through ConferenceCache, since the conference detail page is the most read resource.
+     *
      * @param websafeConferenceKey The String representation of the Conference Key.
      * @return a Conference object with the given conferenceId.
      * @throws NotFoundException when there is no Conference with the given conferenceId.
@@ -338,10 +551,11 @@ public class ConferenceApi {
             @Named("websafeConferenceKey") final String websafeConferenceKey)
             throws NotFoundException {
         Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
-        Conference conference = ofy().load().key(conferenceKey).now();
+        Conference conference = ConferenceCache.get(conferenceKey);
         if (conference == null) {
             throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
         }
+        Conference.hydrateSeatsAvailable(Collections.singletonList(conference));
         return conference;
     }
 
@@ -363,43 +577,109 @@ public class ConferenceApi {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
-        Profile profile = ofy().load().key(Key.create(Profile.class, getUserId(user))).now();
+        Key<Profile> profileKey = Key.create(Profile.class, getUserId(user));
+        Profile profile = ofy().load().key(profileKey).now();
         if (profile == null) {
             throw new NotFoundException("Profile doesn't exist.");
         }
-        List<String> keyStringsToAttend = profile.getConferenceKeysToAttend();
         List<Key<Conference>> keysToAttend = new ArrayList<>();
-        for (String keyString : keyStringsToAttend) {
+        for (Key<Registration> registrationKey :
+                ofy().load().type(Registration.class).ancestor(profileKey).keys()) {
+            keysToAttend.add(Key.<Conference>create(registrationKey.getName()));
+        }
+        // Profiles that haven't been migrated yet still hold the keys themselves.
+        for (String keyString : profile.getLegacyConferenceKeysToAttend()) {
             keysToAttend.add(Key.<Conference>create(keyString));
         }
-        return ofy().load().keys(keysToAttend).values();
+        Collection<Conference> conferences = ofy().load().keys(keysToAttend).values();
+        Conference.hydrateOrganizerDisplayNames(conferences);
+        Conference.hydrateSeatsAvailable(conferences);
+        return conferences;
     }
 
     /**
-     * Queries against the datastore with the given filters and returns the result.
+     * Queries against the datastore with the given filters and returns a page of the result.
      *
      * Normally this kind of method is supposed to get invoked by a GET HTTP method,
      * but we do it with POST, in order to receive conferenceQueryForm Object via the POST body.
      *
+     * Only a single page of conferenceQueryForm.getPageSize() Conferences is read from the
+     * datastore. When the page is full, the response carries a nextPageToken which the client
+     * sends back as startCursor in order to get the next page.
+     *
+     * Inequality filters on multiple fields are supported: those the datastore can't run are
+     * applied while streaming the result, scanning at most MAX_SCANNED_PER_PAGE Conferences.
+     * IN filters and filter groups are run as concurrent sub-queries by ConferenceQueryExecutor.
+     *
+     * Pages are cached in memcache by ConferenceQueryCache until any Conference changes.
+     *
      * @param conferenceQueryForm A form object representing the query.
-     * @return A List of Conferences that match the query.
+     * @return A CollectionResponse holding a page of Conferences that match the query.
+     * @throws BadRequestException when the query expands into too many sub-queries, or when
+     *     the startCursor is malformed or doesn't match the query.
      */
     @ApiMethod(
             name = "queryConferences",
             path = "queryConferences",
             httpMethod = HttpMethod.POST
     )
-    public List<Conference> queryConferences(ConferenceQueryForm conferenceQueryForm) {
-        Iterable<Conference> conferenceIterable = conferenceQueryForm.getQuery();
-        List<Conference> result = new ArrayList<>(0);
-        List<Key<Profile>> organizersKeyList = new ArrayList<>(0);
-        for (Conference conference : conferenceIterable) {
-            organizersKeyList.add(Key.create(Profile.class, conference.getOrganizerUserId()));
-            result.add(conference);
-        }
-        // To avoid separate datastore gets for each Conference, pre-fetch the Profiles.
-        ofy().load().keys(organizersKeyList);
-        return result;
+    public CollectionResponse<Conference> queryConferences(
+            ConferenceQueryForm conferenceQueryForm) throws BadRequestException {
+        List<Conference> result;
+        String nextPageToken = null;
+        try {
+            String cacheKey = ConferenceQueryCache.cacheKey(conferenceQueryForm);
+            ConferenceQueryCache.Page cachedPage = ConferenceQueryCache.get(cacheKey);
+            if (cachedPage != null) {
+                // Serve the page without running the query.
+                result = cachedPage.loadConferences();
+                nextPageToken = cachedPage.getNextPageToken();
+            } else {
+                CollectionResponse<Conference> page =
+                        ConferenceQueryExecutor.fetchPage(conferenceQueryForm);
+                result = new ArrayList<>(page.getItems());
+                nextPageToken = page.getNextPageToken();
+                ConferenceQueryCache.put(cacheKey, result, nextPageToken);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+        // To avoid separate datastore gets for each Conference, resolve the organizers at once.
+        Conference.hydrateOrganizerDisplayNames(result);
+        Conference.hydrateSeatsAvailable(result);
+        return CollectionResponse.<Conference>builder()
+                .setItems(result)
+                .setNextPageToken(nextPageToken)
+                .build();
+    }
+
+    /**
+     * Same as queryConferences, but returns ConferenceSummary objects for list pages.
+     *
+     * The summaries leave out the description, which makes up most of the payload of a
+     * Conference. The organizer's display names are already resolved by queryConferences, so
+     * summarizing doesn't touch the datastore.
+     *
+     * @param conferenceQueryForm A form object representing the query.
+     * @return A CollectionResponse holding a page of ConferenceSummaries that match the query.
+     * @throws BadRequestException when the query is invalid, as with queryConferences.
+     */
+    @ApiMethod(
+            name = "queryConferenceSummaries",
+            path = "queryConferenceSummaries",
+            httpMethod = HttpMethod.POST
+    )
+    public CollectionResponse<ConferenceSummary> queryConferenceSummaries(
+            ConferenceQueryForm conferenceQueryForm) throws BadRequestException {
+        CollectionResponse<Conference> page = queryConferences(conferenceQueryForm);
+        List<ConferenceSummary> summaries = new ArrayList<>(page.getItems().size());
+        for (Conference conference : page.getItems()) {
+            summaries.add(new ConferenceSummary(conference));
+        }
+        return CollectionResponse.<ConferenceSummary>builder()
+                .setItems(summaries)
+                .setNextPageToken(page.getNextPageToken())
+                .build();
     }
 
     /**
@@ -421,9 +701,43 @@ public class ConferenceApi {
             throw new UnauthorizedException("Authorization required");
         }
         String userId = getUserId(user);
-        return ofy().load().type(Conference.class)
+        List<Conference> conferences = ofy().load().type(Conference.class)
                 .ancestor(Key.create(Profile.class, userId))
                 .order("name").list();
+        Conference.hydrateOrganizerDisplayNames(conferences);
+        Conference.hydrateSeatsAvailable(conferences);
+        return conferences;
+    }
+
+    /**
+     * Returns whether the user has registered for the specified Conference.
+     *
+     * @param user An user who invokes this method, null when the user is not signed in.
+     * @param websafeConferenceKey The String representation of the Conference Key.
+     * @return Boolean true when the user has registered, otherwise false.
+     * @throws UnauthorizedException when the user is not signed in.
+     */
+    @ApiMethod(
+            name = "isRegisteredForConference",
+            path = "conference/{websafeConferenceKey}/registration",
+            httpMethod = HttpMethod.GET
+    )
+    public WrappedBoolean isRegisteredForConference(final User user,
+                                                    @Named("websafeConferenceKey")
+                                                    final String websafeConferenceKey)
+            throws UnauthorizedException {
+        // If not signed in, throw a 401 error.
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        String userId = getUserId(user);
+        if (ofy().load().key(Registration.key(userId, websafeConferenceKey)).now() != null) {
+            return new WrappedBoolean(true);
+        }
+        // Profiles that haven't been migrated yet still hold the keys themselves.
+        Profile profile = ofy().load().key(Key.create(Profile.class, userId)).now();
+        return new WrappedBoolean(profile != null
+                && profile.getLegacyConferenceKeysToAttend().contains(websafeConferenceKey));
     }
 
     /**
@@ -431,9 +745,14 @@ public class ConferenceApi {
      *
      * @param user An user who invokes this method, null when the user is not signed in.
      * @param websafeConferenceKey The String representation of the Conference Key.
+     * @param request The request, whose Idempotency-Key header makes a retry return the
+     *     outcome of the first request.
      * @return Boolean true when success, otherwise false
      * @throws UnauthorizedException when the user is not signed in.
+     * @throws BadRequestException when the Idempotency-Key is malformed.
      * @throws NotFoundException when there is no Conference with the given conferenceId.
+     * @throws ConflictException when the user has already registered, when there are no seats
+     *     available, or when the first request with the same Idempotency-Key is in progress.
      */
     @ApiMethod(
             name = "registerForConference",
@@ -442,39 +761,158 @@ public class ConferenceApi {
     )
     public WrappedBoolean registerForConference(final User user,
                                          @Named("websafeConferenceKey")
-                                         final String websafeConferenceKey)
-        throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException {
+                                         final String websafeConferenceKey,
+                                         HttpServletRequest request)
+        throws UnauthorizedException, BadRequestException, NotFoundException, ForbiddenException,
+            ConflictException {
         // If not signed in, throw a 401 error.
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
-        final String userId = getUserId(user);
-        TxResult<Boolean> result = ofy().transact(new Work<TxResult<Boolean>>() {
-            @Override
-            public TxResult<Boolean> run() {
-                Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
-                Conference conference = ofy().load().key(conferenceKey).now();
-                // 404 when there is no Conference with the given conferenceId.
-                if (conference == null) {
-                    return new TxResult<>(new NotFoundException(
-                            "No Conference found with key: " + websafeConferenceKey));
-                }
-                // Registration happens here.
-                Profile profile = getProfileFromUser(user, userId);
-                if (profile.getConferenceKeysToAttend().contains(websafeConferenceKey)) {
-                    return new TxResult<>(new ConflictException("You have already registered for this conference"));
-                } else if (conference.getSeatsAvailable() <= 0) {
-                    return new TxResult<>(new ConflictException("There are no seats available."));
-                } else {
-                    profile.addToConferenceKeysToAttend(websafeConferenceKey);
-                    conference.bookSeats(1);
-                    ofy().save().entities(profile, conference).now();
-                    return new TxResult<>(true);
-                }
+        String userId = getUserId(user);
+        String idempotencyKey = IdempotentRequests.keyOf(request);
+        String operation = "registerForConference:" + websafeConferenceKey;
+        Boolean outcome = (Boolean) IdempotentRequests.begin(userId, operation, idempotencyKey);
+        if (outcome != null) {
+            return new WrappedBoolean(outcome);
+        }
+        WrappedBoolean result = null;
+        try {
+            result = register(user, userId, websafeConferenceKey);
+        } finally {
+            if (result != null) {
+                IdempotentRequests.complete(userId, operation, idempotencyKey,
+                        result.getResult());
+            } else {
+                IdempotentRequests.abandon(userId, operation, idempotencyKey);
             }
-        });
-        // NotFoundException is actually thrown here.
-        return new WrappedBoolean(result.getResult());
+        }
+        return result;
+    }
+
+    private static WrappedBoolean register(final User user, final String userId,
+                                           final String websafeConferenceKey)
+            throws NotFoundException, ConflictException {
+        Conference cachedConference = ConferenceCache.get(
+                Key.<Conference>create(websafeConferenceKey));
+        if (cachedConference == null) {
+            throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
+        }
+        if (cachedConference.getFlashSaleSeats() > 0) {
+            WrappedBoolean admitted = registerWithFlashSale(user, userId, cachedConference);
+            if (admitted != null) {
+                return admitted;
+            }
+        }
+        return registered(SeatBooking.register(cachedConference, userId, user.getEmail()),
+                websafeConferenceKey, "There are no seats available.");
+    }
+
+    /**
+     * Turns the outcome of a SeatBooking registration into the response.
+     *
+     * @param soldOutMessage The message of the ConflictException when there are not enough
+     *     seats available.
+     * @throws NotFoundException when the Conference has been deleted.
+     * @throws ConflictException when the user has already registered, or when there are not
+     *     enough seats available.
+     */
+    private static WrappedBoolean registered(SeatBooking.Result result,
+                                             String websafeConferenceKey, String soldOutMessage)
+            throws NotFoundException, ConflictException {
+        switch (result) {
+            case REGISTERED:
+                return new WrappedBoolean(true);
+            case NOT_FOUND:
+                throw new NotFoundException(
+                        "No Conference found with key: " + websafeConferenceKey);
+            case ALREADY_REGISTERED:
+                throw new ConflictException("You have already registered for this conference");
+            default:
+                throw new ConflictException(soldOutMessage);
+        }
+    }
+
+    /**
+     * Registers a group to the specified Conference, booking all the seats in one transaction.
+     *
+     * The group is recorded as a single Registration of the user who books the seats.
+     *
+     * @param user An user who invokes this method, null when the user is not signed in.
+     * @param websafeConferenceKey The String representation of the Conference Key.
+     * @param seats The number of seats to book for the group.
+     * @param request The request, whose Idempotency-Key header makes a retry return the
+     *     outcome of the first request.
+     * @return Boolean true when success.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws BadRequestException when the number of seats is not positive or is more than
+     *     can be booked at once, or when the Idempotency-Key is malformed.
+     * @throws NotFoundException when there is no Conference with the given conferenceId.
+     * @throws ConflictException when the user has already registered, when there are not
+     *     enough seats available, when the Conference is on a flash sale, or when the first
+     *     request with the same Idempotency-Key is in progress.
+     */
+    @ApiMethod(
+            name = "registerGroupForConference",
+            path = "conference/{websafeConferenceKey}/groupRegistration",
+            httpMethod = HttpMethod.POST
+    )
+    public WrappedBoolean registerGroupForConference(final User user,
+                                                     @Named("websafeConferenceKey")
+                                                     final String websafeConferenceKey,
+                                                     @Named("seats") final int seats,
+                                                     HttpServletRequest request)
+            throws UnauthorizedException, BadRequestException, NotFoundException,
+            ForbiddenException, ConflictException {
+        // If not signed in, throw a 401 error.
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        if (seats < 1) {
+            throw new BadRequestException("seats must be positive: " + seats);
+        }
+        String userId = getUserId(user);
+        String idempotencyKey = IdempotentRequests.keyOf(request);
+        String operation = "registerGroupForConference:" + websafeConferenceKey;
+        Boolean outcome = (Boolean) IdempotentRequests.begin(userId, operation, idempotencyKey);
+        if (outcome != null) {
+            return new WrappedBoolean(outcome);
+        }
+        WrappedBoolean result = null;
+        try {
+            result = registerGroup(user, userId, websafeConferenceKey, seats);
+        } finally {
+            if (result != null) {
+                IdempotentRequests.complete(userId, operation, idempotencyKey,
+                        result.getResult());
+            } else {
+                IdempotentRequests.abandon(userId, operation, idempotencyKey);
+            }
+        }
+        return result;
+    }
+
+    private static WrappedBoolean registerGroup(final User user, final String userId,
+                                                final String websafeConferenceKey,
+                                                final int seats)
+            throws BadRequestException, NotFoundException, ConflictException {
+        Conference cachedConference = ConferenceCache.get(
+                Key.<Conference>create(websafeConferenceKey));
+        if (cachedConference == null) {
+            throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
+        }
+        if (cachedConference.getFlashSaleSeats() > 0) {
+            throw new ConflictException(
+                    "Group registrations are not accepted during the flash sale.");
+        }
+        SeatBooking.Result result;
+        try {
+            result = SeatBooking.registerGroup(cachedConference, userId, user.getEmail(), seats);
+        } catch (IllegalArgumentException e) {
+            // The group doesn't fit in the shards one transaction can book from.
+            throw new BadRequestException(e.getMessage());
+        }
+        return registered(result, websafeConferenceKey, "There are not enough seats available.");
     }
 
     /**
@@ -486,6 +924,7 @@ public class ConferenceApi {
      * @return Boolean true when success, otherwise false.
      * @throws UnauthorizedException when the user is not signed in.
      * @throws NotFoundException when there is no Conference with the given conferenceId.
+     * @throws ConflictException when the seats of a group can't be given back at the moment.
      */
     @ApiMethod(
             name = "unregisterFromConference",
@@ -500,30 +939,146 @@ public class ConferenceApi {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
+        Conference cachedConference = ConferenceCache.get(
+                Key.<Conference>create(websafeConferenceKey));
+        if (cachedConference == null) {
+            throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
+        }
+        SeatBooking.Result result = SeatBooking.unregister(cachedConference, getUserId(user));
+        if (result == SeatBooking.Result.NOT_FOUND) {
+            throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
+        } else if (result == SeatBooking.Result.CONTENDED) {
+            throw new ConflictException(
+                    "The seats can't be given back at the moment. Please try again.");
+        }
+        boolean unregistered = result == SeatBooking.Result.UNREGISTERED;
+        if (unregistered && cachedConference.getFlashSaleSeats() > 0) {
+            // Let the flash sale sell the seat again.
+            FlashSale.giveBack(websafeConferenceKey);
+        }
+        return new WrappedBoolean(unregistered);
+    }
+
+    /**
+     * Joins the waitlist of the specified Conference.
+     *
+     * When a seat becomes available, the users on the waitlist are registered in the order of
+     * joining, so that they don't have to retry registerForConference.
+     *
+     * @param user An user who invokes this method, null when the user is not signed in.
+     * @param websafeConferenceKey The String representation of the Conference Key.
+     * @return Boolean true when the user has joined, false when the user is already waiting.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws NotFoundException when there is no Conference with the given conferenceId.
+     * @throws ConflictException when the user has already registered.
+     */
+    @ApiMethod(
+            name = "joinWaitlist",
+            path = "conference/{websafeConferenceKey}/waitlist",
+            httpMethod = HttpMethod.POST
+    )
+    public WrappedBoolean joinWaitlist(final User user,
+                                       @Named("websafeConferenceKey")
+                                       final String websafeConferenceKey)
+            throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException {
+        // If not signed in, throw a 401 error.
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
         final String userId = getUserId(user);
-        TxResult<Boolean> result = ofy().transact(new Work<TxResult<Boolean>>() {
+        Conference conference = ConferenceCache.get(Key.<Conference>create(websafeConferenceKey));
+        if (conference == null) {
+            throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
+        }
+        // The WaitlistEntry is in the entity group of the user's Profile.
+        TxResult<Boolean> result = Transactions.transact(Key.create(Profile.class, userId),
+                new Work<TxResult<Boolean>>() {
             @Override
             public TxResult<Boolean> run() {
-                Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
-                Conference conference = ofy().load().key(conferenceKey).now();
-                // 404 when there is no Conference with the given conferenceId.
-                if (conference == null) {
-                    return new TxResult<>(new NotFoundException(
-                            "No Conference found with key: " + websafeConferenceKey));
-                }
-                // Un-registering from the Conference.
                 Profile profile = getProfileFromUser(user, userId);
-                if (profile.getConferenceKeysToAttend().contains(websafeConferenceKey)) {
-                    profile.unregisterFromConference(websafeConferenceKey);
-                    conference.giveBackSeats(1);
-                    ofy().save().entities(profile, conference).now();
-                    return new TxResult<>(true);
-                } else {
+                if (isRegistered(profile, websafeConferenceKey)) {
+                    return new TxResult<>(new ConflictException(
+                            "You have already registered for this conference"));
+                }
+                Key<WaitlistEntry> entryKey = WaitlistEntry.key(userId, websafeConferenceKey);
+                if (ofy().load().key(entryKey).now() != null) {
                     return new TxResult<>(false);
                 }
+                ofy().save().entity(new WaitlistEntry(userId, websafeConferenceKey,
+                        System.currentTimeMillis(), user.getEmail())).now();
+                return new TxResult<>(true);
+            }
+        });
+        // ConflictException is actually thrown here.
+        boolean joined = result.getResult();
+        // The seats may have been given back before the user joined.
+        Conference.hydrateSeatsAvailable(Collections.singletonList(conference));
+        if (joined && conference.getSeatsAvailable() > 0) {
+            Waitlist.enqueuePromotion(websafeConferenceKey);
+        }
+        return new WrappedBoolean(joined);
+    }
+
+    /**
+     * Leaves the waitlist of the specified Conference.
+     *
+     * @param user An user who invokes this method, null when the user is not signed in.
+     * @param websafeConferenceKey The String representation of the Conference Key.
+     * @return Boolean true when the user has left, false when the user wasn't waiting.
+     * @throws UnauthorizedException when the user is not signed in.
+     */
+    @ApiMethod(
+            name = "leaveWaitlist",
+            path = "conference/{websafeConferenceKey}/waitlist",
+            httpMethod = HttpMethod.DELETE
+    )
+    public WrappedBoolean leaveWaitlist(final User user,
+                                        @Named("websafeConferenceKey")
+                                        final String websafeConferenceKey)
+            throws UnauthorizedException {
+        // If not signed in, throw a 401 error.
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        final Key<WaitlistEntry> entryKey = WaitlistEntry.key(getUserId(user),
+                websafeConferenceKey);
+        // A transaction, so that a concurrent promotion either sees the entry or doesn't.
+        boolean left = Transactions.transact(entryKey.getParent(), new Work<Boolean>() {
+            @Override
+            public Boolean run() {
+                if (ofy().load().key(entryKey).now() == null) {
+                    return false;
+                }
+                ofy().delete().key(entryKey).now();
+                return true;
             }
         });
-        // NotFoundException is actually thrown here.
-        return new WrappedBoolean(result.getResult());
+        return new WrappedBoolean(left);
+    }
+
+    /**
+     * Registers to a Conference on a flash sale.
+     *
+     * The seat is claimed with the memcache counter of FlashSale, and the Registration is
+     * written by a task afterwards.
+     *
+     * @return true when the user has been admitted, or null when the counter has been lost and
+     *     the registration should go through a transaction instead.
+     */
+    private static WrappedBoolean registerWithFlashSale(User user, String userId,
+                                                        Conference conference)
+            throws ConflictException {
+        if (ofy().load().key(Registration.key(userId, conference.getWebsafeKey())).now()
+                != null) {
+            throw new ConflictException("You have already registered for this conference");
+        }
+        Boolean admitted = FlashSale.admit(conference, userId, user.getEmail());
+        if (admitted == null) {
+            return null;
+        }
+        if (!admitted) {
+            throw new ConflictException("There are no seats available.");
+        }
+        return new WrappedBoolean(true);
     }
 }
@@ -278,7 +278,8 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
         {displayName: '>=', enumValue: 'GTEQ'},
         {displayName: '<', enumValue: 'LT'},
         {displayName: '<=', enumValue: 'LTEQ'},
-        {displayName: '!=', enumValue: 'NE'}
+        {displayName: '!=', enumValue: 'NE'},
+        {displayName: 'in', enumValue: 'IN'}
     ];
 
     /**
@@ -287,6 +288,12 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
      */
     $scope.conferences = [];
 
+    /**
+     * Holds the token for fetching the next page of queryConferences, null on the last page.
+     * @type {string}
+     */
+    $scope.nextPageToken = null;
+
     /**
      * Holds the state if offcanvas is enabled.
      *
@@ -418,9 +425,29 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
     };
 
     /**
-     * Invokes the conference.queryConferences API.
+     * Invokes the conference.queryConferenceSummaries API.
      */
     $scope.queryConferencesAll = function () {
+        $scope.conferences = [];
+        $scope.nextPageToken = null;
+        $scope.fetchConferencesPage();
+    };
+
+    /**
+     * Fetches the next page of the current query and appends it to the conferences.
+     */
+    $scope.loadMoreConferences = function () {
+        if ($scope.nextPageToken) {
+            $scope.fetchConferencesPage($scope.nextPageToken);
+        }
+    };
+
+    /**
+     * Invokes the conference.queryConferenceSummaries API for a single page.
+     *
+     * @param startCursor the nextPageToken of the previous page, or undefined for the first page.
+     */
+    $scope.fetchConferencesPage = function (startCursor) {
         var sendFilters = {
             filters: []
         }
@@ -434,8 +461,11 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
                 });
             }
         }
+        if (startCursor) {
+            sendFilters.startCursor = startCursor;
+        }
         $scope.loading = true;
-        gapi.client.conference.queryConferences(sendFilters).
+        gapi.client.conference.queryConferenceSummaries(sendFilters).
             execute(function (resp) {
                 $scope.$apply(function () {
                     $scope.loading = false;
@@ -452,10 +482,10 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
                         $scope.alertStatus = 'success';
                         $log.info($scope.messages);
 
-                        $scope.conferences = [];
                         angular.forEach(resp.items, function (conference) {
                             $scope.conferences.push(conference);
                         });
+                        $scope.nextPageToken = resp.nextPageToken || null;
                     }
                     $scope.submitted = true;
                 });
@@ -575,21 +605,18 @@ conferenceApp.controllers.controller('ConferenceDetailCtrl', function ($scope, $
 
         $scope.loading = true;
         // If the user is attending the conference, updates the status message and available function.
-        gapi.client.conference.getProfile().execute(function (resp) {
+        gapi.client.conference.isRegisteredForConference({
+            websafeConferenceKey: $routeParams.websafeConferenceKey
+        }).execute(function (resp) {
             $scope.$apply(function () {
                 $scope.loading = false;
                 if (resp.error) {
-                    // Failed to get a user profile.
-                } else {
-                    var profile = resp.result;
-                    for (var i = 0; i < profile.conferenceKeysToAttend.length; i++) {
-                        if ($routeParams.websafeConferenceKey == profile.conferenceKeysToAttend[i]) {
-                            // The user is attending the conference.
-                            $scope.alertStatus = 'info';
-                            $scope.messages = 'You are attending this conference';
-                            $scope.isUserAttending = true;
-                        }
-                    }
+                    // Failed to get the registration.
+                } else if (resp.result.result) {
+                    // The user is attending the conference.
+                    $scope.alertStatus = 'info';
+                    $scope.messages = 'You are attending this conference';
+                    $scope.isUserAttending = true;
                 }
             });
         });
@@ -1,7 +1,9 @@
 package com.google.devrel.training.conference.domain;
 
+import static com.google.devrel.training.conference.service.OfyService.ofy;
 import static org.junit.Assert.*;
 
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
@@ -11,7 +13,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -64,12 +66,25 @@ public class ProfileTest {
     }
 
     @Test
-    public void testListValues() throws Exception {
-        List<String> conferenceKeys = new ArrayList<>();
-        assertEquals(conferenceKeys, profile.getConferenceKeysToAttend());
+    public void testMigrateRegistrations() throws Exception {
+        assertTrue(profile.migrateRegistrations().isEmpty());
+
+        // A Profile saved before Registrations were introduced.
         Key<Conference> conferenceKey = Key.create(Conference.class, 123L);
-        profile.addToConferenceKeysToAttend(conferenceKey.getString());
-        conferenceKeys.add(conferenceKey.getString());
-        assertEquals(conferenceKeys, profile.getConferenceKeysToAttend());
+        Entity entity = new Entity("Profile", USER_ID);
+        entity.setProperty("displayName", DISPLAY_NAME);
+        entity.setProperty("conferenceKeysToAttend",
+                Collections.singletonList(conferenceKey.getString()));
+        Profile legacyProfile = ofy().load().fromEntity(entity);
+        assertEquals(Collections.singletonList(conferenceKey.getString()),
+                legacyProfile.getLegacyConferenceKeysToAttend());
+
+        List<Registration> registrations = legacyProfile.migrateRegistrations();
+        assertEquals(1, registrations.size());
+        assertEquals(USER_ID, registrations.get(0).getUserId());
+        assertEquals(conferenceKey, registrations.get(0).getConferenceKey());
+        assertEquals(Registration.key(USER_ID, conferenceKey.getString()),
+                registrations.get(0).getKey());
+        assertTrue(legacyProfile.getLegacyConferenceKeysToAttend().isEmpty());
     }
 }
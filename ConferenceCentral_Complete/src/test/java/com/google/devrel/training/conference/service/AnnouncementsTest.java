@@ -0,0 +1,132 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.NearlySoldOut;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.google.devrel.training.conference.testing.LocalQueues;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for Announcements.
+ */
+public class AnnouncementsTest {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig());
+
+    private ConferenceApi conferenceApi;
+
+    private User organizer;
+
+    private User attendee;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        LocalQueues.load();
+        ConferenceCache.clearLocalCache();
+        conferenceApi = new ConferenceApi();
+        organizer = new User("organizer@example.com", "gmail.com", "organizer");
+        attendee = new User("attendee@example.com", "gmail.com", "attendee");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ConferenceCache.clearLocalCache();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private String getMessage() {
+        return conferenceApi.getAnnouncement() == null
+                ? null : conferenceApi.getAnnouncement().getMessage();
+    }
+
+    @Test
+    public void testUpdatedWithSeats() throws Exception {
+        Conference conference = conferenceApi.createConference(organizer, new ConferenceForm(
+                "GCP Live", null, null, null, null, null, NearlySoldOut.SEATS_THRESHOLD), null);
+        String websafeConferenceKey = conference.getWebsafeKey();
+        conferenceApi.createConference(organizer, new ConferenceForm(
+                "Another", null, null, null, null, null, 100), null);
+        assertNull(getMessage());
+
+        // Booking a seat makes the Conference nearly sold out.
+        conferenceApi.registerForConference(attendee, websafeConferenceKey, null);
+        assertEquals("Last chance to attend! The following conferences are nearly sold out: "
+                + "GCP Live", getMessage());
+
+        // Renaming the Conference renames it in the announcement.
+        conferenceApi.updateConference(organizer, new ConferenceForm(
+                "GCP Next", null, null, null, null, null, NearlySoldOut.SEATS_THRESHOLD),
+                websafeConferenceKey);
+        assertTrue(getMessage().endsWith(": GCP Next"));
+
+        // The announcement is rebuilt from the NearlySoldOut set when memcache loses it.
+        MemcacheServiceFactory.getMemcacheService().delete(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+        assertTrue(getMessage().endsWith(": GCP Next"));
+
+        // Giving back the seat makes it leave the announcement.
+        conferenceApi.unregisterFromConference(attendee, websafeConferenceKey);
+        assertNull(getMessage());
+    }
+
+    @Test
+    public void testStaleMessageIsNotCached() throws Exception {
+        Conference conference = conferenceApi.createConference(organizer, new ConferenceForm(
+                "GCP Live", null, null, null, null, null, NearlySoldOut.SEATS_THRESHOLD), null);
+        conferenceApi.registerForConference(attendee, conference.getWebsafeKey(), null);
+        MemcacheServiceFactory.getMemcacheService().delete(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+        // A reader loads the set while the Conference is nearly sold out...
+        NearlySoldOut stale = ofy().load().key(NearlySoldOut.key()).now();
+
+        // ...but puts the message only after an update has dropped it.
+        conferenceApi.unregisterFromConference(attendee, conference.getWebsafeKey());
+        assertTrue(Announcements.putMessage(stale).endsWith(": GCP Live"));
+        ofy().clear();
+        assertNull(getMessage());
+    }
+
+    @Test
+    public void testSoldOutIsNotListed() throws Exception {
+        Conference conference = conferenceApi.createConference(organizer, new ConferenceForm(
+                "GCP Live", null, null, null, null, null, 1), null);
+        assertTrue(getMessage().endsWith(": GCP Live"));
+        conferenceApi.registerForConference(attendee, conference.getWebsafeKey(), null);
+        assertNull(getMessage());
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        Conference conference = conferenceApi.createConference(organizer, new ConferenceForm(
+                "GCP Live", null, null, null, null, null, 3), null);
+        // Changes made behind Announcements are picked up by the rebuild.
+        ofy().save().entities(new Conference(1001L, "organizer", new ConferenceForm(
+                "GCP Next", null, null, null, null, null, 2)), new Conference(
+                conference.getId(), "organizer", new ConferenceForm(
+                "GCP Live", null, null, null, null, null, 100))).now();
+        assertTrue(getMessage().endsWith(": GCP Live"));
+
+        AnnouncementRebuildJob job = new AnnouncementRebuildJob();
+        String jobId = job.start();
+        assertNull(job.runBatch(jobId, null));
+        assertTrue(getMessage().endsWith(": GCP Next"));
+    }
+}
@@ -0,0 +1,123 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.domain.BatchJobStatus;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.googlecode.objectify.cmd.Query;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for BatchJob.
+ */
+public class BatchJobTest {
+
+    private static final String TASK_URL = "/tasks/batch_job";
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalTaskQueueTestConfig());
+
+    /**
+     * Collects the userIds of the Profiles.
+     */
+    private static class ProfileJob extends BatchJob<Profile> {
+
+        private final List<String> userIds = new ArrayList<>();
+
+        private int finished;
+
+        private ProfileJob() {
+            super("profiles", 3);
+        }
+
+        @Override
+        protected Query<Profile> query() {
+            return ofy().load().type(Profile.class);
+        }
+
+        @Override
+        protected void process(List<Profile> batch) {
+            for (Profile profile : batch) {
+                userIds.add(profile.getUserId());
+            }
+        }
+
+        @Override
+        protected void finish() {
+            finished++;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        // The local task queue may hold the tasks of other tests.
+        LocalTaskQueueTestConfig.getLocalTaskQueue().flushQueue("default");
+        for (int i = 0; i < 7; i++) {
+            ofy().save().entity(new Profile("user" + i, "User " + i, "user" + i + "@example.com",
+                    TeeShirtSize.NOT_SPECIFIED)).now();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private int countTasks() {
+        int count = 0;
+        for (TaskStateInfo task : LocalTaskQueueTestConfig.getLocalTaskQueue()
+                .getQueueStateInfo().get("default").getTaskInfo()) {
+            if (TASK_URL.equals(task.getUrl())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testRun() throws Exception {
+        ProfileJob job = new ProfileJob();
+        String jobId = job.start();
+        assertEquals(1, countTasks());
+
+        String cursor = job.runBatch(jobId, null);
+        assertNotNull(cursor);
+        assertEquals(3, job.userIds.size());
+        assertEquals(2, countTasks());
+        // A retried task doesn't process the batch again.
+        assertNull(job.runBatch(jobId, null));
+        assertEquals(3, job.userIds.size());
+
+        cursor = job.runBatch(jobId, cursor);
+        assertNotNull(cursor);
+        assertNull(job.runBatch(jobId, cursor));
+        assertEquals(3, countTasks());
+        assertEquals(1, job.finished);
+        assertEquals(7, job.userIds.size());
+        for (int i = 0; i < 7; i++) {
+            assertTrue(job.userIds.contains("user" + i));
+        }
+
+        BatchJobStatus status = ofy().load().key(BatchJobStatus.key(jobId)).now();
+        assertTrue(status.isDone());
+        assertEquals(3, status.getBatches());
+        assertEquals(7, status.getProcessed());
+        assertEquals("profiles", status.getJobName());
+    }
+}
@@ -0,0 +1,96 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.testing.RpcCounter;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for ConferenceCache.
+ */
+public class ConferenceCacheTest {
+
+    private static final String USER_ID = "123456789";
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig());
+
+    private Conference conference;
+
+    private Key<Conference> conferenceKey;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        ConferenceCache.clearLocalCache();
+        conference = new Conference(1001L, USER_ID, new ConferenceForm(
+                "GCP Live", "New announcements", null, "Mountain View", null, null, 500));
+        ofy().save().entity(conference).now();
+        ofy().clear();
+        conferenceKey = Key.create(conference.getWebsafeKey());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ConferenceCache.clearLocalCache();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testReadThrough() throws Exception {
+        ConferenceCache.Stats before = ConferenceCache.getStats();
+        assertEquals("GCP Live", ConferenceCache.get(conferenceKey).getName());
+
+        // The local tier and memcache serve the Conference without the datastore.
+        RpcCounter counter = RpcCounter.install();
+        assertEquals("GCP Live", ConferenceCache.get(conferenceKey).getName());
+        ConferenceCache.clearLocalCache();
+        assertEquals("GCP Live", ConferenceCache.get(conferenceKey).getName());
+        assertEquals(0, counter.getDatastoreCalls());
+        counter.uninstall();
+
+        ConferenceCache.Stats after = ConferenceCache.getStats();
+        assertEquals(1, after.getMisses() - before.getMisses());
+        assertEquals(1, after.getLocalHits() - before.getLocalHits());
+        assertEquals(1, after.getMemcacheHits() - before.getMemcacheHits());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        ConferenceCache.get(conferenceKey);
+        conference.bookSeats(1);
+        ofy().save().entity(conference).now();
+        ConferenceCache.invalidate(conference);
+        assertEquals(499, ConferenceCache.get(conferenceKey).getSeatsAvailable());
+    }
+
+    @Test
+    public void testReadAfterInvalidateIsCached() throws Exception {
+        long version = conference.getVersion();
+        conference.bookSeats(1);
+        ofy().save().entity(conference).now();
+        ConferenceCache.invalidate(conference);
+        assertEquals(version + 1, conference.getVersion());
+
+        // The first read replaces the marker left by invalidate with the fresh Conference.
+        ofy().clear();
+        assertEquals(499, ConferenceCache.get(conferenceKey).getSeatsAvailable());
+        ConferenceCache.clearLocalCache();
+        ConferenceCache.Stats before = ConferenceCache.getStats();
+        assertEquals(499, ConferenceCache.get(conferenceKey).getSeatsAvailable());
+        assertEquals(1, ConferenceCache.getStats().getMemcacheHits() - before.getMemcacheHits());
+    }
+}
@@ -0,0 +1,282 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
+import com.google.appengine.tools.development.Clock;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.testing.LocalQueues;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Tests for ConfirmationEmails, which send the emails to a fake Mailer standing in for the mail
+ * server.
+ */
+public class ConfirmationEmailsTest {
+
+    private static final long DEADLINE_MILLIS = 30 * 1000;
+
+    /**
+     * The clock of the local services. The pull queue only leases the tasks whose eta is before
+     * the current time, so the tests move the clock past the tasks queued so far before every
+     * lease, rather than depending on a millisecond passing in between.
+     */
+    private static class LeaseClock implements Clock {
+
+        private long time = System.currentTimeMillis();
+
+        @Override
+        public synchronized long getCurrentTime() {
+            return time;
+        }
+
+        synchronized void advancePastQueuedTasks() {
+            time = Math.max(time, System.currentTimeMillis()) + 1;
+        }
+    }
+
+    private final LeaseClock clock = new LeaseClock();
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalTaskQueueTestConfig())
+                    .setClock(clock);
+
+    private Conference conference;
+
+    private String ratePerSecond;
+
+    /**
+     * Records the emails sent, or fails to send them.
+     */
+    private static class FakeMailer implements ConfirmationEmails.Mailer {
+
+        private final boolean failing;
+
+        private final List<String> recipients = new ArrayList<>();
+
+        private final List<String> bodies = new ArrayList<>();
+
+        private int closed;
+
+        FakeMailer(boolean failing) {
+            this.failing = failing;
+        }
+
+        @Override
+        public void send(Message message) throws MessagingException {
+            if (failing) {
+                throw new MessagingException("The mail server is down.");
+            }
+            recipients.add(((InternetAddress) message.getAllRecipients()[0]).getAddress());
+            try {
+                bodies.add((String) message.getContent());
+            } catch (IOException e) {
+                throw new MessagingException("Unreadable message", e);
+            }
+        }
+
+        @Override
+        public void close() {
+            closed++;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        LocalQueues.load();
+        purgeQueues();
+        // Don't slow the tests down to the production rate.
+        ratePerSecond = System.setProperty(ConfirmationEmails.RATE_PROPERTY, "1000");
+        conference = new Conference(1L, "organizer", new ConferenceForm("GCP Live",
+                "A description", ImmutableList.of("Google", "Cloud"), "London", new Date(),
+                new Date(), 100));
+        ofy().save().entity(conference).now();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (ratePerSecond == null) {
+            System.clearProperty(ConfirmationEmails.RATE_PROPERTY);
+        } else {
+            System.setProperty(ConfirmationEmails.RATE_PROPERTY, ratePerSecond);
+        }
+        purgeQueues();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private static void purgeQueues() {
+        QueueFactory.getQueue(ConfirmationEmails.QUEUE_NAME).purge();
+        QueueFactory.getQueue(ConfirmationEmails.DEAD_LETTER_QUEUE_NAME).purge();
+    }
+
+    private void enqueue(String email) {
+        ConfirmationEmails.enqueue(email, ConfirmationEmails.CONFERENCE_CREATED,
+                Key.<Conference>create(conference.getWebsafeKey()));
+    }
+
+    private int send(FakeMailer mailer) {
+        clock.advancePastQueuedTasks();
+        return ConfirmationEmails.send(mailer, System.currentTimeMillis() + DEADLINE_MILLIS);
+    }
+
+    private static QueueStateInfo queueState(String queueName) {
+        return LocalTaskQueueTestConfig.getLocalTaskQueue().getQueueStateInfo().get(queueName);
+    }
+
+    @Test
+    public void testSend() throws Exception {
+        enqueue("first@example.com");
+        enqueue("second@example.com");
+
+        FakeMailer mailer = new FakeMailer(false);
+        assertEquals(2, send(mailer));
+        assertEquals(2, mailer.recipients.size());
+        assertTrue(mailer.recipients.contains("first@example.com"));
+        assertTrue(mailer.recipients.contains("second@example.com"));
+        assertEquals(1, mailer.closed);
+        assertEquals(0, queueState(ConfirmationEmails.QUEUE_NAME).getCountTasks());
+    }
+
+    @Test
+    public void testSendInBatches() throws Exception {
+        int count = ConfirmationEmails.LEASE_BATCH_SIZE * 2 + 1;
+        for (int i = 0; i < count; i++) {
+            enqueue("user" + i + "@example.com");
+        }
+        FakeMailer mailer = new FakeMailer(false);
+        assertEquals(count, send(mailer));
+        assertEquals(count, mailer.recipients.size());
+        assertEquals(1, mailer.closed);
+        assertEquals(0, queueState(ConfirmationEmails.QUEUE_NAME).getCountTasks());
+    }
+
+    @Test
+    public void testRetryWithBackoff() throws Exception {
+        enqueue("user@example.com");
+        long before = System.currentTimeMillis();
+
+        assertEquals(0, send(new FakeMailer(true)));
+        // The email is queued again, and can't be leased before the backoff.
+        QueueStateInfo queueState = queueState(ConfirmationEmails.QUEUE_NAME);
+        assertEquals(1, queueState.getCountTasks());
+        TaskStateInfo task = queueState.getTaskInfo().get(0);
+        assertTrue(task.getBody().contains(ConfirmationEmails.ATTEMPTS_PARAM + "=1"));
+        assertTrue(task.getEtaMillis() >= before + ConfirmationEmails.backoffSeconds(1) * 1000);
+        assertEquals(0, send(new FakeMailer(false)));
+        assertEquals(0, queueState(ConfirmationEmails.DEAD_LETTER_QUEUE_NAME).getCountTasks());
+    }
+
+    @Test
+    public void testDeadLetter() throws Exception {
+        QueueFactory.getQueue(ConfirmationEmails.QUEUE_NAME).add(
+                TaskOptions.Builder.withMethod(TaskOptions.Method.PULL)
+                .param("email", "user@example.com")
+                .param("template", ConfirmationEmails.CONFERENCE_CREATED)
+                .param("conferenceKey", conference.getWebsafeKey())
+                .param(ConfirmationEmails.ATTEMPTS_PARAM,
+                        Integer.toString(ConfirmationEmails.MAX_ATTEMPTS - 1)));
+
+        assertEquals(0, send(new FakeMailer(true)));
+        assertEquals(0, queueState(ConfirmationEmails.QUEUE_NAME).getCountTasks());
+        QueueStateInfo deadLetters = queueState(ConfirmationEmails.DEAD_LETTER_QUEUE_NAME);
+        assertEquals(1, deadLetters.getCountTasks());
+        assertTrue(deadLetters.getTaskInfo().get(0).getBody().contains("user%40example.com"));
+    }
+
+    @Test
+    public void testMalformedConferenceKey() throws Exception {
+        QueueFactory.getQueue(ConfirmationEmails.QUEUE_NAME).add(
+                TaskOptions.Builder.withMethod(TaskOptions.Method.PULL)
+                .param("email", "malformed@example.com")
+                .param("template", ConfirmationEmails.CONFERENCE_CREATED)
+                .param("conferenceKey", "not-a-key"));
+        enqueue("user@example.com");
+
+        // Only the malformed email is dead lettered, without retrying.
+        FakeMailer mailer = new FakeMailer(false);
+        assertEquals(1, send(mailer));
+        assertEquals(ImmutableList.of("user@example.com"), mailer.recipients);
+        assertEquals(0, queueState(ConfirmationEmails.QUEUE_NAME).getCountTasks());
+        QueueStateInfo deadLetters = queueState(ConfirmationEmails.DEAD_LETTER_QUEUE_NAME);
+        assertEquals(1, deadLetters.getCountTasks());
+        assertTrue(deadLetters.getTaskInfo().get(0).getBody().contains("malformed%40example.com"));
+    }
+
+    @Test
+    public void testRender() throws Exception {
+        enqueue("user@example.com");
+        // The task holds the key rather than the description.
+        String body = queueState(ConfirmationEmails.QUEUE_NAME).getTaskInfo().get(0).getBody();
+        assertFalse(body.contains("London"));
+        FakeMailer mailer = new FakeMailer(false);
+        assertEquals(1, send(mailer));
+        assertEquals("Hi, you have created a following conference.\n" + conference,
+                mailer.bodies.get(0));
+
+        // The email shows the Conference as it is when sent.
+        enqueue("user@example.com");
+        conference.updateWithConferenceForm(new ConferenceForm("GCP Next", null, null, null,
+                null, null, 100));
+        ofy().save().entity(conference).now();
+        assertEquals(1, send(mailer));
+        assertEquals("Hi, you have created a following conference.\n" + conference,
+                mailer.bodies.get(1));
+        assertTrue(mailer.bodies.get(1).contains("Name: GCP Next\n"));
+    }
+
+    @Test
+    public void testDeletedConference() throws Exception {
+        enqueue("user@example.com");
+        ofy().delete().entity(conference).now();
+
+        FakeMailer mailer = new FakeMailer(false);
+        assertEquals(0, send(mailer));
+        assertTrue(mailer.recipients.isEmpty());
+        assertEquals(0, queueState(ConfirmationEmails.QUEUE_NAME).getCountTasks());
+        assertEquals(0, queueState(ConfirmationEmails.DEAD_LETTER_QUEUE_NAME).getCountTasks());
+    }
+
+    @Test
+    public void testConferenceInfo() throws Exception {
+        ConfirmationEmails.enqueueWithConferenceInfo("user@example.com", "Name: GCP Live\n");
+
+        FakeMailer mailer = new FakeMailer(false);
+        assertEquals(1, send(mailer));
+        assertEquals("Hi, you have created a following conference.\nName: GCP Live\n",
+                mailer.bodies.get(0));
+    }
+
+    @Test
+    public void testBackoffSeconds() throws Exception {
+        assertEquals(30, ConfirmationEmails.backoffSeconds(1));
+        assertEquals(60, ConfirmationEmails.backoffSeconds(2));
+        assertEquals(120, ConfirmationEmails.backoffSeconds(3));
+        assertEquals(3600, ConfirmationEmails.backoffSeconds(100));
+    }
+}
@@ -0,0 +1,184 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.api.server.spi.response.ConflictException;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.util.concurrent.Futures;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.google.devrel.training.conference.testing.LocalQueues;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Tests for IdempotentRequests.
+ */
+public class IdempotentRequestsTest {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig());
+
+    @SuppressWarnings("rawtypes")
+    private ApiProxy.Delegate delegate;
+
+    private ConferenceApi conferenceApi;
+
+    private User user;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        delegate = ApiProxy.getDelegate();
+        LocalQueues.load();
+        // The local task queue may hold the tasks of other tests.
+        LocalTaskQueueTestConfig.getLocalTaskQueue().flushQueue(ConfirmationEmails.QUEUE_NAME);
+        ConferenceCache.clearLocalCache();
+        conferenceApi = new ConferenceApi();
+        user = new User("user@example.com", "gmail.com", "user");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ApiProxy.setDelegate(delegate);
+        ConferenceCache.clearLocalCache();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    /**
+     * Returns a request carrying only the Idempotency-Key header.
+     */
+    private static HttpServletRequest requestWithKey(final String idempotencyKey) {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                HttpServletRequest.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getHeader")
+                                && IdempotentRequests.HEADER.equals(args[0])) {
+                            return idempotencyKey;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Makes every memcache call fail, as when memcache is unavailable.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private void failMemcache() {
+        ApiProxy.setDelegate((ApiProxy.Delegate) Proxy.newProxyInstance(
+                ApiProxy.Delegate.class.getClassLoader(),
+                new Class<?>[] {ApiProxy.Delegate.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if (method.getName().equals("makeAsyncCall")
+                                && "memcache".equals(args[1])) {
+                            return Futures.immediateFailedFuture(
+                                    new ApiProxy.ApplicationException(0, "Unavailable"));
+                        }
+                        return method.invoke(delegate, args);
+                    }
+                }));
+    }
+
+    private int countEmailTasks() {
+        return LocalTaskQueueTestConfig.getLocalTaskQueue().getQueueStateInfo()
+                .get(ConfirmationEmails.QUEUE_NAME).getCountTasks();
+    }
+
+    @Test
+    public void testBegin() throws Exception {
+        assertNull(IdempotentRequests.begin("user", "op", null));
+        assertNull(IdempotentRequests.begin("user", "op", "key"));
+        try {
+            IdempotentRequests.begin("user", "op", "key");
+            fail("The first request is still in progress.");
+        } catch (ConflictException e) {
+            // expected
+        }
+        // The records are scoped by the user and the operation.
+        assertNull(IdempotentRequests.begin("other", "op", "key"));
+        assertNull(IdempotentRequests.begin("user", "other", "key"));
+
+        IdempotentRequests.complete("user", "op", "key", true);
+        assertEquals(true, IdempotentRequests.begin("user", "op", "key"));
+        IdempotentRequests.abandon("user", "op", "key");
+        assertNull(IdempotentRequests.begin("user", "op", "key"));
+    }
+
+    @Test
+    public void testMemcacheUnavailable() throws Exception {
+        failMemcache();
+        // The requests run without the idempotency guarantee.
+        assertNull(IdempotentRequests.begin("user", "op", "key"));
+        assertNull(IdempotentRequests.begin("user", "op", "key"));
+    }
+
+    @Test
+    public void testCreateConferenceRetry() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                "GCP Live", null, null, null, null, null, 10);
+        Conference conference = conferenceApi.createConference(user, conferenceForm,
+                requestWithKey("create-1"));
+        Conference retried = conferenceApi.createConference(user, conferenceForm,
+                requestWithKey("create-1"));
+        assertEquals(conference.getWebsafeKey(), retried.getWebsafeKey());
+        assertEquals(1, countEmailTasks());
+        assertEquals(1, conferenceApi.getConferencesCreated(user).size());
+
+        // Another key creates another Conference.
+        Conference another = conferenceApi.createConference(user, conferenceForm,
+                requestWithKey("create-2"));
+        assertNotEquals(conference.getWebsafeKey(), another.getWebsafeKey());
+        assertEquals(2, countEmailTasks());
+    }
+
+    @Test
+    public void testRegisterForConferenceRetry() throws Exception {
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                "GCP Live", null, null, null, null, null, 10), null);
+        String websafeConferenceKey = conference.getWebsafeKey();
+        assertTrue(conferenceApi.registerForConference(user, websafeConferenceKey,
+                requestWithKey("register-1")).getResult());
+        // The retry gets the original outcome instead of a ConflictException.
+        assertTrue(conferenceApi.registerForConference(user, websafeConferenceKey,
+                requestWithKey("register-1")).getResult());
+        assertEquals(9, conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+        try {
+            conferenceApi.registerForConference(user, websafeConferenceKey,
+                    requestWithKey("register-2"));
+            fail("A new request should fail.");
+        } catch (ConflictException e) {
+            // expected
+        }
+
+        // A failed request can be retried with the same key.
+        conferenceApi.unregisterFromConference(user, websafeConferenceKey);
+        assertTrue(conferenceApi.registerForConference(user, websafeConferenceKey,
+                requestWithKey("register-2")).getResult());
+    }
+}
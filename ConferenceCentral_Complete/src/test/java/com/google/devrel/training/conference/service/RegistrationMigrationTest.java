@@ -0,0 +1,85 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for RegistrationMigration.
+ */
+public class RegistrationMigrationTest {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalTaskQueueTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    /**
+     * Saves a Profile the way it was saved before Registrations were introduced.
+     */
+    private void saveLegacyProfile(String userId, List<String> conferenceKeysToAttend) {
+        Entity entity = new Entity("Profile", userId);
+        entity.setProperty("displayName", userId);
+        entity.setProperty("conferenceKeysToAttend", conferenceKeysToAttend);
+        DatastoreServiceFactory.getDatastoreService().put(entity);
+    }
+
+    @Test
+    public void testMigrateBatches() throws Exception {
+        int profiles = RegistrationMigration.BATCH_SIZE + 1;
+        String conferenceKey1 = Key.create(Conference.class, 1L).getString();
+        String conferenceKey2 = Key.create(Conference.class, 2L).getString();
+        List<String> conferenceKeys = new ArrayList<>();
+        conferenceKeys.add(conferenceKey1);
+        conferenceKeys.add(conferenceKey2);
+        for (int i = 0; i < profiles; i++) {
+            saveLegacyProfile("user" + i, conferenceKeys);
+        }
+
+        String cursor = RegistrationMigration.migrateBatch(null);
+        assertNotNull("The first batch should chain the next one.", cursor);
+        assertNull(RegistrationMigration.migrateBatch(cursor));
+        ofy().clear();
+
+        for (int i = 0; i < profiles; i++) {
+            Profile profile = ofy().load().key(Key.create(Profile.class, "user" + i)).now();
+            assertTrue(profile.getLegacyConferenceKeysToAttend().isEmpty());
+            assertEquals(2, ofy().load().type(Registration.class)
+                    .ancestor(Key.create(Profile.class, "user" + i)).count());
+        }
+        // The attendees are queryable by Conference.
+        assertEquals(profiles, ofy().load().type(Registration.class)
+                .filter("conferenceKey", Key.create(conferenceKey1)).count());
+
+        // Migrating again is a no-op.
+        assertFalse(RegistrationMigration.migrate(
+                ofy().load().key(Key.create(Profile.class, "user0")).now()));
+    }
+}
@@ -0,0 +1,120 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.devrel.training.conference.service.RequestMetrics.EndpointMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for RequestMetrics and its Histogram.
+ */
+public class RequestMetricsTest {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig());
+
+    @SuppressWarnings("rawtypes")
+    private ApiProxy.Delegate delegate;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        RequestMetrics.clear();
+        delegate = ApiProxy.getDelegate();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ApiProxy.setDelegate(delegate);
+        RequestMetrics.clear();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testHistogramBuckets() throws Exception {
+        for (long value = 0; value < 100000; value += 7) {
+            int index = Histogram.indexOf(value);
+            assertTrue(Histogram.highestValueOf(index) >= value);
+            assertTrue(index == 0 || Histogram.highestValueOf(index - 1) < value);
+        }
+        assertEquals(Histogram.MAX_VALUE,
+                Histogram.highestValueOf(Histogram.indexOf(Histogram.MAX_VALUE)));
+    }
+
+    @Test
+    public void testHistogramPercentiles() throws Exception {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        for (int value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getSum());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        // A percentile is reported within about 6% of the recorded value.
+        assertEquals(500, histogram.getValueAtPercentile(50), 500 * 0.07);
+        assertEquals(990, histogram.getValueAtPercentile(99), 990 * 0.07);
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getValueAtPercentile(0));
+    }
+
+    @Test
+    public void testHistogramBounds() throws Exception {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(Histogram.MAX_VALUE, histogram.getMax());
+    }
+
+    @Test
+    public void testRequestIsRecorded() throws Exception {
+        RequestMetrics.install();
+        // Installing again doesn't count the calls twice.
+        RequestMetrics.install();
+
+        // The low level APIs make exactly the calls below, unlike the global cache of
+        // Objectify, which makes memcache calls of its own.
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        long start = RequestMetrics.begin("ConferenceApi.saveProfile");
+        Entity profile = new Entity("Profile", "123456789");
+        profile.setProperty("displayName", "Alice");
+        datastore.put(profile);
+        assertNotNull(datastore.get(KeyFactory.createKey("Profile", "123456789")));
+        MemcacheServiceFactory.getMemcacheService().get("missing");
+        RequestMetrics.end(start, false);
+
+        start = RequestMetrics.begin("ConferenceApi.saveProfile");
+        RequestMetrics.end(start, true);
+
+        // Calls outside of a request aren't recorded.
+        MemcacheServiceFactory.getMemcacheService().get("missing");
+
+        EndpointMetrics metrics = RequestMetrics.snapshot().get("ConferenceApi.saveProfile");
+        assertEquals(2, metrics.getLatencyMicros().getCount());
+        assertEquals(1, metrics.getErrors());
+        assertEquals(2, metrics.getDatastoreCalls());
+        assertEquals(1, metrics.getMemcacheCalls());
+        assertEquals(3, metrics.getRequestBytes().getCount());
+        assertTrue(metrics.getRequestBytes().getSum() > 0);
+        assertTrue(metrics.getResponseBytes().getCount() > 0);
+        assertEquals(1, RequestMetrics.snapshot().size());
+    }
+}
@@ -0,0 +1,132 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Profile;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ConcurrentModificationException;
+import java.util.List;
+
+/**
+ * Tests for Transactions.
+ */
+public class TransactionsTest {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy());
+
+    private Key<Profile> quietKey;
+
+    private Key<Profile> hotKey;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        Transactions.clearStats();
+        quietKey = Key.create(Profile.class, "quiet");
+        hotKey = Key.create(Profile.class, "hot");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Transactions.clearStats();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    /**
+     * Returns a Work colliding the given number of times before it succeeds.
+     */
+    private static Work<Integer> collidingWork(final int collisions) {
+        return new Work<Integer>() {
+            private int attempts;
+
+            @Override
+            public Integer run() {
+                attempts++;
+                if (attempts <= collisions) {
+                    throw new ConcurrentModificationException();
+                }
+                return attempts;
+            }
+        };
+    }
+
+    @Test
+    public void testBackoffMillis() throws Exception {
+        for (int attempt = 1; attempt < 40; attempt++) {
+            long backoff = Transactions.backoffMillis(attempt);
+            assertTrue(backoff >= 0);
+            assertTrue(backoff < Math.min(1000, 10L << (attempt - 1)));
+        }
+    }
+
+    @Test
+    public void testRetries() throws Exception {
+        assertEquals(1, (int) Transactions.transact(quietKey, collidingWork(0)));
+        assertEquals(3, (int) Transactions.transact(hotKey, collidingWork(2)));
+        assertEquals(2, (int) Transactions.transact(hotKey, collidingWork(1)));
+        try {
+            Transactions.transact(hotKey, collidingWork(Transactions.MAX_TRIES));
+            fail("The transaction should run out of attempts.");
+        } catch (ConcurrentModificationException e) {
+            // expected
+        }
+
+        Transactions.GroupStats stats = Transactions.getStats(hotKey.getString());
+        assertEquals(3, stats.getTransactions());
+        assertEquals(3 + 2 + Transactions.MAX_TRIES, stats.getAttempts());
+        assertEquals(2 + 1 + Transactions.MAX_TRIES - 1, stats.getRetries());
+        assertEquals(1, stats.getFailures());
+        assertEquals(0, Transactions.getStats(quietKey.getString()).getRetries());
+
+        // Only the groups that have retried are listed.
+        List<Transactions.GroupStats> contended = Transactions.mostContended(10);
+        assertEquals(1, contended.size());
+        assertEquals(hotKey, contended.get(0).getGroup());
+        assertTrue(Transactions.mostContended(0).isEmpty());
+    }
+
+    @Test
+    public void testTrackedGroupsAreBounded() throws Exception {
+        assertEquals(3, (int) Transactions.transact(hotKey, collidingWork(2)));
+        int groups = Transactions.MAX_TRACKED_GROUPS * 2;
+        for (int i = 0; i < groups; i++) {
+            Transactions.statsOf(Key.create(Profile.class, "user" + i));
+        }
+        int tracked = 0;
+        for (int i = 0; i < groups; i++) {
+            if (Transactions.getStats(Key.create(Profile.class, "user" + i).getString()) != null) {
+                tracked++;
+            }
+        }
+        assertTrue(tracked <= Transactions.MAX_TRACKED_GROUPS);
+        // The least recently used groups are dropped, even when they have retried.
+        assertNull(Transactions.getStats(hotKey.getString()));
+        assertNotNull(Transactions.getStats(
+                Key.create(Profile.class, "user" + (groups - 1)).getString()));
+        assertTrue(Transactions.mostContended(-1).isEmpty());
+    }
+
+    @Test
+    public void testJoinsTransaction() throws Exception {
+        int attempts = ofy().transact(new Work<Integer>() {
+            @Override
+            public Integer run() {
+                return Transactions.transact(hotKey, collidingWork(0));
+            }
+        });
+        assertEquals(1, attempts);
+        assertNull(Transactions.getStats(hotKey.getString()));
+    }
+}
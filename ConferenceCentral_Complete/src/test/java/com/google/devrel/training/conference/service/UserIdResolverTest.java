@@ -0,0 +1,63 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.testing.RpcCounter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for UserIdResolver.
+ */
+public class UserIdResolverTest {
+
+    private static final String EMAIL = "android@example.com";
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        UserIdResolver.clearLocalCache();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        UserIdResolver.clearLocalCache();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testUserIdIsReturnedAsIs() throws Exception {
+        RpcCounter counter = RpcCounter.install();
+        assertEquals("123456789",
+                UserIdResolver.getUserId(new User(EMAIL, "gmail.com", "123456789")));
+        assertEquals(0, counter.getDatastoreCalls());
+        counter.uninstall();
+    }
+
+    @Test
+    public void testResolvedUserIdIsMemoized() throws Exception {
+        User user = new User(EMAIL, "gmail.com");
+        String userId = UserIdResolver.getUserId(user);
+
+        // Neither the instance memory nor memcache touches the datastore.
+        RpcCounter counter = RpcCounter.install();
+        assertEquals(userId, UserIdResolver.getUserId(user));
+        UserIdResolver.clearLocalCache();
+        assertEquals(userId, UserIdResolver.getUserId(user));
+        assertEquals(0, counter.getDatastoreCalls());
+        counter.uninstall();
+    }
+}
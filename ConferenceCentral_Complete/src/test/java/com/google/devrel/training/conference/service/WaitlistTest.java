@@ -0,0 +1,130 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.api.server.spi.response.ConflictException;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.WaitlistEntry;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.google.devrel.training.conference.testing.LocalQueues;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for Waitlist.
+ */
+public class WaitlistTest {
+
+    private static final String PROMOTE_TASK_URL = "/tasks/promote_waitlist";
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig());
+
+    private ConferenceApi conferenceApi;
+
+    private User organizer;
+
+    private User[] attendees;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        LocalQueues.load();
+        // The local task queue may hold the tasks of other tests.
+        LocalTaskQueueTestConfig.getLocalTaskQueue().flushQueue("default");
+        ConferenceCache.clearLocalCache();
+        conferenceApi = new ConferenceApi();
+        organizer = new User("organizer@example.com", "gmail.com", "organizer");
+        attendees = new User[3];
+        for (int i = 0; i < attendees.length; i++) {
+            attendees[i] = new User("attendee" + i + "@example.com", "gmail.com", "attendee" + i);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ConferenceCache.clearLocalCache();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private int countPromotionTasks() {
+        int count = 0;
+        for (TaskStateInfo task : LocalTaskQueueTestConfig.getLocalTaskQueue()
+                .getQueueStateInfo().get("default").getTaskInfo()) {
+            if (PROMOTE_TASK_URL.equals(task.getUrl())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private boolean isRegistered(User user, String websafeConferenceKey) throws Exception {
+        return conferenceApi.isRegisteredForConference(user, websafeConferenceKey).getResult();
+    }
+
+    @Test
+    public void testPromotion() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                "GCP Live", null, null, null, null, null, 1);
+        Conference conference = conferenceApi.createConference(organizer, conferenceForm, null);
+        String websafeConferenceKey = conference.getWebsafeKey();
+        conferenceApi.registerForConference(attendees[0], websafeConferenceKey, null);
+        try {
+            conferenceApi.registerForConference(attendees[1], websafeConferenceKey, null);
+            fail("The seats should be sold out.");
+        } catch (ConflictException e) {
+            // expected
+        }
+
+        // Join the waitlist in the order of attendees[1], attendees[2].
+        assertTrue(conferenceApi.joinWaitlist(attendees[1], websafeConferenceKey).getResult());
+        assertFalse(conferenceApi.joinWaitlist(attendees[1], websafeConferenceKey).getResult());
+        assertTrue(conferenceApi.joinWaitlist(attendees[2], websafeConferenceKey).getResult());
+        assertTrue(conferenceApi.leaveWaitlist(attendees[2], websafeConferenceKey).getResult());
+        assertFalse(conferenceApi.leaveWaitlist(attendees[2], websafeConferenceKey).getResult());
+        Thread.sleep(2);
+        assertTrue(conferenceApi.joinWaitlist(attendees[2], websafeConferenceKey).getResult());
+        try {
+            conferenceApi.joinWaitlist(attendees[0], websafeConferenceKey);
+            fail("A registered user can't join the waitlist.");
+        } catch (ConflictException e) {
+            // expected
+        }
+        assertEquals(0, countPromotionTasks());
+        assertEquals(0, Waitlist.promote(websafeConferenceKey));
+
+        // Giving back the seat promotes the head of the waitlist.
+        conferenceApi.unregisterFromConference(attendees[0], websafeConferenceKey);
+        assertEquals(1, countPromotionTasks());
+        assertEquals(1, Waitlist.promote(websafeConferenceKey));
+        ofy().clear();
+        assertTrue(isRegistered(attendees[1], websafeConferenceKey));
+        assertFalse(isRegistered(attendees[2], websafeConferenceKey));
+        assertNull(ofy().load().key(WaitlistEntry.key("attendee1", websafeConferenceKey)).now());
+        assertEquals(0, conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+
+        // Adding a seat promotes the next one.
+        conferenceApi.updateConference(organizer, new ConferenceForm(
+                "GCP Live", null, null, null, null, null, 2), websafeConferenceKey);
+        assertEquals(2, countPromotionTasks());
+        assertEquals(1, Waitlist.promote(websafeConferenceKey));
+        ofy().clear();
+        assertTrue(isRegistered(attendees[2], websafeConferenceKey));
+        assertEquals(0, conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+        assertEquals(0, Waitlist.promote(websafeConferenceKey));
+    }
+}
@@ -3,18 +3,24 @@ package com.google.devrel.training.conference.spi;
 import static com.google.devrel.training.conference.service.OfyService.ofy;
 import static org.junit.Assert.*;
 
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
+import com.google.appengine.api.users.User;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.common.collect.ImmutableList;
 import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceSummary;
 import com.google.devrel.training.conference.form.ConferenceForm;
 import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.testing.LocalQueues;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -70,11 +76,11 @@ public class ConferenceApiGlobalQueryTest {
     private ConferenceApi conferenceApi;
 
     /**
-     * The helper here is intentionally use 0 for the percentage, since we test our global queries.
+     * The helper here intentionally applies all the jobs, since we test our global queries.
      */
     private final LocalServiceTestHelper helper =
             new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
-                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
+                    .setApplyAllHighRepJobPolicy());
 
     private Conference conference1;
 
@@ -85,6 +91,7 @@ public class ConferenceApiGlobalQueryTest {
     @Before
     public void setUp() throws Exception {
         helper.setUp();
+        LocalQueues.load();
         conferenceApi = new ConferenceApi();
         DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
 
@@ -115,11 +122,19 @@ public class ConferenceApiGlobalQueryTest {
         helper.tearDown();
     }
 
+    /**
+     * Returns the items of a single page as a List, for index based assertions.
+     */
+    private List<Conference> queryConferences(ConferenceQueryForm conferenceQueryForm)
+            throws BadRequestException {
+        return new ArrayList<>(conferenceApi.queryConferences(conferenceQueryForm).getItems());
+    }
+
     @Test
     public void testEmptyQuery() throws Exception {
         // Empty query.
         ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm();
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
         assertEquals(3, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
@@ -138,7 +153,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.EQ,
                         "Tokyo"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
         assertEquals(1, conferences.size());
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
     }
@@ -152,7 +167,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.EQ,
                         "Japan"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
         assertEquals(1, conferences.size());
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
     }
@@ -176,7 +191,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.EQ,
                         "6"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
         assertEquals(1, conferences.size());
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
     }
@@ -190,7 +205,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.GT,
                         "999"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
@@ -207,7 +222,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.LT,
                         "1001"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
@@ -224,7 +239,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.GTEQ,
                         "1000"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
@@ -241,7 +256,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.LTEQ,
                         "1000"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
@@ -258,7 +273,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.NE,
                         "1000"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
@@ -266,7 +281,7 @@ public class ConferenceApiGlobalQueryTest {
         assertEquals(conference3, conferences.get(1));
     }
 
-    @Test(expected = IllegalArgumentException.class)
+    @Test
     public void testMultipleInequalityFilter() throws Exception {
         // A query specifies the maxAttendees <= 1000 and month != 6.
         ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
@@ -280,5 +295,314 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.NE,
                         "6"
                 ));
+        assertTrue("month != 6 should be applied in memory.",
+                conferenceQueryForm.hasResidualFilters());
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
+        assertEquals(1, conferences.size());
+        assertTrue("The result should contain conference1.", conferences.contains(conference1));
+    }
+
+    @Test
+    public void testMultipleInequalityFilterWithEqualityFilter() throws Exception {
+        // A query specifies the topic == Platform, month > 3 and maxAttendees < 1200.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.TOPIC,
+                        ConferenceQueryForm.Operator.EQ,
+                        "Platform"
+                ))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH,
+                        ConferenceQueryForm.Operator.GT,
+                        "3"
+                ))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MAX_ATTENDEES,
+                        ConferenceQueryForm.Operator.LT,
+                        "1200"
+                ));
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
+        assertEquals(1, conferences.size());
+        assertTrue("The result should contain conference2.", conferences.contains(conference2));
+    }
+
+    @Test
+    public void testMultipleInequalityFilterPagination() throws Exception {
+        // A query specifies the month >= 3 and maxAttendees >= 1000, one conference per page.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH,
+                        ConferenceQueryForm.Operator.GTEQ,
+                        "3"
+                ))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MAX_ATTENDEES,
+                        ConferenceQueryForm.Operator.GTEQ,
+                        "1000"
+                ))
+                .pageSize(1);
+        CollectionResponse<Conference> page = conferenceApi.queryConferences(conferenceQueryForm);
+        assertEquals(1, page.getItems().size());
+        assertTrue("The result should contain conference2.",
+                page.getItems().contains(conference2));
+
+        conferenceQueryForm.startCursor(page.getNextPageToken());
+        page = conferenceApi.queryConferences(conferenceQueryForm);
+        assertEquals(1, page.getItems().size());
+        assertTrue("The result should contain conference3.",
+                page.getItems().contains(conference3));
+    }
+
+    @Test
+    public void testPagination() throws Exception {
+        // The first page holds 2 conferences ordered by name, and a token for the next page.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm().pageSize(2);
+        CollectionResponse<Conference> page = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(page.getItems());
+        assertEquals(2, conferences.size());
+        assertEquals(conference1, conferences.get(0));
+        assertEquals(conference3, conferences.get(1));
+        assertNotNull("A full page should have nextPageToken.", page.getNextPageToken());
+
+        // The second page starts right after the first one.
+        conferenceQueryForm = new ConferenceQueryForm()
+                .pageSize(2)
+                .startCursor(page.getNextPageToken());
+        page = conferenceApi.queryConferences(conferenceQueryForm);
+        conferences = new ArrayList<>(page.getItems());
+        assertEquals(1, conferences.size());
+        assertEquals(conference2, conferences.get(0));
+        assertNull("The last page shouldn't have nextPageToken.", page.getNextPageToken());
+    }
+
+    @Test
+    public void testPaginationWithFilter() throws Exception {
+        // A query specifies the topic, one conference per page.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.TOPIC,
+                        ConferenceQueryForm.Operator.EQ,
+                        "Cloud"
+                ))
+                .pageSize(1);
+        CollectionResponse<Conference> page = conferenceApi.queryConferences(conferenceQueryForm);
+        assertEquals(1, page.getItems().size());
+        assertTrue("The result should contain conference1.",
+                page.getItems().contains(conference1));
+
+        conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.TOPIC,
+                        ConferenceQueryForm.Operator.EQ,
+                        "Cloud"
+                ))
+                .pageSize(1)
+                .startCursor(page.getNextPageToken());
+        page = conferenceApi.queryConferences(conferenceQueryForm);
+        assertEquals(1, page.getItems().size());
+        assertTrue("The result should contain conference3.",
+                page.getItems().contains(conference3));
+    }
+
+    @Test
+    public void testQueryConferenceSummaries() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY,
+                        ConferenceQueryForm.Operator.EQ,
+                        CITY3
+                ));
+        CollectionResponse<ConferenceSummary> page =
+                conferenceApi.queryConferenceSummaries(conferenceQueryForm);
+        List<ConferenceSummary> summaries = new ArrayList<>(page.getItems());
+        assertEquals(1, summaries.size());
+        ConferenceSummary summary = summaries.get(0);
+        assertEquals(conference3.getWebsafeKey(), summary.getWebsafeKey());
+        assertEquals(NAME3, summary.getName());
+        assertEquals(CITY3, summary.getCity());
+        assertEquals(TOPICS3, summary.getTopics());
+        assertEquals(startDate3, summary.getStartDate());
+        assertEquals(endDate3, summary.getEndDate());
+        assertEquals(USER_ID, summary.getOrganizerDisplayName());
+        assertEquals(CAP3, summary.getMaxAttendees());
+        assertEquals(CAP3, summary.getSeatsAvailable());
+        assertNull(page.getNextPageToken());
+    }
+
+    @Test
+    public void testPageSizeIsCapped() throws Exception {
+        assertEquals(ConferenceQueryForm.DEFAULT_PAGE_SIZE,
+                new ConferenceQueryForm().getPageSize());
+        assertEquals(ConferenceQueryForm.MAX_PAGE_SIZE,
+                new ConferenceQueryForm().pageSize(100000).getPageSize());
+    }
+
+    @Test
+    public void testCachedQueryIsInvalidatedByCreateConference() throws Exception {
+        assertEquals(3, queryConferences(new ConferenceQueryForm()).size());
+        // The second query is served from the cache.
+        assertEquals(3, queryConferences(new ConferenceQueryForm()).size());
+        // Creating a Conference invalidates the cached result.
+        ConferenceForm conferenceForm = new ConferenceForm(
+                "Cloud Summit", DESCRIPTION1, TOPICS1, CITY1, startDate1, endDate1, CAP1);
+        conferenceApi.createConference(
+                new User("testuser@example.com", "gmail.com", USER_ID), conferenceForm, null);
+        assertEquals(4, queryConferences(new ConferenceQueryForm()).size());
+    }
+
+    @Test
+    public void testInQuery() throws Exception {
+        // A query specifies the city IN (Tokyo, San Francisco).
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY,
+                        ConferenceQueryForm.Operator.IN,
+                        "Tokyo, San Francisco"
+                ));
+        assertEquals(2, conferenceQueryForm.getBranches().size());
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
+        assertEquals(2, conferences.size());
+        assertEquals(conference3, conferences.get(0));
+        assertEquals(conference2, conferences.get(1));
+    }
+
+    @Test
+    public void testInQueryWithInequalityFilter() throws Exception {
+        // A query specifies the month IN (3, 9) and maxAttendees > 500.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH,
+                        ConferenceQueryForm.Operator.IN,
+                        "3,9"
+                ))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MAX_ATTENDEES,
+                        ConferenceQueryForm.Operator.GT,
+                        "500"
+                ));
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
+        assertEquals(1, conferences.size());
+        assertEquals(conference3, conferences.get(0));
+    }
+
+    @Test
+    public void testAnyOfQueryRemovesDuplicates() throws Exception {
+        // A query specifies the topic == Cloud OR city == Tokyo, which both match conference3.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .anyOf(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.TOPIC,
+                        ConferenceQueryForm.Operator.EQ,
+                        "Cloud"
+                ), new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY,
+                        ConferenceQueryForm.Operator.EQ,
+                        "Tokyo"
+                ));
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
+        assertEquals(2, conferences.size());
+        assertEquals(conference1, conferences.get(0));
+        assertEquals(conference3, conferences.get(1));
+    }
+
+    @Test
+    public void testAnyOfQueryPagination() throws Exception {
+        // A query specifies the city == Mountain View OR maxAttendees >= 1000, one per page.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .anyOf(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY,
+                        ConferenceQueryForm.Operator.EQ,
+                        "Mountain View"
+                ), new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MAX_ATTENDEES,
+                        ConferenceQueryForm.Operator.GTEQ,
+                        "1000"
+                ))
+                .pageSize(1);
+        List<Conference> conferences = new ArrayList<>();
+        String nextPageToken = null;
+        do {
+            conferenceQueryForm.startCursor(nextPageToken);
+            CollectionResponse<Conference> page =
+                    conferenceApi.queryConferences(conferenceQueryForm);
+            conferences.addAll(page.getItems());
+            nextPageToken = page.getNextPageToken();
+        } while (nextPageToken != null);
+        assertEquals(3, conferences.size());
+        // Both branches are ordered by maxAttendees, then by name.
+        assertEquals(conference1, conferences.get(0));
+        assertEquals(conference2, conferences.get(1));
+        assertEquals(conference3, conferences.get(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyBranches() throws Exception {
+        StringBuilder months = new StringBuilder();
+        for (int month = 1; month <= 12; month++) {
+            months.append(month).append(',');
+        }
+        new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH,
+                        ConferenceQueryForm.Operator.IN,
+                        months.toString()
+                ))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY,
+                        ConferenceQueryForm.Operator.IN,
+                        "Tokyo,London,Paris"
+                ))
+                .getBranches();
+    }
+
+    @Test
+    public void testTooManyBranchesIsBadRequest() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH,
+                        ConferenceQueryForm.Operator.IN,
+                        "1,2,3,4,5,6,7,8,9,10,11,12"
+                ))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY,
+                        ConferenceQueryForm.Operator.IN,
+                        "Tokyo,London,Paris"
+                ));
+        try {
+            conferenceApi.queryConferences(conferenceQueryForm);
+            fail("The query should be rejected.");
+        } catch (BadRequestException e) {
+            // expected
+        }
+        try {
+            conferenceApi.queryConferenceSummaries(conferenceQueryForm);
+            fail("The query should be rejected.");
+        } catch (BadRequestException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testMismatchedStartCursorIsBadRequest() throws Exception {
+        // The query runs as two sub-queries, but the cursor holds the position of one.
+        conferenceApi.queryConferences(new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY,
+                        ConferenceQueryForm.Operator.IN,
+                        "Tokyo,London"
+                ))
+                .startCursor("position"));
+    }
+
+    @Test
+    public void testMalformedStartCursorIsBadRequest() throws Exception {
+        for (String startCursor : new String[] {"not a cursor", "bm90IGEgY3Vyc29y"}) {
+            try {
+                conferenceApi.queryConferences(new ConferenceQueryForm()
+                        .startCursor(startCursor));
+                fail("The startCursor " + startCursor + " should be rejected.");
+            } catch (BadRequestException e) {
+                assertEquals("Invalid startCursor", e.getMessage());
+            }
+        }
     }
 }
@@ -0,0 +1,228 @@
+package com.google.devrel.training.conference.spi;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ProfileForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.ConferenceCache;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.google.devrel.training.conference.testing.LocalQueues;
+import com.google.devrel.training.conference.testing.RpcBudget;
+import com.google.devrel.training.conference.testing.RpcCounter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The RPC budgets of the ConferenceApi methods.
+ *
+ * Every call is made with the Objectify session and the local ConferenceCache cleared, as the
+ * first call of a request on a new instance, so the budgets don't depend on the order of the
+ * calls. Raising a budget should be a deliberate decision made in review.
+ */
+public class ConferenceApiRpcBudgetTest {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig());
+
+    private ConferenceApi conferenceApi;
+
+    private RpcCounter rpcCounter;
+
+    private User organizer;
+
+    private User attendee;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        LocalQueues.load();
+        ConferenceCache.clearLocalCache();
+        conferenceApi = new ConferenceApi();
+        organizer = new User("organizer@example.com", "gmail.com", "organizer");
+        attendee = new User("attendee@example.com", "gmail.com", "attendee");
+        rpcCounter = RpcCounter.install();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        rpcCounter.uninstall();
+        ConferenceCache.clearLocalCache();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    /**
+     * Starts counting the RPCs of the next call.
+     */
+    private void start() {
+        ofy().clear();
+        ConferenceCache.clearLocalCache();
+        rpcCounter.reset();
+    }
+
+    private Conference createConference(String name, int maxAttendees) throws Exception {
+        return conferenceApi.createConference(organizer, new ConferenceForm(name, "",
+                ImmutableList.of("Cloud"), "Tokyo", null, null, maxAttendees), null);
+    }
+
+    @Test
+    public void testProfileBudgets() throws Exception {
+        start();
+        conferenceApi.getProfile(attendee);
+        RpcBudget.of("getProfile of a new user").roundTrips(1).gets(1).check(rpcCounter);
+
+        // A saved Profile lists the conferences to attend with a keys-only ancestor query of
+        // the Registrations.
+        start();
+        conferenceApi.saveProfile(attendee, new ProfileForm("Attendee", TeeShirtSize.M));
+        RpcBudget.of("saveProfile").roundTrips(3).gets(1).puts(1).queries(1).transactions(0)
+                .check(rpcCounter);
+
+        start();
+        conferenceApi.getProfile(attendee);
+        RpcBudget.of("getProfile").roundTrips(2).gets(1).queries(1).check(rpcCounter);
+    }
+
+    @Test
+    public void testConferenceBudgets() throws Exception {
+        start();
+        Conference conference = createConference("Conference 00", 100);
+        RpcBudget.of("createConference").roundTrips(7).gets(2).puts(1).queries(0)
+                .transactions(1).check(rpcCounter);
+        String websafeConferenceKey = conference.getWebsafeKey();
+        for (int i = 1; i < 10; i++) {
+            createConference(String.format("Conference %02d", i), 100);
+        }
+
+        start();
+        conferenceApi.getConference(websafeConferenceKey);
+        RpcBudget.of("getConference").roundTrips(1).gets(1).check(rpcCounter);
+
+        start();
+        conferenceApi.updateConference(organizer, new ConferenceForm("Conference 00", "",
+                ImmutableList.of("Cloud"), "Osaka", null, null, 100), websafeConferenceKey);
+        RpcBudget.of("updateConference").roundTrips(5).gets(2).puts(1).queries(0)
+                .transactions(1).check(rpcCounter);
+
+        start();
+        conferenceApi.getConferencesCreated(organizer);
+        RpcBudget.of("getConferencesCreated").roundTrips(1).queries(1).check(rpcCounter);
+
+        // The same budget for any page size, whether the page is cached or not.
+        for (int pageSize : new int[] {1, 10}) {
+            for (int i = 0; i < 2; i++) {
+                start();
+                conferenceApi.queryConferences(new ConferenceQueryForm().pageSize(pageSize));
+                RpcBudget.of("queryConferences of " + pageSize).roundTrips(2).queries(1)
+                        .transactions(0).check(rpcCounter);
+            }
+        }
+
+        start();
+        conferenceApi.queryConferenceSummaries(new ConferenceQueryForm().pageSize(10));
+        RpcBudget.of("queryConferenceSummaries").roundTrips(2).queries(1).transactions(0)
+                .check(rpcCounter);
+
+        start();
+        conferenceApi.getAnnouncement();
+        RpcBudget.of("getAnnouncement").roundTrips(0).memcacheCalls(2).check(rpcCounter);
+
+        start();
+        conferenceApi.openFlashSale(organizer, websafeConferenceKey);
+        RpcBudget.of("openFlashSale").roundTrips(5).gets(2).puts(1).transactions(1)
+                .check(rpcCounter);
+
+        start();
+        conferenceApi.closeFlashSale(organizer, websafeConferenceKey);
+        RpcBudget.of("closeFlashSale").roundTrips(4).gets(1).puts(1).transactions(1)
+                .check(rpcCounter);
+    }
+
+    /**
+     * Checks the budgets of the registration methods, which read the SeatShards of a popular
+     * Conference in an extra batch get.
+     */
+    private void checkRegistrationBudgets(boolean sharded) throws Exception {
+        String websafeConferenceKey = createConference("GCP Live",
+                sharded ? SeatInventory.SHARDING_THRESHOLD : 100).getWebsafeKey();
+        conferenceApi.saveProfile(attendee, new ProfileForm("Attendee", TeeShirtSize.M));
+        int shardGets = sharded ? 1 : 0;
+
+        start();
+        conferenceApi.registerForConference(attendee, websafeConferenceKey, null);
+        RpcBudget.of("registerForConference").roundTrips(8 + shardGets).gets(4 + shardGets)
+                .puts(1).queries(0).transactions(1).check(rpcCounter);
+
+        start();
+        conferenceApi.isRegisteredForConference(attendee, websafeConferenceKey);
+        RpcBudget.of("isRegisteredForConference").roundTrips(1).gets(1).check(rpcCounter);
+
+        start();
+        conferenceApi.getConferencesToAttend(attendee);
+        RpcBudget.of("getConferencesToAttend").roundTrips(3 + shardGets).gets(2 + shardGets)
+                .queries(1).transactions(0).check(rpcCounter);
+
+        start();
+        conferenceApi.unregisterFromConference(attendee, websafeConferenceKey);
+        RpcBudget.of("unregisterFromConference").roundTrips(9 + shardGets)
+                .gets(4 + shardGets).puts(1).queries(0).transactions(1).check(rpcCounter);
+
+        start();
+        conferenceApi.registerGroupForConference(attendee, websafeConferenceKey, 3, null);
+        RpcBudget.of("registerGroupForConference").roundTrips(8 + shardGets).gets(4)
+                .puts(1 + shardGets).queries(0).transactions(1).check(rpcCounter);
+
+        start();
+        conferenceApi.unregisterFromConference(attendee, websafeConferenceKey);
+        RpcBudget.of("unregisterFromConference of a group").roundTrips(9 + shardGets)
+                .gets(4 + shardGets).puts(1).queries(0).transactions(1).check(rpcCounter);
+
+        start();
+        conferenceApi.joinWaitlist(attendee, websafeConferenceKey);
+        RpcBudget.of("joinWaitlist").roundTrips(7).gets(4).puts(1).transactions(1)
+                .check(rpcCounter);
+
+        start();
+        conferenceApi.leaveWaitlist(attendee, websafeConferenceKey);
+        RpcBudget.of("leaveWaitlist").roundTrips(4).gets(1).puts(0).transactions(1)
+                .check(rpcCounter);
+    }
+
+    @Test
+    public void testRegistrationBudgets() throws Exception {
+        checkRegistrationBudgets(false);
+    }
+
+    @Test
+    public void testShardedRegistrationBudgets() throws Exception {
+        checkRegistrationBudgets(true);
+    }
+
+    @Test
+    public void testOverBudget() throws Exception {
+        start();
+        conferenceApi.getConferencesCreated(organizer);
+        try {
+            RpcBudget.of("getConferencesCreated").roundTrips(0).check(rpcCounter);
+        } catch (AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("1 round trips (budget 0)"));
+            return;
+        }
+        fail("The budget should have been exceeded.");
+    }
+}
@@ -0,0 +1,99 @@
+package com.google.devrel.training.conference.spi;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.testing.RpcCounter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collection;
+
+/**
+ * Tests for the number of datastore round trips made by ConferenceApi methods.
+ */
+public class ConferenceApiRpcCountTest {
+
+    private static final int NUMBER_OF_CONFERENCES = 12;
+
+    private ConferenceApi conferenceApi;
+
+    private RpcCounter rpcCounter;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        conferenceApi = new ConferenceApi();
+        // Every Conference has its own organizer.
+        for (int i = 0; i < NUMBER_OF_CONFERENCES; i++) {
+            String userId = "organizer" + i;
+            Profile profile = new Profile(userId, "Organizer " + i, userId + "@example.com",
+                    TeeShirtSize.NOT_SPECIFIED);
+            ConferenceForm conferenceForm = new ConferenceForm(String.format("Conference %02d", i),
+                    "", ImmutableList.of("Cloud"), "Tokyo", null, null, 100);
+            ofy().save().entities(profile, new Conference(1000L + i, userId, conferenceForm))
+                    .now();
+        }
+        ofy().clear();
+        rpcCounter = RpcCounter.install();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        rpcCounter.uninstall();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    /**
+     * Queries a page and reads the organizer's display names as the serializer does.
+     *
+     * @return the number of datastore round trips.
+     */
+    private int countQueryConferences(int pageSize) throws Exception {
+        ofy().clear();
+        rpcCounter.reset();
+        Collection<Conference> conferences = conferenceApi.queryConferences(
+                new ConferenceQueryForm().pageSize(pageSize)).getItems();
+        assertEquals(pageSize, conferences.size());
+        for (Conference conference : conferences) {
+            String organizerNumber = conference.getName().substring("Conference ".length());
+            assertEquals("Organizer " + Integer.parseInt(organizerNumber),
+                    conference.getOrganizerDisplayName());
+        }
+        return rpcCounter.getDatastoreCalls();
+    }
+
+    @Test
+    public void testQueryConferencesResolvesOrganizersInConstantRoundTrips() throws Exception {
+        int small = countQueryConferences(2);
+        int large = countQueryConferences(NUMBER_OF_CONFERENCES);
+        assertEquals("Round trips shouldn't grow with the number of Conferences.", small, large);
+        // A query and a batch get of the organizers.
+        assertTrue("Too many round trips: " + large, large <= 2);
+    }
+
+    @Test
+    public void testCachedQueryConferencesRunsNoQuery() throws Exception {
+        countQueryConferences(NUMBER_OF_CONFERENCES);
+        assertEquals(1, rpcCounter.getDatastoreCalls("RunQuery"));
+        // The same query is served from memcache with batch gets.
+        int cached = countQueryConferences(NUMBER_OF_CONFERENCES);
+        assertEquals(0, rpcCounter.getDatastoreCalls("RunQuery"));
+        assertTrue("Too many round trips: " + cached, cached <= 2);
+    }
+}
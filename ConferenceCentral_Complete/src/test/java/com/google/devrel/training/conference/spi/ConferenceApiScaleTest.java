@@ -0,0 +1,132 @@
+package com.google.devrel.training.conference.spi;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.api.server.spi.response.CollectionResponse;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.service.ConferenceCache;
+import com.google.devrel.training.conference.testing.LocalQueues;
+import com.google.devrel.training.conference.testing.SyntheticDataset;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.logging.Logger;
+
+/**
+ * Queries a dataset generated by SyntheticDataset, and logs how long the queries take.
+ *
+ * The dataset is small by default. Load a production-like one with system properties:
+ * mvn test -Dtest=ConferenceApiScaleTest -Ddataset.profiles=100000 -Ddataset.conferences=1000000
+ */
+public class ConferenceApiScaleTest {
+
+    private static final Logger LOG = Logger.getLogger(ConferenceApiScaleTest.class.getName());
+
+    private static final int PROFILES = Integer.getInteger("dataset.profiles", 500);
+
+    private static final int CONFERENCES = Integer.getInteger("dataset.conferences", 2000);
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig());
+
+    private ConferenceApi conferenceApi;
+
+    private SyntheticDataset.Summary summary;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        LocalQueues.load();
+        ConferenceCache.clearLocalCache();
+        conferenceApi = new ConferenceApi();
+        summary = SyntheticDataset.withSeed(42)
+                .profiles(PROFILES)
+                .conferences(CONFERENCES)
+                .load();
+        LOG.info("Loaded " + summary);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ConferenceCache.clearLocalCache();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    /**
+     * Pages through all the results of the query.
+     *
+     * @return the number of Conferences found.
+     */
+    private int countAll(ConferenceQueryForm conferenceQueryForm) throws Exception {
+        int count = 0;
+        String pageToken = null;
+        do {
+            CollectionResponse<Conference> page = conferenceApi.queryConferences(
+                    conferenceQueryForm.startCursor(pageToken));
+            count += page.getItems().size();
+            pageToken = page.getNextPageToken();
+            ofy().clear();
+        } while (pageToken != null);
+        return count;
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        assertEquals(PROFILES, summary.getProfiles());
+        assertEquals(CONFERENCES, summary.getConferences());
+        assertEquals(CONFERENCES, ofy().load().type(Conference.class).count());
+        assertEquals(summary.getRegistrations(), ofy().load().type(Registration.class).count());
+    }
+
+    @Test
+    public void testCityQuery() throws Exception {
+        String city = summary.getBusiestCity();
+        long start = System.currentTimeMillis();
+        int count = countAll(new ConferenceQueryForm()
+                .pageSize(ConferenceQueryForm.MAX_PAGE_SIZE)
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY,
+                        ConferenceQueryForm.Operator.EQ,
+                        city
+                )));
+        LOG.info(String.format("%d conferences in %s queried in %d ms", count, city,
+                System.currentTimeMillis() - start));
+        assertEquals(summary.getConferences(city), count);
+    }
+
+    @Test
+    public void testTopicAndMonthQuery() throws Exception {
+        long start = System.currentTimeMillis();
+        int cloudCount = countAll(new ConferenceQueryForm()
+                .pageSize(ConferenceQueryForm.MAX_PAGE_SIZE)
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.TOPIC,
+                        ConferenceQueryForm.Operator.EQ,
+                        "Cloud"
+                )));
+        int octoberCount = countAll(new ConferenceQueryForm()
+                .pageSize(ConferenceQueryForm.MAX_PAGE_SIZE)
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH,
+                        ConferenceQueryForm.Operator.EQ,
+                        "10"
+                )));
+        LOG.info(String.format("%d Cloud conferences and %d in October queried in %d ms",
+                cloudCount, octoberCount, System.currentTimeMillis() - start));
+        assertEquals(summary.getConferencesWithTopic("Cloud"), cloudCount);
+        assertEquals(summary.getConferencesInMonth(10), octoberCount);
+    }
+}
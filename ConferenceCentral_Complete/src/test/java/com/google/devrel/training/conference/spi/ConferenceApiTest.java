@@ -3,17 +3,30 @@ package com.google.devrel.training.conference.spi;
 import static com.google.devrel.training.conference.service.OfyService.ofy;
 import static org.junit.Assert.*;
 
+import com.google.api.server.spi.response.BadRequestException;
 import com.google.api.server.spi.response.ConflictException;
+import com.google.api.server.spi.response.ForbiddenException;
 import com.google.api.server.spi.response.NotFoundException;
 import com.google.api.server.spi.response.UnauthorizedException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.users.User;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.devrel.training.conference.domain.Conference;
 import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.domain.SeatShard;
 import com.google.devrel.training.conference.form.ConferenceForm;
 import com.google.devrel.training.conference.form.ProfileForm;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.ConferenceCache;
+import com.google.devrel.training.conference.service.FlashSale;
+import com.google.devrel.training.conference.service.OrganizerDisplayNameFanOut;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.google.devrel.training.conference.testing.LocalQueues;
 import com.googlecode.objectify.Key;
 
 import org.junit.After;
@@ -24,6 +37,7 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -61,6 +75,8 @@ public class ConferenceApiTest {
     @Before
     public void setUp() throws Exception {
         helper.setUp();
+        LocalQueues.load();
+        ConferenceCache.clearLocalCache();
         user = new User(EMAIL, "gmail.com", USER_ID);
         conferenceApi = new ConferenceApi();
     }
@@ -182,7 +198,7 @@ public class ConferenceApiTest {
         topics.add("Platform");
         ConferenceForm conferenceForm = new ConferenceForm(
                 NAME, DESCRIPTION, topics, CITY, startDate, endDate, CAP);
-        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        Conference conference = conferenceApi.createConference(user, conferenceForm, null);
         // Check the return value.
         assertEquals(NAME, conference.getName());
         assertEquals(DESCRIPTION, conference.getDescription());
@@ -203,6 +219,24 @@ public class ConferenceApiTest {
         assertEquals(displayName, profile.getDisplayName());
     }
 
+    @Test
+    public void testOrganizerDisplayNameIsDenormalized() throws Exception {
+        conferenceApi.saveProfile(user, new ProfileForm(DISPLAY_NAME, TEE_SHIRT_SIZE));
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, CAP);
+        Conference conference = conferenceApi.createConference(user, conferenceForm, null);
+        assertEquals(DISPLAY_NAME, conference.getOrganizerDisplayName());
+
+        // Rename the organizer, then run the fan-out task.
+        String newDisplayName = "Kay's Daddy";
+        conferenceApi.saveProfile(user, new ProfileForm(newDisplayName, null));
+        assertNull("All the Conferences fit in a single batch.",
+                OrganizerDisplayNameFanOut.updateBatch(USER_ID, null));
+        ofy().clear();
+        conference = ofy().load().key(Key.<Conference>create(conference.getWebsafeKey())).now();
+        assertEquals(newDisplayName, conference.getOrganizerDisplayName());
+    }
+
     @Test
     public void testGetConferencesCreated() throws Exception {
         DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
@@ -214,7 +248,7 @@ public class ConferenceApiTest {
         topics.add("Platform");
         ConferenceForm conferenceForm = new ConferenceForm(
                 NAME, DESCRIPTION, topics, CITY, startDate, endDate, CAP);
-        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        Conference conference = conferenceApi.createConference(user, conferenceForm, null);
 
         List<Conference> conferencesCreated = conferenceApi.getConferencesCreated(user);
         assertEquals(1, conferencesCreated.size());
@@ -234,7 +268,7 @@ public class ConferenceApiTest {
         topics.add("Platform");
         ConferenceForm conferenceForm = new ConferenceForm(
                 NAME, DESCRIPTION, topics, CITY, startDate, endDate, CAP);
-        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        Conference conference = conferenceApi.createConference(user, conferenceForm, null);
         // Check the return value.
         assertEquals(NAME, conference.getName());
         assertEquals(DESCRIPTION, conference.getDescription());
@@ -284,7 +318,7 @@ public class ConferenceApiTest {
         topics.add("Platform");
         ConferenceForm conferenceForm = new ConferenceForm(
                 NAME, DESCRIPTION, topics, CITY, startDate, endDate, CAP);
-        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        Conference conference = conferenceApi.createConference(user, conferenceForm, null);
         conference = conferenceApi.getConference(conference.getWebsafeKey());
         // Check the return value.
         assertEquals(NAME, conference.getName());
@@ -299,6 +333,27 @@ public class ConferenceApiTest {
         assertEquals(MONTH, conference.getMonth());
     }
 
+    @Test
+    public void testGetConferenceAfterChanges() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, CAP);
+        Conference conference = conferenceApi.createConference(user, conferenceForm, null);
+        String websafeConferenceKey = conference.getWebsafeKey();
+        // Cache the Conference.
+        assertEquals(NAME, conferenceApi.getConference(websafeConferenceKey).getName());
+
+        // Updating and registering invalidate the cached Conference.
+        ConferenceForm newConferenceForm = new ConferenceForm(
+                "New Name", DESCRIPTION, null, CITY, null, null, CAP);
+        conferenceApi.updateConference(user, newConferenceForm, websafeConferenceKey);
+        assertEquals("New Name", conferenceApi.getConference(websafeConferenceKey).getName());
+        conferenceApi.registerForConference(user, websafeConferenceKey, null);
+        assertEquals(CAP - 1,
+                conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+        conferenceApi.unregisterFromConference(user, websafeConferenceKey);
+        assertEquals(CAP, conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+    }
+
     @Test
     public void testRegistrations() throws Exception {
         DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
@@ -310,26 +365,266 @@ public class ConferenceApiTest {
         topics.add("Platform");
         ConferenceForm conferenceForm = new ConferenceForm(
                 NAME, DESCRIPTION, topics, CITY, startDate, endDate, CAP);
-        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        Conference conference = conferenceApi.createConference(user, conferenceForm, null);
         // Registration
         Boolean result = conferenceApi.registerForConference(
-                user, conference.getWebsafeKey()).getResult();
+                user, conference.getWebsafeKey(), null).getResult();
         conference = conferenceApi.getConference(conference.getWebsafeKey());
-        Profile profile = ofy().load().key(Key.create(Profile.class, user.getUserId())).now();
+        Registration registration = ofy().load().key(
+                Registration.key(user.getUserId(), conference.getWebsafeKey())).now();
         assertTrue("registerForConference should succeed.", result);
         assertEquals(CAP - 1, conference.getSeatsAvailable());
-        assertTrue("Profile should have the conferenceId in conferenceIdsToAttend.",
-                profile.getConferenceKeysToAttend().contains(conference.getWebsafeKey()));
+        assertNotNull("The user should have a Registration for the conference.", registration);
+        assertEquals(Key.create(conference.getWebsafeKey()), registration.getConferenceKey());
+        // The Profile still lists the conference for the clients.
+        assertEquals(Collections.singletonList(conference.getWebsafeKey()),
+                conferenceApi.getProfile(user).getConferenceKeysToAttend());
 
         // Unregister
         result = conferenceApi.unregisterFromConference(
                 user, conference.getWebsafeKey()).getResult();
         conference = conferenceApi.getConference(conference.getWebsafeKey());
-        profile = ofy().load().key(Key.create(Profile.class, user.getUserId())).now();
         assertTrue("unregisterFromConference should succeed.", result);
         assertEquals(CAP, conference.getSeatsAvailable());
-        assertFalse("Profile shouldn't have the conferenceId in conferenceIdsToAttend.",
-                profile.getConferenceKeysToAttend().contains(conference.getWebsafeKey()));
+        assertFalse("The Registration should be deleted.", conferenceApi
+                .isRegisteredForConference(user, conference.getWebsafeKey()).getResult());
+        assertTrue(conferenceApi.getProfile(user).getConferenceKeysToAttend().isEmpty());
+    }
+
+    @Test
+    public void testRegistrationsWithSeatShards() throws Exception {
+        int cap = SeatInventory.SHARDING_THRESHOLD;
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, cap);
+        Conference conference = conferenceApi.createConference(user, conferenceForm, null);
+        String websafeConferenceKey = conference.getWebsafeKey();
+        assertEquals(SeatInventory.SHARD_COUNT, conference.getSeatShards());
+
+        // Registration books a seat from a shard.
+        assertTrue(conferenceApi.registerForConference(user, websafeConferenceKey, null)
+                .getResult());
+        assertEquals(cap - 1,
+                conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+        assertTrue("The user should be registered for the conference.",
+                conferenceApi.isRegisteredForConference(user, websafeConferenceKey).getResult());
+        try {
+            conferenceApi.registerForConference(user, websafeConferenceKey, null);
+            fail("The second registration should fail.");
+        } catch (ConflictException e) {
+            // expected
+        }
+
+        // Changing maxAttendees keeps the booked seat.
+        ConferenceForm newConferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, cap - 10);
+        conferenceApi.updateConference(user, newConferenceForm, websafeConferenceKey);
+        conference = conferenceApi.getConference(websafeConferenceKey);
+        assertEquals(cap - 10, conference.getMaxAttendees());
+        assertEquals(cap - 11, conference.getSeatsAvailable());
+
+        // Unregistration gives the seat back to a shard.
+        assertTrue(conferenceApi.unregisterFromConference(user, websafeConferenceKey)
+                .getResult());
+        assertFalse(conferenceApi.unregisterFromConference(user, websafeConferenceKey)
+                .getResult());
+        assertEquals(cap - 10,
+                conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+    }
+
+    @Test
+    public void testGroupRegistration() throws Exception {
+        int cap = 5;
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, cap), null);
+        String websafeConferenceKey = conference.getWebsafeKey();
+        User attendee = new User("attendee@example.com", "gmail.com", "attendee");
+        try {
+            conferenceApi.registerGroupForConference(user, websafeConferenceKey, 0, null);
+            fail("The number of seats should be positive.");
+        } catch (BadRequestException e) {
+            // expected
+        }
+        try {
+            conferenceApi.registerGroupForConference(user, websafeConferenceKey, cap + 1, null);
+            fail("There should not be enough seats.");
+        } catch (ConflictException e) {
+            // expected
+        }
+        assertEquals(cap, conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+
+        // The whole group is booked against the user's Registration.
+        assertTrue(conferenceApi.registerGroupForConference(user, websafeConferenceKey, 3, null)
+                .getResult());
+        assertEquals(cap - 3,
+                conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+        assertEquals(3, ofy().load().key(Registration.key(USER_ID, websafeConferenceKey)).now()
+                .getSeats());
+        try {
+            conferenceApi.registerGroupForConference(user, websafeConferenceKey, 1, null);
+            fail("The second registration should fail.");
+        } catch (ConflictException e) {
+            // expected
+        }
+        try {
+            conferenceApi.registerGroupForConference(attendee, websafeConferenceKey, 3, null);
+            fail("There should not be enough seats.");
+        } catch (ConflictException e) {
+            // expected
+        }
+        assertFalse(conferenceApi.isRegisteredForConference(attendee, websafeConferenceKey)
+                .getResult());
+
+        // Unregistration gives back all the seats of the group.
+        assertTrue(conferenceApi.unregisterFromConference(user, websafeConferenceKey)
+                .getResult());
+        assertEquals(cap, conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+        assertTrue(conferenceApi.registerGroupForConference(attendee, websafeConferenceKey, cap,
+                null).getResult());
+        assertEquals(0, conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+    }
+
+    @Test
+    public void testGroupRegistrationWithSeatShards() throws Exception {
+        int cap = SeatInventory.SHARDING_THRESHOLD;
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, cap), null);
+        String websafeConferenceKey = conference.getWebsafeKey();
+        assertEquals(SeatInventory.SHARD_COUNT, conference.getSeatShards());
+        try {
+            conferenceApi.registerGroupForConference(user, websafeConferenceKey, cap + 1, null);
+            fail("There should not be enough seats.");
+        } catch (BadRequestException e) {
+            // expected
+        }
+        // A transaction books the seats of at most 4 shards.
+        try {
+            conferenceApi.registerGroupForConference(user, websafeConferenceKey,
+                    4 * cap / SeatInventory.SHARD_COUNT + 1, null);
+            fail("The group should not fit in one transaction.");
+        } catch (BadRequestException e) {
+            assertEquals("Only " + 4 * cap / SeatInventory.SHARD_COUNT
+                    + " seats can be booked at once, but you tried to book "
+                    + (4 * cap / SeatInventory.SHARD_COUNT + 1), e.getMessage());
+        }
+        assertEquals(cap, conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+        assertFalse(conferenceApi.isRegisteredForConference(user, websafeConferenceKey)
+                .getResult());
+
+        // The group may span several shards.
+        int seats = cap / SeatInventory.SHARD_COUNT + 2;
+        assertTrue(conferenceApi.registerGroupForConference(user, websafeConferenceKey, seats, null)
+                .getResult());
+        assertEquals(cap - seats,
+                conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+        try {
+            conferenceApi.registerGroupForConference(user, websafeConferenceKey, 1, null);
+            fail("The second registration should fail.");
+        } catch (ConflictException e) {
+            // expected
+        }
+
+        assertTrue(conferenceApi.unregisterFromConference(user, websafeConferenceKey)
+                .getResult());
+        assertFalse(conferenceApi.unregisterFromConference(user, websafeConferenceKey)
+                .getResult());
+        assertEquals(cap, conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+    }
+
+    @Test
+    public void testSeatShardsNeverOverbook() throws Exception {
+        Conference conference = new Conference(1001L, USER_ID, new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, 7));
+        Key<Conference> conferenceKey = Key.create(conference.getWebsafeKey());
+        SeatInventory.createShards(conferenceKey, 7, 3);
+        conference.enableSeatShards(3);
+        ofy().save().entity(conference).now();
+
+        int registered = 0;
+        for (int i = 0; i < 10; i++) {
+            try {
+                conferenceApi.registerForConference(new User("user" + i + "@example.com",
+                        "gmail.com", "user" + i), conference.getWebsafeKey(), null);
+                registered++;
+            } catch (ConflictException e) {
+                assertEquals("There are no seats available.", e.getMessage());
+            }
+        }
+        assertEquals(7, registered);
+        assertEquals(0,
+                conferenceApi.getConference(conference.getWebsafeKey()).getSeatsAvailable());
+
+        // The refresh task copies the sum of the shards to the Conference.
+        SeatInventory.refresh(conference.getWebsafeKey());
+        ofy().clear();
+        assertEquals(0, ofy().load().key(conferenceKey).now().getSeatsAvailable());
+    }
+
+    @Test
+    public void testDeleteOrphanedSeatShards() throws Exception {
+        // The shards of a Conference whose creation has failed.
+        Conference orphan = new Conference(1002L, USER_ID, new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, 7));
+        SeatInventory.createShards(Key.<Conference>create(orphan.getWebsafeKey()), 7, 3);
+        assertEquals(3, ofy().load().keys(SeatShard.keysOf(orphan.getWebsafeKey(), 3)).size());
+        assertTrue(SeatInventory.deleteOrphanedShards(orphan.getWebsafeKey(), 3));
+        ofy().clear();
+        assertTrue(ofy().load().keys(SeatShard.keysOf(orphan.getWebsafeKey(), 3)).isEmpty());
+
+        // The shards of a Conference that has been saved are kept.
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, SeatInventory.SHARDING_THRESHOLD),
+                null);
+        assertFalse(SeatInventory.deleteOrphanedShards(conference.getWebsafeKey(),
+                SeatInventory.SHARD_COUNT));
+        ofy().clear();
+        assertEquals(SeatInventory.SHARD_COUNT, ofy().load().keys(SeatShard.keysOf(
+                conference.getWebsafeKey(), SeatInventory.SHARD_COUNT)).size());
+    }
+
+    @Test
+    public void testRegistrationCreatesProfile() throws Exception {
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, CAP), null);
+        User attendee = new User("attendee@example.com", "gmail.com", "attendee");
+        Key<Profile> profileKey = Key.create(Profile.class, attendee.getUserId());
+        assertNull(ofy().load().key(profileKey).now());
+        assertTrue(conferenceApi.registerForConference(attendee, conference.getWebsafeKey(),
+                null).getResult());
+        ofy().clear();
+        Profile profile = ofy().load().key(profileKey).now();
+        assertEquals("attendee", profile.getDisplayName());
+        assertEquals("attendee@example.com", profile.getMainEmail());
+
+        // The Profile of a user who has registered returns the same keys on every call.
+        profile = conferenceApi.getProfile(attendee);
+        assertEquals(Collections.singletonList(conference.getWebsafeKey()),
+                profile.getConferenceKeysToAttend());
+        assertSame(profile.getConferenceKeysToAttend(), profile.getConferenceKeysToAttend());
+    }
+
+    @Test
+    public void testSeatShardsRemoveTooManySeats() throws Exception {
+        int cap = SeatInventory.SHARDING_THRESHOLD;
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, cap), null);
+        String websafeConferenceKey = conference.getWebsafeKey();
+        // A transaction removes the seats of at most 4 shards.
+        int maxSeats = 4 * cap / SeatInventory.SHARD_COUNT;
+        try {
+            conferenceApi.updateConference(user, new ConferenceForm(
+                    NAME, DESCRIPTION, null, CITY, null, null, cap - maxSeats - 1),
+                    websafeConferenceKey);
+            fail("The seats should not be removed at once.");
+        } catch (BadRequestException e) {
+            assertEquals("Only " + maxSeats + " seats can be removed at once, but you tried to "
+                    + "remove " + (maxSeats + 1), e.getMessage());
+        }
+        assertEquals(cap, conferenceApi.getConference(websafeConferenceKey).getMaxAttendees());
+
+        conferenceApi.updateConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, cap - maxSeats), websafeConferenceKey);
+        assertEquals(cap - maxSeats,
+                conferenceApi.getConference(websafeConferenceKey).getMaxAttendees());
     }
 
     @Test(expected = ConflictException.class)
@@ -344,9 +639,9 @@ public class ConferenceApiTest {
         // Create a conference as the remaining seats is zero.
         ConferenceForm conferenceForm = new ConferenceForm(
                 NAME, DESCRIPTION, topics, CITY, startDate, endDate, 0);
-        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        Conference conference = conferenceApi.createConference(user, conferenceForm, null);
         conferenceApi.registerForConference(
-                user, conference.getWebsafeKey()).getResult();
+                user, conference.getWebsafeKey(), null).getResult();
     }
 
     @Test(expected = ConflictException.class)
@@ -360,20 +655,19 @@ public class ConferenceApiTest {
         topics.add("Platform");
         ConferenceForm conferenceForm = new ConferenceForm(
                 NAME, DESCRIPTION, topics, CITY, startDate, endDate, CAP);
-        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        Conference conference = conferenceApi.createConference(user, conferenceForm, null);
         // Registration
         Boolean result = conferenceApi.registerForConference(
-                user, conference.getWebsafeKey()).getResult();
+                user, conference.getWebsafeKey(), null).getResult();
         conference = conferenceApi.getConference(conference.getWebsafeKey());
-        Profile profile = ofy().load().key(Key.create(Profile.class, user.getUserId())).now();
         assertTrue("The first registration should succeed.", result);
         assertEquals(CAP - 1, conference.getSeatsAvailable());
-        assertTrue("Profile should have the conferenceId in conferenceIdsToAttend.",
-                profile.getConferenceKeysToAttend().contains(conference.getWebsafeKey()));
+        assertTrue("The user should be registered for the conference.", conferenceApi
+                .isRegisteredForConference(user, conference.getWebsafeKey()).getResult());
 
         // The user has already registered for the conference. This should throw an ForbiddenException.
         conferenceApi.registerForConference(
-                user, conference.getWebsafeKey()).getResult();
+                user, conference.getWebsafeKey(), null).getResult();
     }
 
     @Test(expected = NotFoundException.class)
@@ -393,18 +687,135 @@ public class ConferenceApiTest {
         topics.add("Platform");
         ConferenceForm conferenceForm = new ConferenceForm(
                 NAME, DESCRIPTION, topics, CITY, startDate, endDate, CAP);
-        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        Conference conference = conferenceApi.createConference(user, conferenceForm, null);
 
         // Should be 0 result.
         Collection<Conference> conferenceToAttend = conferenceApi.getConferencesToAttend(user);
         assertEquals(0, conferenceToAttend.size());
 
         // Registration
-        conferenceApi.registerForConference(user, conference.getWebsafeKey());
+        conferenceApi.registerForConference(user, conference.getWebsafeKey(), null);
         conference = conferenceApi.getConference(conference.getWebsafeKey());
         conferenceToAttend = conferenceApi.getConferencesToAttend(user);
         assertEquals(1, conferenceToAttend.size());
         assertTrue("The result should contain the conference.",
                 conferenceToAttend.contains(conference));
     }
+
+    @Test
+    public void testRegistrationsOfLegacyProfile() throws Exception {
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, CAP), null);
+        String websafeConferenceKey = conference.getWebsafeKey();
+        conferenceApi.registerForConference(user, websafeConferenceKey, null);
+
+        // Turn the Registration into a key in the legacy conferenceKeysToAttend.
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Entity profileEntity = datastore.get(
+                KeyFactory.createKey("Profile", user.getUserId()));
+        profileEntity.setProperty("conferenceKeysToAttend",
+                Collections.singletonList(websafeConferenceKey));
+        datastore.put(profileEntity);
+        datastore.delete(Registration.key(user.getUserId(), websafeConferenceKey).getRaw());
+        ofy().clear();
+
+        // The legacy key is read until the Profile is migrated.
+        assertTrue(conferenceApi.isRegisteredForConference(user, websafeConferenceKey)
+                .getResult());
+        assertEquals(1, conferenceApi.getConferencesToAttend(user).size());
+        assertEquals(Collections.singletonList(websafeConferenceKey),
+                conferenceApi.getProfile(user).getConferenceKeysToAttend());
+
+        // Registering migrates the Profile first.
+        try {
+            conferenceApi.registerForConference(user, websafeConferenceKey, null);
+            fail("The second registration should fail.");
+        } catch (ConflictException e) {
+            // expected
+        }
+        ofy().clear();
+        Profile profile = ofy().load().key(Key.create(Profile.class, user.getUserId())).now();
+        assertTrue(profile.getLegacyConferenceKeysToAttend().isEmpty());
+        assertEquals(1, conferenceApi.getConferencesToAttend(user).size());
+        assertEquals(Collections.singletonList(websafeConferenceKey),
+                conferenceApi.getProfile(user).getConferenceKeysToAttend());
+        assertTrue(conferenceApi.unregisterFromConference(user, websafeConferenceKey)
+                .getResult());
+        assertEquals(CAP, conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+    }
+
+    @Test
+    public void testFlashSale() throws Exception {
+        int cap = 3;
+        Conference conference = conferenceApi.createConference(user, new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, cap), null);
+        String websafeConferenceKey = conference.getWebsafeKey();
+        User[] attendees = new User[cap + 2];
+        for (int i = 0; i < attendees.length; i++) {
+            attendees[i] = new User("attendee" + i + "@example.com", "gmail.com", "attendee" + i);
+        }
+        try {
+            conferenceApi.openFlashSale(attendees[0], websafeConferenceKey);
+            fail("Only the owner can open the flash sale.");
+        } catch (ForbiddenException e) {
+            // expected
+        }
+        assertEquals(cap, conferenceApi.openFlashSale(user, websafeConferenceKey)
+                .getFlashSaleSeats());
+
+        // The counter admits as many users as the seats, and the reconciler registers them.
+        for (int i = 0; i < cap; i++) {
+            assertTrue(conferenceApi.registerForConference(attendees[i], websafeConferenceKey, null)
+                    .getResult());
+        }
+        try {
+            conferenceApi.registerForConference(attendees[cap], websafeConferenceKey, null);
+            fail("The seats should be sold out.");
+        } catch (ConflictException e) {
+            // expected
+        }
+        for (int i = 0; i < cap; i++) {
+            FlashSale.reconcile(websafeConferenceKey, "attendee" + i, attendees[i].getEmail());
+        }
+        assertEquals(0, conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+        assertTrue(conferenceApi.isRegisteredForConference(attendees[0], websafeConferenceKey)
+                .getResult());
+        try {
+            conferenceApi.registerForConference(attendees[0], websafeConferenceKey, null);
+            fail("The second registration should fail.");
+        } catch (ConflictException e) {
+            // expected
+        }
+
+        // A failed write returns the seat to the counter, without overbooking.
+        FlashSale.reconcile(websafeConferenceKey, "attendee0", attendees[0].getEmail());
+        assertTrue(conferenceApi.registerForConference(attendees[cap], websafeConferenceKey, null)
+                .getResult());
+        FlashSale.reconcile(websafeConferenceKey, "attendee" + cap,
+                attendees[cap].getEmail());
+        assertEquals(0, conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+        assertFalse(conferenceApi.isRegisteredForConference(attendees[cap], websafeConferenceKey)
+                .getResult());
+
+        // Unregistering lets the counter sell the seat again.
+        assertTrue(conferenceApi.unregisterFromConference(attendees[1], websafeConferenceKey)
+                .getResult());
+        assertTrue(conferenceApi.registerForConference(attendees[cap], websafeConferenceKey, null)
+                .getResult());
+        FlashSale.reconcile(websafeConferenceKey, "attendee" + cap,
+                attendees[cap].getEmail());
+        assertTrue(conferenceApi.isRegisteredForConference(attendees[cap], websafeConferenceKey)
+                .getResult());
+        assertEquals(0, conferenceApi.getConference(websafeConferenceKey).getSeatsAvailable());
+
+        // Once closed, the registrations go through the transactions again.
+        assertEquals(0, conferenceApi.closeFlashSale(user, websafeConferenceKey)
+                .getFlashSaleSeats());
+        try {
+            conferenceApi.registerForConference(attendees[cap + 1], websafeConferenceKey, null);
+            fail("The seats should be sold out.");
+        } catch (ConflictException e) {
+            // expected
+        }
+    }
 }
@@ -0,0 +1,174 @@
+package com.google.devrel.training.conference.spi;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.api.server.spi.response.ConflictException;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.service.ConferenceCache;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.google.devrel.training.conference.testing.RpcCounter;
+import com.google.devrel.training.conference.testing.LocalQueues;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * A contention benchmark of registerForConference, comparing a Conference holding the seats
+ * itself with one holding them in SeatShards.
+ *
+ * Each thread registers its own users, so the transactions only contend on the seats. The
+ * number of commits beyond the number of registrations is the number of retries caused by
+ * contention.
+ */
+public class RegistrationContentionTest {
+
+    private static final Logger LOG = Logger.getLogger(RegistrationContentionTest.class.getName());
+
+    private static final String USER_ID = "123456789";
+
+    private static final int THREADS = 8;
+
+    private static final int REGISTRATIONS_PER_THREAD = 10;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig());
+
+    private ConferenceApi conferenceApi;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        LocalQueues.load();
+        ConferenceCache.clearLocalCache();
+        conferenceApi = new ConferenceApi();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ConferenceCache.clearLocalCache();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    /**
+     * Registers the user, retrying the conflicts the local datastore doesn't report as
+     * ConcurrentModificationException, hence not retried by Objectify.
+     *
+     * Such a conflict may be reported after the registration has been committed, in which case
+     * the retry finds the user already registered.
+     */
+    private void register(String userId, String websafeConferenceKey) throws Exception {
+        boolean retried = false;
+        while (true) {
+            try {
+                conferenceApi.registerForConference(
+                        new User(userId + "@example.com", "gmail.com", userId),
+                        websafeConferenceKey, null);
+                return;
+            } catch (ConflictException e) {
+                if (!retried) {
+                    throw e;
+                }
+                return;
+            } catch (IllegalArgumentException e) {
+                if (!"transaction closed".equals(e.getMessage())) {
+                    throw e;
+                }
+                retried = true;
+            } finally {
+                ofy().clear();
+            }
+        }
+    }
+
+    /**
+     * Registers THREADS * REGISTRATIONS_PER_THREAD users concurrently.
+     *
+     * @return the number of commits, including the failed ones.
+     */
+    private int registerConcurrently(final String websafeConferenceKey) throws Exception {
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        RpcCounter counter = RpcCounter.install();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            final int thread = i;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    ApiProxy.setEnvironmentForCurrentThread(environment);
+                    for (int j = 0; j < REGISTRATIONS_PER_THREAD; j++) {
+                        register("user-" + thread + "-" + j, websafeConferenceKey);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        counter.uninstall();
+        return counter.getDatastoreCalls("Commit");
+    }
+
+    private Conference createConference(int maxAttendees) throws Exception {
+        return conferenceApi.createConference(new User("organizer@example.com", "gmail.com",
+                USER_ID), new ConferenceForm("GCP Live", null, null, null, null, null,
+                maxAttendees), null);
+    }
+
+    @Test
+    public void testRegistrationContention() throws Exception {
+        int registrations = THREADS * REGISTRATIONS_PER_THREAD;
+        int cap = SeatInventory.SHARDING_THRESHOLD;
+
+        Conference single = createConference(cap - 1);
+        assertEquals(0, single.getSeatShards());
+        long start = System.nanoTime();
+        int singleCommits = registerConcurrently(single.getWebsafeKey());
+        long singleMillis = (System.nanoTime() - start) / 1000000;
+
+        Conference sharded = createConference(cap);
+        assertEquals(SeatInventory.SHARD_COUNT, sharded.getSeatShards());
+        start = System.nanoTime();
+        int shardedCommits = registerConcurrently(sharded.getWebsafeKey());
+        long shardedMillis = (System.nanoTime() - start) / 1000000;
+
+        LOG.info(String.format("%d registrations: single entity %d commits in %d ms, "
+                + "%d shards %d commits in %d ms", registrations, singleCommits, singleMillis,
+                SeatInventory.SHARD_COUNT, shardedCommits, shardedMillis));
+
+        ofy().clear();
+        assertTrue(singleCommits >= registrations);
+        assertTrue(shardedCommits >= registrations);
+        // The local datastore may apply only part of a commit it reports as closed, so the
+        // single entity can only be checked for overbooking.
+        int singleSeats = conferenceApi.getConference(single.getWebsafeKey()).getSeatsAvailable();
+        assertTrue(singleSeats >= cap - 1 - registrations);
+        assertTrue(singleSeats < cap - 1);
+        // Every registration has booked exactly one seat from the shards.
+        assertEquals(cap - registrations,
+                conferenceApi.getConference(sharded.getWebsafeKey()).getSeatsAvailable());
+    }
+}
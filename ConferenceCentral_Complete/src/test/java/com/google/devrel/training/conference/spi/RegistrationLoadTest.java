@@ -0,0 +1,95 @@
+package com.google.devrel.training.conference.spi;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.service.ConferenceCache;
+import com.google.devrel.training.conference.service.Transactions;
+import com.google.devrel.training.conference.testing.LocalQueues;
+import com.google.devrel.training.conference.testing.RegistrationLoadSimulator;
+import com.google.devrel.training.conference.testing.RegistrationLoadSimulator.Report;
+import com.google.devrel.training.conference.testing.RegistrationLoadSimulator.Strategy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.logging.Logger;
+
+/**
+ * Registration openings simulated with RegistrationLoadSimulator, one per way of holding the
+ * seats, so that their reports can be compared.
+ *
+ * The load is small by default. Raise it with system properties to reproduce a stampede:
+ * mvn test -Dtest=RegistrationLoadTest -Dload.threads=32 -Dload.operations=200
+ */
+public class RegistrationLoadTest {
+
+    private static final Logger LOG = Logger.getLogger(RegistrationLoadTest.class.getName());
+
+    private static final int CONFERENCES = Integer.getInteger("load.conferences", 3);
+
+    private static final int THREADS = Integer.getInteger("load.threads", 8);
+
+    private static final int OPERATIONS_PER_THREAD = Integer.getInteger("load.operations", 25);
+
+    private static final int USERS_PER_THREAD = Integer.getInteger("load.users", 5);
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig());
+
+    private ConferenceApi conferenceApi;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        LocalQueues.load();
+        ConferenceCache.clearLocalCache();
+        Transactions.clearStats();
+        conferenceApi = new ConferenceApi();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ConferenceCache.clearLocalCache();
+        Transactions.clearStats();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private Report simulate(Strategy strategy) throws Exception {
+        Report report = RegistrationLoadSimulator.of(strategy)
+                .conferences(CONFERENCES)
+                .threads(THREADS)
+                .operationsPerThread(OPERATIONS_PER_THREAD)
+                .usersPerThread(USERS_PER_THREAD)
+                .run(conferenceApi);
+        LOG.info(report.toString());
+        assertEquals(THREADS * OPERATIONS_PER_THREAD, report.getOperations());
+        assertEquals(report.getOperations(), report.getRegistrations()
+                + report.getUnregistrations() + report.getSoldOut() + report.getFailures());
+        return report;
+    }
+
+    @Test
+    public void testSingleEntity() throws Exception {
+        Report report = simulate(Strategy.SINGLE_ENTITY);
+        // The local datastore may apply only part of a commit it reports as closed, so the
+        // single entity can only be checked for overbooking.
+        assertEquals(0, report.getOverbooked());
+    }
+
+    @Test
+    public void testSeatShards() throws Exception {
+        Report report = simulate(Strategy.SEAT_SHARDS);
+        assertEquals(0, report.getOverbooked());
+        assertTrue(report.getViolations().toString(), report.getViolations().isEmpty());
+    }
+}
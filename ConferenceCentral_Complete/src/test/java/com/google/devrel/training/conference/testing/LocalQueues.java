@@ -0,0 +1,70 @@
+package com.google.devrel.training.conference.testing;
+
+import com.google.appengine.api.taskqueue.dev.LocalTaskQueue;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.utils.config.QueueXml;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.File;
+import java.lang.reflect.Method;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Loads the queues of the app's queue.xml into the local task queue.
+ *
+ * LocalTaskQueueTestConfig.setQueueXmlPath() parses queue.xml with the Jetty XML parser of the
+ * SDK, which isn't on the test classpath, so the queues are read here with the JDK parser
+ * instead. Only the names and the modes of the queues are read. Call it after
+ * LocalServiceTestHelper.setUp().
+ * <pre>
+ * {@code
+ * helper.setUp();
+ * LocalQueues.load();
+ * }
+ * </pre>
+ */
+public class LocalQueues {
+
+    private static final String QUEUE_XML_PATH = "src/main/webapp/WEB-INF/queue.xml";
+
+    private LocalQueues() {}
+
+    /**
+     * Restarts the local task queue with the queues of the app's queue.xml, and the default
+     * queue.
+     */
+    public static void load() {
+        LocalTaskQueue localTaskQueue = LocalTaskQueueTestConfig.getLocalTaskQueue();
+        try {
+            QueueXml queueXml = new QueueXml();
+            NodeList queues = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                    .parse(new File(QUEUE_XML_PATH)).getElementsByTagName("queue");
+            for (int i = 0; i < queues.getLength(); i++) {
+                Element queue = (Element) queues.item(i);
+                QueueXml.Entry entry = queueXml.addNewEntry();
+                entry.setName(textOf(queue, "name"));
+                String mode = textOf(queue, "mode");
+                if (mode != null) {
+                    entry.setMode(mode);
+                }
+            }
+            // setQueueXml is package-private, as only the dev server is meant to call it.
+            Method setQueueXml = LocalTaskQueue.class.getDeclaredMethod(
+                    "setQueueXml", QueueXml.class);
+            setQueueXml.setAccessible(true);
+            localTaskQueue.stop();
+            setQueueXml.invoke(localTaskQueue, queueXml);
+            localTaskQueue.start();
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to load " + QUEUE_XML_PATH, e);
+        }
+    }
+
+    private static String textOf(Element element, String tagName) {
+        NodeList children = element.getElementsByTagName(tagName);
+        return children.getLength() == 0 ? null : children.item(0).getTextContent().trim();
+    }
+}
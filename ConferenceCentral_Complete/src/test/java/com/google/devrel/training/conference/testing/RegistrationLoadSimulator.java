@@ -0,0 +1,466 @@
+package com.google.devrel.training.conference.testing;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.api.server.spi.response.ConflictException;
+import com.google.appengine.api.users.User;
+import com.google.apphosting.api.ApiProxy;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.service.ConferenceCache;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.google.devrel.training.conference.service.Transactions;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Simulates a registration opening on the local service stubs: many threads register to and
+ * unregister from a few hot Conferences at once.
+ *
+ * Each thread has its own users, and for every operation picks a random Conference and a random
+ * user of its own, who registers when not registered yet, and unregisters otherwise. After the
+ * run, the available seats of every Conference are checked against its Registrations.
+ *
+ * Run it after LocalServiceTestHelper.setUp() and LocalQueues.load().
+ * <pre>
+ * {@code
+ * RegistrationLoadSimulator.Report report = RegistrationLoadSimulator
+ *         .of(RegistrationLoadSimulator.Strategy.SEAT_SHARDS)
+ *         .conferences(3).threads(8).operationsPerThread(25)
+ *         .run(conferenceApi);
+ * assertTrue(report.getViolations().isEmpty());
+ * }
+ * </pre>
+ */
+public class RegistrationLoadSimulator {
+
+    private static final String ORGANIZER_ID = "123456789";
+
+    private static final String ALREADY_REGISTERED = "You have already registered";
+
+    /**
+     * How the seats of the simulated Conferences are held.
+     */
+    public enum Strategy {
+
+        /**
+         * The Conference holds the seats itself, just below the sharding threshold.
+         */
+        SINGLE_ENTITY(SeatInventory.SHARDING_THRESHOLD - 1),
+
+        /**
+         * The seats are held by SeatShards, at the sharding threshold.
+         */
+        SEAT_SHARDS(SeatInventory.SHARDING_THRESHOLD);
+
+        private final int maxAttendees;
+
+        Strategy(int maxAttendees) {
+            this.maxAttendees = maxAttendees;
+        }
+    }
+
+    private final Strategy strategy;
+
+    private int conferences = 3;
+
+    private int threads = 8;
+
+    private int operationsPerThread = 25;
+
+    private int usersPerThread = 5;
+
+    private long seed = 42;
+
+    private RegistrationLoadSimulator(Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    public static RegistrationLoadSimulator of(Strategy strategy) {
+        return new RegistrationLoadSimulator(strategy);
+    }
+
+    /**
+     * Sets the number of the hot Conferences.
+     */
+    public RegistrationLoadSimulator conferences(int conferences) {
+        this.conferences = conferences;
+        return this;
+    }
+
+    public RegistrationLoadSimulator threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public RegistrationLoadSimulator operationsPerThread(int operationsPerThread) {
+        this.operationsPerThread = operationsPerThread;
+        return this;
+    }
+
+    /**
+     * Sets the number of the users of each thread. Fewer users make a user unregister more
+     * often.
+     */
+    public RegistrationLoadSimulator usersPerThread(int usersPerThread) {
+        this.usersPerThread = usersPerThread;
+        return this;
+    }
+
+    /**
+     * Sets the seed of the random choices, so that runs can be repeated.
+     */
+    public RegistrationLoadSimulator seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * The outcome of a simulation.
+     */
+    public static class Report {
+
+        private final Strategy strategy;
+
+        private final long elapsedNanos;
+
+        private final long[] latencyNanos;
+
+        private int registrations;
+
+        private int unregistrations;
+
+        private int soldOut;
+
+        private int failures;
+
+        private int stubRetries;
+
+        private long transactionRetries;
+
+        private int commits;
+
+        private int overbooked;
+
+        private final List<String> violations = new ArrayList<>();
+
+        private Report(Strategy strategy, long elapsedNanos, long[] latencyNanos) {
+            this.strategy = strategy;
+            this.elapsedNanos = elapsedNanos;
+            this.latencyNanos = latencyNanos;
+            Arrays.sort(latencyNanos);
+        }
+
+        public int getOperations() {
+            return latencyNanos.length;
+        }
+
+        /**
+         * The number of operations per second.
+         */
+        public double getThroughput() {
+            return getOperations() * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * Returns the latency of the given percentile in milliseconds.
+         *
+         * @param percentile The percentile, between 0 and 100.
+         */
+        public double getLatencyMillis(double percentile) {
+            if (latencyNanos.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * latencyNanos.length) - 1;
+            return latencyNanos[Math.max(0, Math.min(index, latencyNanos.length - 1))] / 1e6;
+        }
+
+        public int getRegistrations() {
+            return registrations;
+        }
+
+        public int getUnregistrations() {
+            return unregistrations;
+        }
+
+        /**
+         * The number of registrations rejected for lack of seats.
+         */
+        public int getSoldOut() {
+            return soldOut;
+        }
+
+        /**
+         * The number of operations that failed otherwise, such as by running out of attempts.
+         */
+        public int getFailures() {
+            return failures;
+        }
+
+        /**
+         * The number of transaction retries made by Transactions on contention.
+         */
+        public long getTransactionRetries() {
+            return transactionRetries;
+        }
+
+        /**
+         * The number of operations retried on the conflicts that the local datastore reports
+         * as a closed transaction, which Transactions doesn't see.
+         */
+        public int getStubRetries() {
+            return stubRetries;
+        }
+
+        /**
+         * The number of datastore commits, including the failed ones.
+         */
+        public int getCommits() {
+            return commits;
+        }
+
+        /**
+         * The number of Conferences with more seats registered than they have.
+         */
+        public int getOverbooked() {
+            return overbooked;
+        }
+
+        /**
+         * Describes the Conferences whose available seats don't match their Registrations.
+         */
+        public List<String> getViolations() {
+            return Collections.unmodifiableList(violations);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d operations in %d ms, %.1f ops/s, p50 %.1f ms, "
+                    + "p99 %.1f ms; %d registrations, %d unregistrations, %d sold out, "
+                    + "%d failures; %d transaction retries, %d stub retries, %d commits; "
+                    + "%d overbooked, violations %s", strategy, getOperations(),
+                    elapsedNanos / 1000000, getThroughput(), getLatencyMillis(50),
+                    getLatencyMillis(99), registrations, unregistrations, soldOut, failures,
+                    transactionRetries, stubRetries, commits, overbooked, violations);
+        }
+    }
+
+    /**
+     * Runs the operations of a thread, and counts their outcomes.
+     */
+    private class Worker implements Callable<Worker> {
+
+        private final ConferenceApi conferenceApi;
+
+        private final ApiProxy.Environment environment;
+
+        private final List<String> websafeConferenceKeys;
+
+        private final Random random;
+
+        private final User[] users;
+
+        private final boolean[][] registered;
+
+        private final long[] latencyNanos = new long[operationsPerThread];
+
+        private int registrations;
+
+        private int unregistrations;
+
+        private int soldOut;
+
+        private int failures;
+
+        private int stubRetries;
+
+        private Worker(int thread, ConferenceApi conferenceApi, ApiProxy.Environment environment,
+                       List<String> websafeConferenceKeys) {
+            this.conferenceApi = conferenceApi;
+            this.environment = environment;
+            this.websafeConferenceKeys = websafeConferenceKeys;
+            this.random = new Random(seed + thread);
+            this.users = new User[usersPerThread];
+            for (int i = 0; i < usersPerThread; i++) {
+                String userId = "load-" + thread + "-" + i;
+                users[i] = new User(userId + "@example.com", "gmail.com", userId);
+            }
+            this.registered = new boolean[usersPerThread][websafeConferenceKeys.size()];
+        }
+
+        @Override
+        public Worker call() {
+            ApiProxy.setEnvironmentForCurrentThread(environment);
+            for (int i = 0; i < operationsPerThread; i++) {
+                int user = random.nextInt(users.length);
+                int conference = random.nextInt(websafeConferenceKeys.size());
+                long start = System.nanoTime();
+                try {
+                    if (registered[user][conference]) {
+                        unregister(user, conference);
+                    } else {
+                        register(user, conference);
+                    }
+                } catch (Exception e) {
+                    failures++;
+                } finally {
+                    latencyNanos[i] = System.nanoTime() - start;
+                    ofy().clear();
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Registers the user, retrying the conflicts the local datastore doesn't report as
+         * ConcurrentModificationException, hence not retried by Transactions.
+         */
+        private void register(int user, int conference) throws Exception {
+            while (true) {
+                try {
+                    conferenceApi.registerForConference(users[user],
+                            websafeConferenceKeys.get(conference), null);
+                    registered[user][conference] = true;
+                    registrations++;
+                    return;
+                } catch (ConflictException e) {
+                    if (e.getMessage().startsWith(ALREADY_REGISTERED)) {
+                        // A retried registration has been committed before.
+                        registered[user][conference] = true;
+                        registrations++;
+                    } else {
+                        soldOut++;
+                    }
+                    return;
+                } catch (IllegalArgumentException e) {
+                    if (!"transaction closed".equals(e.getMessage())) {
+                        throw e;
+                    }
+                    stubRetries++;
+                    ofy().clear();
+                }
+            }
+        }
+
+        /**
+         * Unregisters the user, retrying the conflicts like register.
+         */
+        private void unregister(int user, int conference) throws Exception {
+            while (true) {
+                try {
+                    // False when a retried unregistration has been committed before.
+                    conferenceApi.unregisterFromConference(users[user],
+                            websafeConferenceKeys.get(conference));
+                    registered[user][conference] = false;
+                    unregistrations++;
+                    return;
+                } catch (IllegalArgumentException e) {
+                    if (!"transaction closed".equals(e.getMessage())) {
+                        throw e;
+                    }
+                    stubRetries++;
+                    ofy().clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the Conferences, runs the operations from all the threads at once, and checks
+     * the seats of the Conferences.
+     *
+     * @param conferenceApi The API to call.
+     * @return the report of the run.
+     */
+    public Report run(ConferenceApi conferenceApi) throws Exception {
+        User organizer = new User("organizer@example.com", "gmail.com", ORGANIZER_ID);
+        List<String> websafeConferenceKeys = new ArrayList<>();
+        for (int i = 0; i < conferences; i++) {
+            websafeConferenceKeys.add(conferenceApi.createConference(organizer,
+                    new ConferenceForm("Hot Conference " + i, null, null, null, null, null,
+                            strategy.maxAttendees), null).getWebsafeKey());
+        }
+        Transactions.clearStats();
+
+        ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        RpcCounter counter = RpcCounter.install();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Worker>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(
+                    new Worker(i, conferenceApi, environment, websafeConferenceKeys)));
+        }
+        List<Worker> workers = new ArrayList<>();
+        try {
+            for (Future<Worker> future : futures) {
+                workers.add(future.get());
+            }
+        } finally {
+            executor.shutdown();
+            counter.uninstall();
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        long[] latencyNanos = new long[threads * operationsPerThread];
+        for (int i = 0; i < workers.size(); i++) {
+            System.arraycopy(workers.get(i).latencyNanos, 0, latencyNanos,
+                    i * operationsPerThread, operationsPerThread);
+        }
+        Report report = new Report(strategy, elapsedNanos, latencyNanos);
+        for (Worker worker : workers) {
+            report.registrations += worker.registrations;
+            report.unregistrations += worker.unregistrations;
+            report.soldOut += worker.soldOut;
+            report.failures += worker.failures;
+            report.stubRetries += worker.stubRetries;
+        }
+        report.commits = counter.getDatastoreCalls("Commit");
+        for (String websafeConferenceKey : websafeConferenceKeys) {
+            Transactions.GroupStats stats = Transactions.getStats(websafeConferenceKey);
+            if (stats != null) {
+                report.transactionRetries += stats.getRetries();
+            }
+        }
+        checkSeats(websafeConferenceKeys, report);
+        return report;
+    }
+
+    /**
+     * Checks that the seats booked from each Conference are the seats of its Registrations.
+     */
+    private static void checkSeats(List<String> websafeConferenceKeys, Report report) {
+        ofy().clear();
+        ConferenceCache.clearLocalCache();
+        for (String websafeConferenceKey : websafeConferenceKeys) {
+            Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
+            Conference conference = ofy().load().key(conferenceKey).now();
+            Conference.hydrateSeatsAvailable(Collections.singletonList(conference));
+            int registeredSeats = 0;
+            for (Registration registration : ofy().load().type(Registration.class)
+                    .filter("conferenceKey", conferenceKey)) {
+                registeredSeats += registration.getSeats();
+            }
+            int bookedSeats = conference.getMaxAttendees() - conference.getSeatsAvailable();
+            if (registeredSeats > conference.getMaxAttendees()
+                    || conference.getSeatsAvailable() < 0) {
+                report.overbooked++;
+            }
+            if (bookedSeats != registeredSeats) {
+                report.violations.add(String.format("%s: %d seats booked, %d registered",
+                        conference.getName(), bookedSeats, registeredSeats));
+            }
+        }
+    }
+}
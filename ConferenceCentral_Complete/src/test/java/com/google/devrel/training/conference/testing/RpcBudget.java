@@ -0,0 +1,103 @@
+package com.google.devrel.training.conference.testing;
+
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The upper bounds of the RPCs an API call may make, checked against an RpcCounter.
+ *
+ * Only the bounds that are set are checked.
+ * <pre>
+ * {@code
+ * rpcCounter.reset();
+ * conferenceApi.queryConferences(conferenceQueryForm);
+ * RpcBudget.of("queryConferences").roundTrips(2).queries(1).transactions(0).check(rpcCounter);
+ * }
+ * </pre>
+ */
+public class RpcBudget {
+
+    private static final int UNBOUNDED = -1;
+
+    private final String name;
+
+    private int roundTrips = UNBOUNDED;
+
+    private int gets = UNBOUNDED;
+
+    private int puts = UNBOUNDED;
+
+    private int queries = UNBOUNDED;
+
+    private int transactions = UNBOUNDED;
+
+    private int memcacheCalls = UNBOUNDED;
+
+    private RpcBudget(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param name The name of the API call, for the failure message.
+     */
+    public static RpcBudget of(String name) {
+        return new RpcBudget(name);
+    }
+
+    /**
+     * Bounds the datastore round trips of any method.
+     */
+    public RpcBudget roundTrips(int roundTrips) {
+        this.roundTrips = roundTrips;
+        return this;
+    }
+
+    public RpcBudget gets(int gets) {
+        this.gets = gets;
+        return this;
+    }
+
+    public RpcBudget puts(int puts) {
+        this.puts = puts;
+        return this;
+    }
+
+    public RpcBudget queries(int queries) {
+        this.queries = queries;
+        return this;
+    }
+
+    public RpcBudget transactions(int transactions) {
+        this.transactions = transactions;
+        return this;
+    }
+
+    public RpcBudget memcacheCalls(int memcacheCalls) {
+        this.memcacheCalls = memcacheCalls;
+        return this;
+    }
+
+    private static void check(List<String> overruns, String what, int budget, int actual) {
+        if (budget != UNBOUNDED && actual > budget) {
+            overruns.add(String.format("%d %s (budget %d)", actual, what, budget));
+        }
+    }
+
+    /**
+     * Fails when the RPCs counted since the last reset exceed the budget.
+     */
+    public void check(RpcCounter counter) {
+        List<String> overruns = new ArrayList<>();
+        check(overruns, "round trips", roundTrips, counter.getDatastoreCalls());
+        check(overruns, "gets", gets, counter.getGets());
+        check(overruns, "puts", puts, counter.getPuts());
+        check(overruns, "queries", queries, counter.getQueries());
+        check(overruns, "transactions", transactions, counter.getTransactions());
+        check(overruns, "memcache calls", memcacheCalls, counter.getMemcacheCalls());
+        if (!overruns.isEmpty()) {
+            fail(String.format("%s is over its RPC budget with %s: %s", name, overruns, counter));
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.google.devrel.training.conference.testing;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An ApiProxy Delegate that counts the datastore and memcache RPCs made through the local
+ * service stubs.
+ *
+ * Install it after LocalServiceTestHelper.setUp() and uninstall it before tearDown().
+ * <pre>
+ * {@code
+ * RpcCounter counter = RpcCounter.install();
+ * conferenceApi.queryConferences(conferenceQueryForm);
+ * assertTrue(counter.getDatastoreCalls() <= 2);
+ * counter.uninstall();
+ * }
+ * </pre>
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class RpcCounter implements Delegate<Environment> {
+
+    private static final String DATASTORE_PACKAGE = "datastore_v3";
+
+    private static final String MEMCACHE_PACKAGE = "memcache";
+
+    private final Delegate<Environment> delegate;
+
+    private final AtomicInteger datastoreCalls = new AtomicInteger();
+
+    private final ConcurrentMap<String, AtomicInteger> datastoreCallsByMethod =
+            new ConcurrentHashMap<>();
+
+    private final AtomicInteger memcacheCalls = new AtomicInteger();
+
+    private RpcCounter(Delegate<Environment> delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Wraps the current ApiProxy Delegate with a new RpcCounter.
+     *
+     * @return the RpcCounter just installed.
+     */
+    public static RpcCounter install() {
+        RpcCounter counter = new RpcCounter(ApiProxy.getDelegate());
+        ApiProxy.setDelegate(counter);
+        return counter;
+    }
+
+    /**
+     * Restores the original ApiProxy Delegate.
+     */
+    public void uninstall() {
+        ApiProxy.setDelegate(delegate);
+    }
+
+    /**
+     * Returns the number of datastore round trips since the last reset.
+     *
+     * @return the number of datastore round trips.
+     */
+    public int getDatastoreCalls() {
+        return datastoreCalls.get();
+    }
+
+    /**
+     * Returns the number of datastore round trips of the given method since the last reset.
+     *
+     * @param methodName The datastore RPC method name, such as "Get", "Put" or "RunQuery".
+     * @return the number of datastore round trips of the method.
+     */
+    public int getDatastoreCalls(String methodName) {
+        AtomicInteger calls = datastoreCallsByMethod.get(methodName);
+        return calls == null ? 0 : calls.get();
+    }
+
+    /**
+     * Returns the number of datastore gets, including the batch gets.
+     */
+    public int getGets() {
+        return getDatastoreCalls("Get");
+    }
+
+    /**
+     * Returns the number of datastore puts, including the batch puts.
+     */
+    public int getPuts() {
+        return getDatastoreCalls("Put");
+    }
+
+    /**
+     * Returns the number of datastore query round trips, including the ones fetching the next
+     * batches of the results.
+     */
+    public int getQueries() {
+        return getDatastoreCalls("RunQuery") + getDatastoreCalls("Next");
+    }
+
+    /**
+     * Returns the number of datastore transactions begun, including the retries.
+     */
+    public int getTransactions() {
+        return getDatastoreCalls("BeginTransaction");
+    }
+
+    /**
+     * Returns the number of memcache round trips since the last reset.
+     */
+    public int getMemcacheCalls() {
+        return memcacheCalls.get();
+    }
+
+    /**
+     * Resets the counter.
+     */
+    public void reset() {
+        datastoreCalls.set(0);
+        datastoreCallsByMethod.clear();
+        memcacheCalls.set(0);
+    }
+
+    /**
+     * Returns the counts of the datastore methods and memcache round trips, for the failure
+     * messages.
+     */
+    @Override
+    public String toString() {
+        return String.format("datastore %d %s, memcache %d", datastoreCalls.get(),
+                new TreeMap<>(datastoreCallsByMethod), memcacheCalls.get());
+    }
+
+    private void count(String packageName, String methodName) {
+        if (MEMCACHE_PACKAGE.equals(packageName)) {
+            memcacheCalls.incrementAndGet();
+        }
+        if (DATASTORE_PACKAGE.equals(packageName)) {
+            datastoreCalls.incrementAndGet();
+            AtomicInteger calls = datastoreCallsByMethod.get(methodName);
+            if (calls == null) {
+                datastoreCallsByMethod.putIfAbsent(methodName, new AtomicInteger());
+                calls = datastoreCallsByMethod.get(methodName);
+            }
+            calls.incrementAndGet();
+        }
+    }
+
+    @Override
+    public byte[] makeSyncCall(Environment environment, String packageName, String methodName,
+                               byte[] request) throws ApiProxyException {
+        count(packageName, methodName);
+        return delegate.makeSyncCall(environment, packageName, methodName, request);
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(Environment environment, String packageName,
+                                        String methodName, byte[] request, ApiConfig apiConfig) {
+        count(packageName, methodName);
+        return delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+    }
+
+    @Override
+    public void log(Environment environment, LogRecord record) {
+        delegate.log(environment, record);
+    }
+
+    @Override
+    public void flushLogs(Environment environment) {
+        delegate.flushLogs(environment);
+    }
+
+    @Override
+    public List<Thread> getRequestThreads(Environment environment) {
+        return delegate.getRequestThreads(environment);
+    }
+}
@@ -0,0 +1,471 @@
+package com.google.devrel.training.conference.testing;
+
+import static com.google.devrel.training.conference.service.OfyService.factory;
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Generates realistic Profiles, Conferences and Registrations, and bulk loads them into the
+ * datastore, so that queries, caches and batch jobs can be measured at production-like scale.
+ *
+ * The cities, the topics, the organizers and the attendees follow Zipf distributions, so a few
+ * of them are far more popular than the rest, and the conferences cluster in spring and autumn.
+ * Most conferences are small and a few are large enough to hold their seats in SeatShards. The
+ * booked seats of each conference are spread over at most maxRegistrationsPerConference
+ * Registrations, as group registrations where needed, so the seats always match the
+ * Registrations.
+ *
+ * The entities are written with batched saves, bypassing ConferenceApi, its caches and the
+ * announcement. The Conference ids come from an allocateIds range per organizer and batch, the
+ * way createConference allocates them under the organizer's Profile. The generation is
+ * deterministic for a given seed.
+ * <pre>
+ * {@code
+ * SyntheticDataset.Summary summary = SyntheticDataset.withSeed(42)
+ *         .profiles(100000).conferences(1000000)
+ *         .load();
+ * }
+ * </pre>
+ */
+public class SyntheticDataset {
+
+    private static final List<String> CITIES = ImmutableList.of("San Francisco", "London",
+            "New York", "Tokyo", "Berlin", "Bangalore", "Mountain View", "Paris", "Seattle",
+            "Singapore", "Sao Paulo", "Sydney", "Toronto", "Stockholm", "Tel Aviv", "Seoul",
+            "Amsterdam", "Austin", "Warsaw", "Nairobi");
+
+    private static final List<String> TOPICS = ImmutableList.of("Cloud", "Android", "Web",
+            "Machine Learning", "Platform", "Developer", "Security", "Data", "Mobile", "IoT",
+            "Design", "Games", "Startups", "Open Source", "DevOps");
+
+    /**
+     * The relative number of conferences starting in each month, from January.
+     */
+    private static final double[] MONTH_WEIGHTS =
+            {4, 6, 10, 12, 11, 8, 4, 3, 10, 12, 9, 5};
+
+    /**
+     * The capacities of the conferences, the smallest being the most common.
+     */
+    private static final int[] CAPACITIES = {50, 100, 200, 300, 500, 1000, 2000, 5000};
+
+    private static final List<String> FIRST_NAMES = ImmutableList.of("Alex", "Sam", "Kim",
+            "Robin", "Jordan", "Maria", "Yuki", "Ahmed", "Priya", "Chen", "Olga", "Lucas");
+
+    private static final List<String> LAST_NAMES = ImmutableList.of("Smith", "Tanaka",
+            "Garcia", "Kowalski", "Singh", "Wang", "Muller", "Rossi", "Okafor", "Silva");
+
+    private final long seed;
+
+    private int profiles = 10000;
+
+    private int conferences = 100000;
+
+    /**
+     * The share of the Profiles that organize conferences.
+     */
+    private double organizerShare = 0.1;
+
+    private int maxRegistrationsPerConference = 20;
+
+    private int batchSize = 500;
+
+    private int year = Calendar.getInstance().get(Calendar.YEAR) + 1;
+
+    private SyntheticDataset(long seed) {
+        this.seed = seed;
+    }
+
+    public static SyntheticDataset withSeed(long seed) {
+        return new SyntheticDataset(seed);
+    }
+
+    public SyntheticDataset profiles(int profiles) {
+        this.profiles = profiles;
+        return this;
+    }
+
+    public SyntheticDataset conferences(int conferences) {
+        this.conferences = conferences;
+        return this;
+    }
+
+    /**
+     * Sets the share of the Profiles that organize conferences, between 0 and 1.
+     */
+    public SyntheticDataset organizerShare(double organizerShare) {
+        this.organizerShare = organizerShare;
+        return this;
+    }
+
+    public SyntheticDataset maxRegistrationsPerConference(int maxRegistrationsPerConference) {
+        this.maxRegistrationsPerConference = maxRegistrationsPerConference;
+        return this;
+    }
+
+    /**
+     * Sets the number of entities saved in a single batch.
+     */
+    public SyntheticDataset batchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Sets the year the conferences take place in.
+     */
+    public SyntheticDataset year(int year) {
+        this.year = year;
+        return this;
+    }
+
+    /**
+     * Samples the indices 0 to n - 1, the index k with a weight of 1 / (k + 1)^exponent.
+     */
+    private static class Zipf {
+
+        private final double[] cumulative;
+
+        private Zipf(int n, double exponent) {
+            double[] weights = new double[n];
+            for (int k = 0; k < n; k++) {
+                weights[k] = 1 / Math.pow(k + 1, exponent);
+            }
+            cumulative = cumulate(weights);
+        }
+
+        private Zipf(double[] weights) {
+            cumulative = cumulate(weights);
+        }
+
+        private static double[] cumulate(double[] weights) {
+            double[] cumulative = new double[weights.length];
+            double sum = 0;
+            for (int k = 0; k < weights.length; k++) {
+                sum += weights[k];
+                cumulative[k] = sum;
+            }
+            return cumulative;
+        }
+
+        private int sample(Random random) {
+            double value = random.nextDouble() * cumulative[cumulative.length - 1];
+            int index = Arrays.binarySearch(cumulative, value);
+            return Math.min(index < 0 ? -index - 1 : index, cumulative.length - 1);
+        }
+    }
+
+    /**
+     * What has been loaded, to check the results of the queries against.
+     */
+    public static class Summary {
+
+        private final Map<String, Integer> conferencesByCity = new TreeMap<>();
+
+        private final Map<String, Integer> conferencesByTopic = new TreeMap<>();
+
+        private final Map<Integer, Integer> conferencesByMonth = new TreeMap<>();
+
+        private int profiles;
+
+        private int conferences;
+
+        private int shardedConferences;
+
+        private int registrations;
+
+        private int batches;
+
+        private int idAllocations;
+
+        private long elapsedMillis;
+
+        private static <K> void increment(Map<K, Integer> counts, K key) {
+            Integer count = counts.get(key);
+            counts.put(key, count == null ? 1 : count + 1);
+        }
+
+        private static <K> int countOf(Map<K, Integer> counts, K key) {
+            Integer count = counts.get(key);
+            return count == null ? 0 : count;
+        }
+
+        public int getProfiles() {
+            return profiles;
+        }
+
+        public int getConferences() {
+            return conferences;
+        }
+
+        public int getConferences(String city) {
+            return countOf(conferencesByCity, city);
+        }
+
+        public int getConferencesWithTopic(String topic) {
+            return countOf(conferencesByTopic, topic);
+        }
+
+        /**
+         * @param month The month, from 1 for January.
+         */
+        public int getConferencesInMonth(int month) {
+            return countOf(conferencesByMonth, month);
+        }
+
+        /**
+         * Returns the city with the most conferences.
+         */
+        public String getBusiestCity() {
+            String busiest = null;
+            for (Map.Entry<String, Integer> entry : conferencesByCity.entrySet()) {
+                if (busiest == null || entry.getValue() > conferencesByCity.get(busiest)) {
+                    busiest = entry.getKey();
+                }
+            }
+            return busiest;
+        }
+
+        public int getShardedConferences() {
+            return shardedConferences;
+        }
+
+        public int getRegistrations() {
+            return registrations;
+        }
+
+        /**
+         * The number of batched saves.
+         */
+        public int getBatches() {
+            return batches;
+        }
+
+        /**
+         * The number of allocateIds calls.
+         */
+        public int getIdAllocations() {
+            return idAllocations;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d profiles, %d conferences (%d sharded), %d registrations "
+                    + "in %d batches and %d id allocations, %d ms; by city %s", profiles,
+                    conferences, shardedConferences, registrations, batches, idAllocations,
+                    elapsedMillis, conferencesByCity);
+        }
+    }
+
+    /**
+     * Buffers the entities and saves them in batches, clearing the session cache after each
+     * batch so that the memory doesn't grow with the dataset.
+     */
+    private class BatchWriter {
+
+        private final Summary summary;
+
+        private final List<Object> entities = new ArrayList<>(batchSize);
+
+        private BatchWriter(Summary summary) {
+            this.summary = summary;
+        }
+
+        private void add(Object entity) {
+            entities.add(entity);
+            if (entities.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        private void addAll(List<?> entities) {
+            for (Object entity : entities) {
+                add(entity);
+            }
+        }
+
+        private void flush() {
+            if (entities.isEmpty()) {
+                return;
+            }
+            ofy().save().entities(entities).now();
+            ofy().clear();
+            entities.clear();
+            summary.batches++;
+        }
+    }
+
+    private static String userIdOf(int profile) {
+        return "synthetic-" + profile;
+    }
+
+    private static String displayNameOf(int profile) {
+        return FIRST_NAMES.get(profile % FIRST_NAMES.size()) + " "
+                + LAST_NAMES.get(profile / FIRST_NAMES.size() % LAST_NAMES.size());
+    }
+
+    /**
+     * Generates the dataset and saves it.
+     *
+     * Run it in a local API environment, such as after LocalServiceTestHelper.setUp(), or
+     * against the remote API.
+     *
+     * @return what has been loaded.
+     */
+    public Summary load() {
+        long start = System.currentTimeMillis();
+        Random random = new Random(seed);
+        Summary summary = new Summary();
+        BatchWriter writer = new BatchWriter(summary);
+
+        TeeShirtSize[] sizes = TeeShirtSize.values();
+        for (int i = 0; i < profiles; i++) {
+            writer.add(new Profile(userIdOf(i), displayNameOf(i), userIdOf(i) + "@example.com",
+                    sizes[random.nextInt(sizes.length)]));
+            summary.profiles++;
+        }
+
+        int organizers = Math.max(1, (int) (profiles * organizerShare));
+        Zipf organizerZipf = new Zipf(organizers, 1.0);
+        Zipf attendeeZipf = new Zipf(profiles, 0.8);
+        Zipf cityZipf = new Zipf(CITIES.size(), 1.1);
+        Zipf topicZipf = new Zipf(TOPICS.size(), 0.9);
+        Zipf monthZipf = new Zipf(MONTH_WEIGHTS);
+        Zipf capacityZipf = new Zipf(CAPACITIES.length, 1.2);
+
+        for (int generated = 0; generated < conferences; generated += batchSize) {
+            // Group a batch of conferences by organizer, to allocate their ids in one range each.
+            Map<Integer, Integer> conferencesByOrganizer = new LinkedHashMap<>();
+            for (int i = generated; i < Math.min(conferences, generated + batchSize); i++) {
+                Summary.increment(conferencesByOrganizer, organizerZipf.sample(random));
+            }
+            for (Map.Entry<Integer, Integer> entry : conferencesByOrganizer.entrySet()) {
+                int organizer = entry.getKey();
+                Key<Profile> profileKey = Key.create(Profile.class, userIdOf(organizer));
+                Iterator<Key<Conference>> ids = factory().allocateIds(profileKey,
+                        Conference.class, entry.getValue()).iterator();
+                summary.idAllocations++;
+                while (ids.hasNext()) {
+                    generateConference(ids.next().getId(), organizer, random, cityZipf,
+                            topicZipf, monthZipf, capacityZipf, attendeeZipf, writer, summary);
+                }
+            }
+        }
+        writer.flush();
+        summary.elapsedMillis = System.currentTimeMillis() - start;
+        return summary;
+    }
+
+    private void generateConference(long id, int organizer, Random random, Zipf cityZipf,
+                                    Zipf topicZipf, Zipf monthZipf, Zipf capacityZipf,
+                                    Zipf attendeeZipf, BatchWriter writer, Summary summary) {
+        String city = CITIES.get(cityZipf.sample(random));
+        Set<String> topics = new HashSet<>();
+        int topicCount = 1 + random.nextInt(3);
+        while (topics.size() < topicCount) {
+            topics.add(TOPICS.get(topicZipf.sample(random)));
+        }
+        int month = monthZipf.sample(random) + 1;
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month - 1, 1 + random.nextInt(28));
+        Date startDate = calendar.getTime();
+        calendar.add(Calendar.DATE, random.nextInt(3));
+        Date endDate = calendar.getTime();
+        int maxAttendees = CAPACITIES[capacityZipf.sample(random)];
+
+        List<String> sortedTopics = new ArrayList<>(topics);
+        Collections.sort(sortedTopics);
+        Conference conference = new Conference(id, userIdOf(organizer), new ConferenceForm(
+                city + " " + sortedTopics.get(0) + " Summit " + id,
+                "A synthetic conference on " + sortedTopics, sortedTopics, city, startDate,
+                endDate, maxAttendees));
+        conference.updateOrganizerDisplayName(displayNameOf(organizer));
+
+        // Most conferences fill up well, and some are sold out.
+        int bookedSeats = (int) Math.round(
+                (1 - Math.pow(random.nextDouble(), 2)) * maxAttendees);
+        List<Registration> registrations = generateRegistrations(conference.getWebsafeKey(),
+                bookedSeats, random, attendeeZipf);
+
+        int seatShards = SeatInventory.shardCountFor(maxAttendees);
+        if (seatShards > 0) {
+            List<SeatShard> shards = SeatShard.allot(conference.getWebsafeKey(), maxAttendees,
+                    seatShards);
+            int seatsToBook = bookedSeats;
+            for (SeatShard shard : shards) {
+                int booked = Math.min(seatsToBook, shard.getSeatsAvailable());
+                shard.bookSeats(booked);
+                seatsToBook -= booked;
+            }
+            conference.enableSeatShards(seatShards);
+            conference.updateSeatsAvailable(maxAttendees - bookedSeats);
+            writer.addAll(shards);
+            summary.shardedConferences++;
+        } else {
+            conference.bookSeats(bookedSeats);
+        }
+        writer.add(conference);
+        writer.addAll(registrations);
+
+        summary.conferences++;
+        summary.registrations += registrations.size();
+        Summary.increment(summary.conferencesByCity, city);
+        for (String topic : sortedTopics) {
+            Summary.increment(summary.conferencesByTopic, topic);
+        }
+        Summary.increment(summary.conferencesByMonth, month);
+    }
+
+    /**
+     * Spreads the booked seats over distinct attendees, as group registrations when there are
+     * more seats than maxRegistrationsPerConference.
+     */
+    private List<Registration> generateRegistrations(String websafeConferenceKey,
+                                                     int bookedSeats, Random random,
+                                                     Zipf attendeeZipf) {
+        int count = Math.min(Math.min(bookedSeats, maxRegistrationsPerConference), profiles);
+        Set<Integer> attendees = new HashSet<>();
+        while (attendees.size() < count) {
+            // Fall back to a uniform pick once the popular attendees are taken.
+            if (!attendees.add(attendeeZipf.sample(random))) {
+                attendees.add(random.nextInt(profiles));
+            }
+        }
+        List<Registration> registrations = new ArrayList<>(count);
+        int index = 0;
+        for (int attendee : attendees) {
+            int seats = bookedSeats / count + (index < bookedSeats % count ? 1 : 0);
+            registrations.add(new Registration(userIdOf(attendee), websafeConferenceKey, seats));
+            index++;
+        }
+        return registrations;
+    }
+}